@@ -1,32 +1,73 @@
 package au.com.ogsoft.yahaml4j;
 
-import org.apache.commons.collections4.list.GrowthList;
-
-import java.util.List;
+import au.com.ogsoft.yahaml4j.ast.*;
+import au.com.ogsoft.yahaml4j.filters.FilterCache;
+import au.com.ogsoft.yahaml4j.filters.FilterContents;
+import au.com.ogsoft.yahaml4j.filters.NamedFilter;
+import org.apache.commons.lang3.StringUtils;
 
 /**
- * Common code shared across all code generators
+ * Common code shared across all code generators. The nodes of a parsed template are visited in order, generating
+ * the HTML contents into the output buffer and calling out to the generator for any code
  */
-public abstract class BaseCodeGenerator implements HamlGenerator {
+public abstract class BaseCodeGenerator implements HamlGenerator, NodeVisitor {
 
     protected final HamlOptions options;
     protected CodeBuffer outputBuffer;
+    protected TemplateVariables templateVariables;
+    protected OutputProfile outputProfile;
 
-    /*
-    embeddedCodeBlockMatcher: /#{([^}]*)}/g
-     */
-
-    private List<Element> elementStack;
     private int indent;
+    private StringBuilder codeScratch;
+    private StringBuilder contentsScratch;
+    private FilterCache filterCache = FilterCache.shared();
 
     public BaseCodeGenerator(HamlOptions options) {
         this.options = options;
         outputBuffer = new CodeBuffer(this);
     }
 
+    /**
+     * Generates the code and contents into the given builders instead of new ones, so they can be reused from
+     * compile to compile
+     */
+    public void setScratchBuffers(StringBuilder code, StringBuilder contents) {
+        this.codeScratch = code;
+        this.contentsScratch = contents;
+    }
+
     @Override
-    public void initElementStack() {
-        elementStack = new GrowthList<Element>();
+    public void setTemplateVariables(TemplateVariables variables) {
+        this.templateVariables = variables;
+    }
+
+    @Override
+    public void setOutputProfile(OutputProfile profile) {
+        this.outputProfile = profile;
+    }
+
+    /**
+     * Sets the cache the output of pure filters is kept in, or null to always run the filters
+     */
+    public void setFilterCache(FilterCache filterCache) {
+        this.filterCache = filterCache;
+    }
+
+    /**
+     * Creates an empty output buffer, using the scratch buffers if there are any
+     */
+    protected CodeBuffer newOutputBuffer() {
+        if (codeScratch != null) {
+            return new CodeBuffer(this, codeScratch, contentsScratch);
+        }
+        return new CodeBuffer(this);
+    }
+
+    /**
+     * Creates an empty output buffer that writes the code to out, using the contents scratch buffer if there is one
+     */
+    protected CodeBuffer newOutputBuffer(Appendable out) {
+        return new CodeBuffer(this, out, contentsScratch != null ? contentsScratch : new StringBuilder());
     }
 
     @Override
@@ -46,7 +87,157 @@ public abstract class BaseCodeGenerator implements HamlGenerator {
     }
 
     @Override
-    public List<Element> getElementStack() {
-        return elementStack;
+    public void generate(Node node) {
+        node.accept(this);
+    }
+
+    /**
+     * Records where the code about to be generated for the node comes from, if a source map is wanted
+     */
+    protected void markSource(Node node) {
+        if (options.sourceMap) {
+            outputBuffer.markSource(node.parsePoint.lineNumber, node.parsePoint.characterNumber);
+        }
+    }
+
+    protected void visitChildren(Node node) {
+        for (Node child: node.children) {
+            child.accept(this);
+        }
+    }
+
+    @Override
+    public void visit(TemplateNode node) {
+        visitChildren(node);
+    }
+
+    @Override
+    public void visit(DoctypeNode node) {
+        outputBuffer.append(HamlRuntime.indentText(node.indent));
+        outputBuffer.append(node.doctype);
+        outputBuffer.append(node.newline);
+    }
+
+    @Override
+    public void visit(ElementNode node) {
+        if (!node.outerWhitespace) {
+            outputBuffer.trimWhitespace();
+        }
+        if (node.indent > 0 && node.parentInnerWhitespace && node.outerWhitespace) {
+            outputBuffer.append(HamlRuntime.indentText(node.indent));
+        }
+        outputBuffer.append("<" + node.tag);
+        if (node.hasDynamicAttributes()) {
+            markSource(node);
+            generateCodeForDynamicAttributes(node.id, node.classes, node.attributeList, node.attributeHash,
+                node.objectRef, node.parsePoint);
+        } else {
+            outputBuffer.append(HamlRuntime.generateElementAttributes(null, node.id, node.classes, null,
+                node.attributeList, null, node.parsePoint));
+        }
+        if (node.selfClosing) {
+            outputBuffer.append("/>");
+            if (node.outerWhitespace) {
+                outputBuffer.append("\n");
+            }
+        } else {
+            outputBuffer.append(">");
+            if (node.innerWhitespace) {
+                outputBuffer.append("\n");
+            }
+
+            visitChildren(node);
+
+            setIndent(node.indent);
+            if (node.innerWhitespace) {
+                outputBuffer.append(HamlRuntime.indentText(node.indent));
+            } else {
+                outputBuffer.trimWhitespace();
+            }
+            outputBuffer.append("</" + node.tag + ">");
+            if (node.parentInnerWhitespace && node.outerWhitespace) {
+                outputBuffer.append("\n");
+            }
+            mark();
+        }
+    }
+
+    @Override
+    public void visit(TextNode node) {
+        if (StringUtils.isNotEmpty(node.text) && node.interpolate) {
+            // interpolated values are escaped the same as = expressions, text with ! is not interpolated at all
+            ProcessOptions processOptions = new ProcessOptions();
+            processOptions.escapeInterpolations = true;
+            appendTextContents(node.text, true, node.parsePoint, processOptions);
+        } else if (StringUtils.isNotEmpty(node.text)) {
+            appendTextContents(node.text, false, node.parsePoint, null);
+        }
+        outputBuffer.append(node.newline);
+    }
+
+    @Override
+    public void visit(CodeNode node) {
+        setIndent(node.indent);
+        markSource(node);
+        appendCodeLine(node.code, node.newline);
+
+        visitChildren(node);
+
+        if (node.functionBlock || node.block) {
+            setIndent(node.indent);
+            if (node.functionBlock) {
+                closeOffFunctionBlock(node.closingCode);
+            } else {
+                closeOffCodeBlock(node.closingCode);
+            }
+            mark();
+        }
+    }
+
+    @Override
+    public void visit(EmbeddedCodeNode node) {
+        String indentText = HamlRuntime.indentText(node.indent);
+        if (node.whitespace) {
+            outputBuffer.append(indentText);
+        }
+        markSource(node);
+        appendEmbeddedCode(indentText, node.expression, node.escapeHtml, node.preserveWhitespace, node.parsePoint);
+        if (node.whitespace) {
+            outputBuffer.append(node.newline);
+        }
+    }
+
+    @Override
+    public void visit(CommentNode node) {
+        outputBuffer.append(HamlRuntime.indentText(node.indent));
+        outputBuffer.append("<!--");
+        if (StringUtils.isNotEmpty(node.contents)) {
+            outputBuffer.append(node.contents);
+        }
+        if (node.conditional) {
+            outputBuffer.append(">");
+        }
+        if (node.hasContents) {
+            outputBuffer.append("\n");
+        }
+
+        visitChildren(node);
+
+        setIndent(node.indent);
+        if (node.conditional) {
+            outputBuffer.append(HamlRuntime.indentText(node.indent) + "<![endif]-->" + node.newline);
+        } else {
+            outputBuffer.append(HamlRuntime.indentText(node.indent) + "-->" + node.newline);
+        }
+        mark();
+    }
+
+    @Override
+    public void visit(FilterNode node) {
+        if (filterCache != null && node.filter instanceof NamedFilter && ((NamedFilter) node.filter).isPure()) {
+            filterCache.execute(node.filter, node.contents, this, options, node.indent, node.parsePoint);
+        } else {
+            FilterContents.execute(node.filter, node.contents, this, node.indent, node.parsePoint);
+        }
     }
 }
@@ -0,0 +1,68 @@
+package au.com.ogsoft.yahaml4j;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Results of a bulk compile, in the order the templates were given or found in
+ */
+public class BulkCompileResult {
+
+    public final List<CompileResult> results;
+    /**
+     * Wall clock time taken to compile all the templates, in nanoseconds
+     */
+    public final long elapsedTime;
+
+    public BulkCompileResult(List<CompileResult> results, long elapsedTime) {
+        this.results = results;
+        this.elapsedTime = elapsedTime;
+    }
+
+    /**
+     * Returns the code generated for each template that compiled
+     */
+    public Map<String, String> getCompiled() {
+        Map<String, String> compiled = new LinkedHashMap<String, String>();
+        for (CompileResult result: results) {
+            if (!result.failed()) {
+                compiled.put(result.name, result.code);
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * Returns the error for each template that failed to compile
+     */
+    public Map<String, Exception> getErrors() {
+        Map<String, Exception> errors = new LinkedHashMap<String, Exception>();
+        for (CompileResult result: results) {
+            if (result.failed()) {
+                errors.put(result.name, result.error);
+            }
+        }
+        return errors;
+    }
+
+    public boolean hasErrors() {
+        for (CompileResult result: results) {
+            if (result.failed()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the total time spent compiling the templates across all threads, in nanoseconds
+     */
+    public long getCompileTime() {
+        long total = 0;
+        for (CompileResult result: results) {
+            total += result.compileTime;
+        }
+        return total;
+    }
+}
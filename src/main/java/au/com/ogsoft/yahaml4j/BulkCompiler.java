@@ -0,0 +1,125 @@
+package au.com.ogsoft.yahaml4j;
+
+import au.com.ogsoft.yahaml4j.filters.Filter;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Compiles a number of templates at once on a fork-join pool. All the templates are compiled by one shared
+ * compiler, with a read-only copy of the filters
+ */
+public class BulkCompiler {
+
+    public static final String HAML_EXTENSION = ".haml";
+
+    private final HamlCompiler compiler;
+    private final HamlOptions options;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param filters Filters to compile the templates with, which are copied
+     * @param options Options, can be null
+     * @param pool Pool to compile the templates on
+     */
+    public BulkCompiler(Map<String, Filter> filters, HamlOptions options, ForkJoinPool pool) {
+        this.compiler = new HamlCompiler(filters);
+        this.options = options;
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the filters the templates are compiled with, which can not be changed
+     */
+    public Map<String, Filter> getFilters() {
+        return compiler.getFilters();
+    }
+
+    /**
+     * Compiles the HAML sources
+     * @param sources Map of template name to HAML source
+     */
+    public BulkCompileResult compile(Map<String, String> sources) {
+        List<CompileTemplate> tasks = new ArrayList<CompileTemplate>(sources.size());
+        for (Map.Entry<String, String> source: sources.entrySet()) {
+            tasks.add(new CompileTemplate(source.getKey(), source.getKey(), source.getValue(), null));
+        }
+        return compile(tasks);
+    }
+
+    /**
+     * Compiles all the UTF-8 encoded .haml files in the directory and its sub-directories. Templates are named by
+     * their path relative to the directory, and the name of the generated function has the path separators and
+     * extension replaced with underscores (so users/show.haml becomes users_show)
+     * @param directory Directory to search for templates
+     */
+    public BulkCompileResult compile(final Path directory) throws IOException {
+        final List<CompileTemplate> tasks = new ArrayList<CompileTemplate>();
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String path = directory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+                if (attrs.isRegularFile() && path.endsWith(HAML_EXTENSION)) {
+                    String functionName = path.substring(0, path.length() - HAML_EXTENSION.length()).replaceAll("[/.]", "_");
+                    tasks.add(new CompileTemplate(path, functionName, null, file));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(tasks, new Comparator<CompileTemplate>() {
+            @Override
+            public int compare(CompileTemplate a, CompileTemplate b) {
+                return a.name.compareTo(b.name);
+            }
+        });
+        return compile(tasks);
+    }
+
+    private BulkCompileResult compile(List<CompileTemplate> tasks) {
+        long start = System.nanoTime();
+        for (CompileTemplate task: tasks) {
+            pool.execute(task);
+        }
+        List<CompileResult> results = new ArrayList<CompileResult>(tasks.size());
+        for (CompileTemplate task: tasks) {
+            task.join();
+            results.add(task.result);
+        }
+        return new BulkCompileResult(results, System.nanoTime() - start);
+    }
+
+    /**
+     * Compiles one template, from either its source or its file
+     */
+    private class CompileTemplate extends RecursiveAction {
+
+        private final String name;
+        private final String functionName;
+        private final String source;
+        private final Path file;
+        private CompileResult result;
+
+        private CompileTemplate(String name, String functionName, String source, Path file) {
+            this.name = name;
+            this.functionName = functionName;
+            this.source = source;
+            this.file = file;
+        }
+
+        @Override
+        protected void compute() {
+            long start = System.nanoTime();
+            try {
+                CompiledTemplate compiled = file == null ? compiler.compile(functionName, source, options) :
+                    compiler.compile(functionName, file, options);
+                result = new CompileResult(name, compiled.code, null, compiled.diagnostics, System.nanoTime() - start);
+            } catch (Exception e) {
+                result = new CompileResult(name, null, e, null, System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -2,39 +2,306 @@ package au.com.ogsoft.yahaml4j;
 
 import org.apache.commons.lang3.StringUtils;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
 /**
- * Provides buffering between the generated code and html contents
+ * Provides buffering between the generated code and html contents. The code is either kept in memory, or written
+ * straight to an Appendable so only the contents that have not been flushed yet are buffered.
  */
 public class CodeBuffer {
 
     private final HamlGenerator generator;
     private final StringBuilder buffer;
     private final StringBuilder outputBuffer;
+    private final Appendable out;
+    // the length of the code written to out
+    private int written;
+    private final List<Integer> lineNumberSites;
+    // the text of the template lines the generated code reports errors against, by line number
+    private final SortedMap<Integer, String> sourceLines = new TreeMap<Integer, String>();
+    // the offset in the generated code, template line and column of the code generated for each node
+    private final List<int[]> sourceMarks;
+    // the static contents flushed before any code, and where they end in the output
+    private String leadingContents;
+    private int leadingContentsEnd;
+    // were the leading contents written as the start of an output statement that carries on after them
+    private boolean leadingContentsOpen;
+    // has an output statement been started that more contents or values can be added to
+    private boolean outputOpen;
+    private boolean trimmedPastStart;
 
     public CodeBuffer(HamlGenerator generator) {
+        this(generator, new StringBuilder(), new StringBuilder());
+    }
+
+    /**
+     * Creates a buffer that generates into the given builders, which are cleared first. The builders can be reused
+     * for another buffer once the output has been taken
+     */
+    public CodeBuffer(HamlGenerator generator, StringBuilder outputBuffer, StringBuilder buffer) {
         this.generator = generator;
-        outputBuffer = new StringBuilder();
-        buffer = new StringBuilder();
+        this.outputBuffer = outputBuffer;
+        this.buffer = buffer;
+        this.out = null;
+        outputBuffer.setLength(0);
+        buffer.setLength(0);
+        lineNumberSites = new ArrayList<Integer>();
+        sourceMarks = new ArrayList<int[]>();
+    }
+
+    /**
+     * Creates a buffer that writes the code to out as it is generated, buffering the contents in the given builder,
+     * which is cleared first. The offsets of the line numbers are not recorded, and the code can not be read back.
+     */
+    public CodeBuffer(HamlGenerator generator, Appendable out, StringBuilder buffer) {
+        this.generator = generator;
+        this.outputBuffer = null;
+        this.buffer = buffer;
+        this.out = out;
+        buffer.setLength(0);
+        lineNumberSites = new ArrayList<Integer>(0);
+        sourceMarks = new ArrayList<int[]>(0);
+    }
+
+    /**
+     * Is the code written to an Appendable instead of being kept in memory
+     */
+    public boolean isStreaming() {
+        return out != null;
     }
 
     public void appendToOutputBuffer(String s) {
         if (StringUtils.isNoneEmpty(s)) {
             flush();
-            outputBuffer.append(s);
+            write(s);
         }
     }
 
+    /**
+     * Flushes the contents to the code and ends any output statement, so code can be appended after it
+     */
     void flush() {
-        if (buffer.length() > 0) {
-            outputBuffer.append(generator.generateFlush(buffer.toString()));
+        if (outputOpen) {
+            flushContents();
+            write(generator.generateOutputEnd());
+            outputOpen = false;
+        } else if (buffer.length() > 0) {
+            String code;
+            if (length() == 0) {
+                leadingContents = buffer.toString();
+                code = generator.generateFlush(leadingContents);
+                write(code);
+                leadingContentsEnd = length();
+            } else {
+                code = generator.generateFlush(buffer.toString());
+                write(code);
+            }
         }
         buffer.delete(0, buffer.length());
     }
 
+    /**
+     * Adds the contents to the output statement, starting one if there is not one open
+     */
+    private void flushContents() {
+        if (buffer.length() > 0) {
+            String contents = buffer.toString();
+            if (outputOpen) {
+                write(generator.generateOutputSeparator() + generator.generateString(contents));
+            } else {
+                boolean leading = length() == 0;
+                write(generator.generateOutputStart() + generator.generateString(contents));
+                if (leading) {
+                    leadingContents = contents;
+                    leadingContentsEnd = length();
+                    leadingContentsOpen = true;
+                }
+                outputOpen = true;
+            }
+            buffer.delete(0, buffer.length());
+        }
+    }
+
+    /**
+     * Starts a value that is added to the output in the same statement as the contents before and after it. The
+     * code for the value is appended with appendToOutputExpression and appendLineNumber, and must be an expression
+     */
+    public void startOutputExpression() {
+        flushContents();
+        write(outputOpen ? generator.generateOutputSeparator() : generator.generateOutputStart());
+        outputOpen = true;
+    }
+
+    public void appendToOutputExpression(String code) {
+        write(code);
+    }
+
+    private void write(String code) {
+        if (out == null) {
+            outputBuffer.append(code);
+        } else {
+            write(code, 0, code.length());
+        }
+    }
+
+    private void write(CharSequence code, int start, int end) {
+        if (out == null) {
+            outputBuffer.append(code, start, end);
+        } else {
+            try {
+                out.append(code, start, end);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to write the generated code", e);
+            }
+            written += end - start;
+        }
+    }
+
+    /**
+     * Appends a template line number to the generated code. The offsets of line numbers are recorded so code that
+     * has been generated can be moved to another line of the template
+     */
+    public void appendLineNumber(int lineNumber) {
+        if (buffer.length() > 0) {
+            flush();
+        }
+        if (out == null) {
+            lineNumberSites.add(outputBuffer.length());
+            outputBuffer.append(lineNumber);
+        } else {
+            String code = Integer.toString(lineNumber);
+            write(code);
+        }
+    }
+
+    /**
+     * Returns the offsets in the generated code of all the line numbers appended to it
+     */
+    public List<Integer> getLineNumberSites() {
+        return lineNumberSites;
+    }
+
+    /**
+     * Records the text of a template line, so it is only put into the generated code once however many times the
+     * code refers to it
+     */
+    public void addSourceLine(int lineNumber, String line) {
+        sourceLines.put(lineNumber, line);
+    }
+
+    public void addSourceLines(SortedMap<Integer, String> lines) {
+        sourceLines.putAll(lines);
+    }
+
+    /**
+     * Returns the text of the template lines recorded with addSourceLine, by line number
+     */
+    public SortedMap<Integer, String> getSourceLines() {
+        return sourceLines;
+    }
+
+    /**
+     * Records that the code generated next comes from the given line and character of the template. Any contents
+     * not flushed yet are written to the same line of code. Nothing is recorded for code written to an Appendable
+     */
+    public void markSource(int lineNumber, int characterNumber) {
+        if (out == null) {
+            sourceMarks.add(new int[] { outputBuffer.length(), lineNumber, characterNumber });
+        }
+    }
+
+    /**
+     * Returns the offset in the generated code, the template line and the character of each mark, in order
+     */
+    public List<int[]> getSourceMarks() {
+        return sourceMarks;
+    }
+
     public String output() {
+        checkNotStreaming();
         return outputBuffer.toString();
     }
 
+    /**
+     * Returns the generated code between the start and end offsets
+     */
+    public String output(int start, int end) {
+        checkNotStreaming();
+        return outputBuffer.substring(start, end);
+    }
+
+    private void checkNotStreaming() {
+        if (out != null) {
+            throw new IllegalStateException("The generated code has been written out and can not be read back");
+        }
+    }
+
+    /**
+     * Returns the length of the generated code, not including any buffered contents
+     */
+    public int length() {
+        return out == null ? outputBuffer.length() : written;
+    }
+
+    /**
+     * Appends the code generated into another buffer as if it had been generated into this one. The static contents
+     * before the first code and after the last code in the other buffer are merged with the contents of this buffer.
+     */
+    public void append(CodeBuffer other) {
+        other.checkNotStreaming();
+        append(other.leadingContents);
+        if (other.leadingContentsEnd < other.outputBuffer.length()) {
+            if (other.leadingContentsOpen) {
+                // the code carries on the output statement the leading contents were written into
+                flushContents();
+            } else {
+                flush();
+            }
+            if (out == null) {
+                int offset = outputBuffer.length() - other.leadingContentsEnd;
+                for (Integer site: other.lineNumberSites) {
+                    lineNumberSites.add(site + offset);
+                }
+                for (int[] mark: other.sourceMarks) {
+                    sourceMarks.add(new int[] { mark[0] + offset, mark[1], mark[2] });
+                }
+            }
+            write(other.outputBuffer, other.leadingContentsEnd, other.outputBuffer.length());
+            outputOpen = other.outputOpen;
+        }
+        sourceLines.putAll(other.sourceLines);
+        append(other.buffer.toString());
+    }
+
+    /**
+     * Discards the code and contents generated so far, so the code can be generated again from the start
+     */
+    public void restart() {
+        checkNotStreaming();
+        outputBuffer.setLength(0);
+        buffer.setLength(0);
+        lineNumberSites.clear();
+        sourceLines.clear();
+        sourceMarks.clear();
+        leadingContents = null;
+        leadingContentsEnd = 0;
+        leadingContentsOpen = false;
+        outputOpen = false;
+        trimmedPastStart = false;
+    }
+
+    /**
+     * Has whitespace been trimmed back to the start of the buffer before any code was generated. The whitespace
+     * would also have been trimmed from any contents before it, so the buffer can not be appended to another one.
+     */
+    public boolean trimmedPastStart() {
+        return trimmedPastStart;
+    }
+
     public void append(String str) {
         if (generator != null && buffer.length() == 0) {
             generator.mark();
@@ -45,6 +312,17 @@ public class CodeBuffer {
         }
     }
 
+    /**
+     * Appends part of the text to the contents without copying it to a string first
+     */
+    public void append(CharSequence text, int start, int end) {
+        if (generator != null && buffer.length() == 0) {
+            generator.mark();
+        }
+
+        buffer.append(text, start, end);
+    }
+
     public void trimWhitespace() {
         if (buffer.length() > 0) {
             int i = buffer.length() - 1;
@@ -58,11 +336,16 @@ public class CodeBuffer {
                     break;
                 }
             }
+            if (i <= 1 && length() == 0) {
+                trimmedPastStart = true;
+            }
             if (i > 0 && i < buffer.length() - 1) {
                 buffer.delete(i + 1, buffer.length());
             } else if (i == 0 && _isWhitespace(buffer.charAt(0))) {
                 buffer.delete(0, buffer.length());
             }
+        } else if (length() == 0) {
+            trimmedPastStart = true;
         }
     }
 
@@ -0,0 +1,29 @@
+package au.com.ogsoft.yahaml4j;
+
+/**
+ * Result of compiling one template in a bulk compile. Either the code or the error is set. The diagnostics hold any
+ * errors found with fault tolerance on
+ */
+public class CompileResult {
+
+    public final String name;
+    public final String code;
+    public final Exception error;
+    public final Diagnostics diagnostics;
+    /**
+     * Time taken to compile the template, in nanoseconds
+     */
+    public final long compileTime;
+
+    public CompileResult(String name, String code, Exception error, Diagnostics diagnostics, long compileTime) {
+        this.name = name;
+        this.code = code;
+        this.error = error;
+        this.diagnostics = diagnostics;
+        this.compileTime = compileTime;
+    }
+
+    public boolean failed() {
+        return error != null;
+    }
+}
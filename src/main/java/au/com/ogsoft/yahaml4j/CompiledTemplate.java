@@ -0,0 +1,43 @@
+package au.com.ogsoft.yahaml4j;
+
+/**
+ * The code generated for a template, along with the errors found in it when compiled with fault tolerance on and
+ * the variables it reads from its context. The source map is only generated if it was asked for. A template with no
+ * code in it always renders the same HTML, which is worked out when it is compiled
+ */
+public class CompiledTemplate {
+
+    public final String code;
+    public final Diagnostics diagnostics;
+    public final TemplateVariables variables;
+    public final String sourceMap;
+    /**
+     * The HTML the template renders if it has no code in it, so it can be used without running the code. Null if
+     * the template has code
+     */
+    public final String html;
+
+    public CompiledTemplate(String code, Diagnostics diagnostics, TemplateVariables variables) {
+        this(code, diagnostics, variables, null);
+    }
+
+    public CompiledTemplate(String code, Diagnostics diagnostics, TemplateVariables variables, String sourceMap) {
+        this(code, diagnostics, variables, sourceMap, null);
+    }
+
+    public CompiledTemplate(String code, Diagnostics diagnostics, TemplateVariables variables, String sourceMap,
+                            String html) {
+        this.code = code;
+        this.diagnostics = diagnostics;
+        this.variables = variables;
+        this.sourceMap = sourceMap;
+        this.html = html;
+    }
+
+    /**
+     * Does the template render the same HTML every time
+     */
+    public boolean isStatic() {
+        return html != null;
+    }
+}
@@ -0,0 +1,56 @@
+package au.com.ogsoft.yahaml4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collects the errors found in a template compiled with fault tolerance on. Only the first maxErrors errors are
+ * kept, but all of them are counted
+ */
+public class Diagnostics {
+
+    private final int maxErrors;
+    private final List<TemplateDiagnostic> errors = new ArrayList<TemplateDiagnostic>();
+    private int errorCount;
+
+    public Diagnostics() {
+        this(0);
+    }
+
+    /**
+     * @param maxErrors Most errors to keep, or 0 to keep them all
+     */
+    public Diagnostics(int maxErrors) {
+        this.maxErrors = maxErrors;
+    }
+
+    public void add(ParsePoint parsePoint, String message) {
+        errorCount++;
+        if (maxErrors <= 0 || errors.size() < maxErrors) {
+            errors.add(new TemplateDiagnostic(parsePoint, message));
+        }
+    }
+
+    public List<TemplateDiagnostic> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    /**
+     * Returns the number of errors found, including any that were not kept
+     */
+    public int getErrorCount() {
+        return errorCount;
+    }
+
+    public boolean hasErrors() {
+        return errorCount > 0;
+    }
+
+    /**
+     * Were some of the errors not kept because there were more than maxErrors of them
+     */
+    public boolean isTruncated() {
+        return errorCount > errors.size();
+    }
+}
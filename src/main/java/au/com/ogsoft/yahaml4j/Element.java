@@ -1,12 +0,0 @@
-package au.com.ogsoft.yahaml4j;
-
-public class Element {
-
-    public boolean htmlComment;
-    public boolean htmlConditionalComment;
-    public boolean block;
-    public boolean fnBlock;
-    public TagOptions tagOptions;
-    public String eol;
-    public String tag;
-}
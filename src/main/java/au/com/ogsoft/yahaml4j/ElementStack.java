@@ -0,0 +1,135 @@
+package au.com.ogsoft.yahaml4j;
+
+import au.com.ogsoft.yahaml4j.ast.CodeNode;
+import au.com.ogsoft.yahaml4j.ast.CommentNode;
+import au.com.ogsoft.yahaml4j.ast.ElementNode;
+import au.com.ogsoft.yahaml4j.ast.Node;
+
+import java.util.Arrays;
+
+/**
+ * Stack of the open elements, comments and code blocks, indexed by indent level. The entries are kept in arrays that
+ * are reused from template to template, so opening and closing elements does not allocate anything. The parser uses
+ * it to work out which node the lines of the template are nested in.
+ */
+public class ElementStack {
+
+    private static final int ELEMENT = 1;
+    private static final int HTML_COMMENT = 2;
+    private static final int HTML_CONDITIONAL_COMMENT = 3;
+    private static final int BLOCK = 4;
+    private static final int FUNCTION_BLOCK = 5;
+    private static final int TYPE_MASK = 0x7;
+    private static final int NO_INNER_WHITESPACE = 0x8;
+    private static final int NO_OUTER_WHITESPACE = 0x10;
+
+    private int[] entries = new int[16];
+    private Node[] nodes = new Node[16];
+    private int size;
+
+    /**
+     * Removes all entries from the stack
+     */
+    public void clear() {
+        Arrays.fill(entries, 0, size, 0);
+        Arrays.fill(nodes, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Returns one more than the highest indent that has had an entry, which does not shrink as entries are closed
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Is there an open entry at the indent
+     */
+    public boolean isOpen(int indent) {
+        return indent < size && entries[indent] != 0;
+    }
+
+    public void openElement(int indent, ElementNode element) {
+        set(indent, ELEMENT | (element.innerWhitespace ? 0 : NO_INNER_WHITESPACE) |
+            (element.outerWhitespace ? 0 : NO_OUTER_WHITESPACE), element);
+    }
+
+    public void openHtmlComment(int indent, CommentNode comment) {
+        set(indent, comment.conditional ? HTML_CONDITIONAL_COMMENT : HTML_COMMENT, comment);
+    }
+
+    public void openBlock(int indent, CodeNode block) {
+        set(indent, block.functionBlock ? FUNCTION_BLOCK : BLOCK, block);
+    }
+
+    /**
+     * Removes the entry at the indent
+     */
+    public void close(int indent) {
+        entries[indent] = 0;
+        nodes[indent] = null;
+    }
+
+    public boolean isElement(int indent) {
+        return type(indent) == ELEMENT;
+    }
+
+    public boolean isHtmlComment(int indent) {
+        return type(indent) == HTML_COMMENT;
+    }
+
+    public boolean isHtmlConditionalComment(int indent) {
+        return type(indent) == HTML_CONDITIONAL_COMMENT;
+    }
+
+    public boolean isBlock(int indent) {
+        return type(indent) == BLOCK;
+    }
+
+    public boolean isFunctionBlock(int indent) {
+        return type(indent) == FUNCTION_BLOCK;
+    }
+
+    /**
+     * Returns the node of the open entry at the indent
+     */
+    public Node getNode(int indent) {
+        return indent < size ? nodes[indent] : null;
+    }
+
+    /**
+     * Does the entry at the indent keep the whitespace inside it. Only elements can remove it
+     */
+    public boolean hasInnerWhitespace(int indent) {
+        return (entries[indent] & NO_INNER_WHITESPACE) == 0;
+    }
+
+    /**
+     * Does the entry at the indent keep the whitespace around it. Only elements can remove it
+     */
+    public boolean hasOuterWhitespace(int indent) {
+        return (entries[indent] & NO_OUTER_WHITESPACE) == 0;
+    }
+
+    private int type(int indent) {
+        return indent < size ? entries[indent] & TYPE_MASK : 0;
+    }
+
+    private void set(int indent, int entry, Node node) {
+        if (indent >= entries.length) {
+            int length = Math.max(entries.length * 2, indent + 1);
+            entries = Arrays.copyOf(entries, length);
+            nodes = Arrays.copyOf(nodes, length);
+        }
+        entries[indent] = entry;
+        nodes[indent] = node;
+        if (indent >= size) {
+            size = indent + 1;
+        }
+    }
+}
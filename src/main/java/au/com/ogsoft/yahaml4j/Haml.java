@@ -1,14 +1,17 @@
 package au.com.ogsoft.yahaml4j;
 
+import au.com.ogsoft.yahaml4j.ast.TemplateNode;
 import au.com.ogsoft.yahaml4j.filters.*;
-import org.apache.commons.collections4.keyvalue.DefaultMapEntry;
-import org.apache.commons.lang3.StringUtils;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import javax.script.ScriptException;
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * HAML compiler for the JVM
@@ -19,24 +22,30 @@ import java.util.*;
  */
 class Haml {
 
-    private static final Logger LOGGER = LoggerFactory.getLogger(Haml.class);
-    private static final List<String> SELF_CLOSING_TAGS = Arrays.asList("meta", "img", "link", "script", "br", "hr");
+    // top level blocks are joined into a few segments per thread when compiling in parallel, to balance the load
+    // without paying the overhead of a task for each block
+    private static final int SEGMENTS_PER_THREAD = 4;
 
+    // only set when a generator is given, otherwise a JavascriptGenerator is created for each compile
     private HamlGenerator generator;
-    private Tokeniser tokeniser;
     private Map<String, Filter> filters = new HashMap<String, Filter>();
+    private Map<String, CompiledSegments> compiledSegments = new HashMap<String, CompiledSegments>();
 
     public Haml() {
 
     }
 
+
     public void setupStandardFilters() {
-        filters.put("plain", new PlainFilter());
-        filters.put("javascript", new JavascriptFilter());
-        filters.put("css", new CssFilter());
-        filters.put("cdata", new CDataFilter());
-        filters.put("preserve", new PreserveFilter());
-        filters.put("escaped", new EscapedFilter());
+        filters.putAll(standardFilters());
+    }
+
+    /**
+     * Returns a new map of the standard filters and any other filters registered as services, by name. The filters
+     * are shared, so the output of the pure ones is only generated once for the same contents
+     */
+    static Map<String, Filter> standardFilters() {
+        return new HashMap<String, Filter>(FilterLoader.defaultFilters());
     }
 
     Map<String, Filter> getFilters() {
@@ -51,660 +60,360 @@ class Haml {
      * @return Rendered template
      */
     public String compileHaml(String name, String haml, HamlOptions options) throws ScriptException, IOException {
-        HamlOptions opt = options == null ? new HamlOptions() : options;
-        tokeniser = new Tokeniser(name, haml);
-
-        if (generator == null) {
-            setGenerator(new JavascriptGenerator(name, opt));
-        }
-
-        return compile(tokeniser, generator, opt);
+        return compileHaml(new Tokeniser(name, haml), name, options);
     }
 
-    public HamlGenerator getGenerator() {
-        return generator;
+    /**
+     * Writes the code for the provided HAML template to out as it is generated. Only the static contents that have
+     * not been flushed to the code yet are buffered
+     * @param name Template name
+     * @param haml HAML source in string form
+     * @param options Options, can be null
+     * @param out Where to write the generated code
+     */
+    public void compileHaml(String name, String haml, HamlOptions options, Appendable out) {
+        compileHaml(new Tokeniser(name, haml), name, options, out);
     }
 
-    public void setGenerator(HamlGenerator generator) {
-        this.generator = generator;
+    /**
+     * Writes the code for the HAML template read from the provided reader to out as it is generated
+     * @param name Template name
+     * @param haml Reader for the HAML source
+     * @param options Options, can be null
+     * @param out Where to write the generated code
+     */
+    public void compileHaml(String name, Reader haml, HamlOptions options, Appendable out) {
+        compileHaml(new Tokeniser(name, new StreamingSourceBuffer(haml)), name, options, out);
     }
 
-    private String compile(Tokeniser tokeniser, HamlGenerator generator, HamlOptions options) {
-
-        generator.initElementStack();
-        generator.initOutput();
-
-        //  HAML -> WS* (
-        //            TEMPLATELINE
-        //            | DOCTYPE
-        //            | IGNOREDLINE
-        //            | EMBEDDEDCODE
-        //            | CODE
-        //            | COMMENTLINE
-        //          )* EOF
-
-        tokeniser.getNextToken();
-        while (tokeniser.getToken().type != Token.TokenType.EOF) {
-            if (tokeniser.getToken().type != Token.TokenType.EOL) {
-                Integer indent = null;
-                try {
-                    indent = _whitespace(tokeniser);
-                    generator.setIndent(indent);
-
-                    if (tokeniser.getToken().type == Token.TokenType.EOL) {
-                        generator.getOutputBuffer().append(HamlRuntime.indentText(indent) + tokeniser.getToken().getMatched());
-                        tokeniser.getNextToken();
-                    } else if (tokeniser.getToken().type == Token.TokenType.DOCTYPE) {
-                        _doctype(tokeniser, indent, generator);
-                    } else if (tokeniser.getToken().type == Token.TokenType.EQUAL ||
-                            tokeniser.getToken().type == Token.TokenType.ESCAPEHTML ||
-                            tokeniser.getToken().type == Token.TokenType.UNESCAPEHTML ||
-                            tokeniser.getToken().type == Token.TokenType.TILDE) {
-                        TagOptions tagOptions = new TagOptions();
-                        tagOptions.innerWhitespace = true;
-                        _embeddedCode(tokeniser, indent, generator.getElementStack(), tagOptions, generator);
-                    } else if (tokeniser.getToken().type == Token.TokenType.MINUS) {
-                        _codeLine(tokeniser, indent, generator.getElementStack(), generator);
-                    } else if (tokeniser.getToken().type == Token.TokenType.COMMENT || tokeniser.getToken().type == Token.TokenType.SLASH) {
-                        _commentLine(tokeniser, indent, generator.getElementStack(), generator);
-                    } else if (tokeniser.getToken().type == Token.TokenType.AMP) {
-                        _escapedLine(tokeniser, indent, generator.getElementStack(), generator);
-                    } else if (tokeniser.getToken().type == Token.TokenType.FILTER) {
-                        _filter(tokeniser, indent, generator, options);
-                    } else {
-                        _templateLine(tokeniser, generator.getElementStack(), indent, generator, options);
-                    }
-                } catch (Exception e) {
-                    ErrorOptions errorOptions = new ErrorOptions();
-                    errorOptions.skipTo = indent;
-                    _handleError(options, errorOptions, tokeniser, e);
-                }
-
-            } else {
-                generator.getOutputBuffer().append(tokeniser.getToken().getMatched());
-                tokeniser.getNextToken();
-            }
-        }
-
-        _closeElements(0, generator.getElementStack(), tokeniser, generator);
-
-        return generator.closeAndReturnOutput();
+    /**
+     * Compiles the provided HAML template. With fault tolerance on, the errors found in the template are returned
+     * with the code instead of being logged
+     * @param name Template name
+     * @param haml HAML source in string form
+     * @param options Options, can be null
+     * @return Generated code, the errors found and the source map if one was asked for
+     */
+    public CompiledTemplate compile(String name, String haml, HamlOptions options) {
+        HamlOptions opt = options == null ? new HamlOptions() : options;
+        HamlGenerator generator = generatorFor(name, opt);
+        Diagnostics diagnostics = new Diagnostics(opt.maxErrors);
+        TemplateNode template = new HamlParser(generator, filters).parse(name, new Tokeniser(name, haml), opt, diagnostics);
+        TemplateVariables variables = TemplateVariables.of(template);
+        String code = generate(generator, template, variables);
+        String sourceMap = opt.sourceMap ? SourceMap.generate(name + ".js", name, code,
+            generator.getOutputBuffer().getSourceMarks()) : null;
+        return new CompiledTemplate(code, diagnostics, variables, sourceMap, generator.getStaticOutput());
     }
 
-    private void _filter(Tokeniser tokeniser, Integer indent, HamlGenerator generator, HamlOptions options) {
-        if (tokeniser.getToken().type == Token.TokenType.FILTER) {
-            String filter = tokeniser.getToken().getTokenString();
-            if (!filters.containsKey(filter)) {
-                ErrorOptions errorOptions = new ErrorOptions();
-                errorOptions.skipTo = indent;
-                _handleError(options, errorOptions, tokeniser, new RuntimeException(tokeniser.parseError(
-                        "Filter \"" + filter + "\" not registered. Filter functions need to be added to the \"filters\" map.")));
-                return;
-            }
+    /**
+     * Renders the HAML template read from the provided reader. The source is read through a sliding window, so
+     * the template does not need to be loaded into memory first
+     * @param name Template name
+     * @param haml Reader for the HAML source
+     * @param options Options, can be null
+     * @return Rendered template
+     */
+    public String compileHaml(String name, Reader haml, HamlOptions options) throws ScriptException, IOException {
+        return compileHaml(new Tokeniser(name, new StreamingSourceBuffer(haml)), name, options);
+    }
 
-            tokeniser.skipToEOLorEOF();
-            tokeniser.getNextToken();
-            int i = _whitespace(tokeniser);
-            List<String> filterBlock = new ArrayList<String>();
-            while (tokeniser.getToken().type != Token.TokenType.EOF && i > indent) {
-                tokeniser.pushBackToken();
-                String line = tokeniser.skipToEOLorEOF();
-                filterBlock.add(line.substring(2 * indent));
-                tokeniser.getNextToken();
-                i = _whitespace(tokeniser);
-            }
-            filters.get(filter).execute(filterBlock, generator, indent, tokeniser.currentParsePoint());
-            tokeniser.pushBackToken();
+    /**
+     * Renders the HAML template in the provided UTF-8 encoded file
+     * @param name Template name
+     * @param haml Path to the HAML source
+     * @param options Options, can be null
+     * @return Rendered template
+     */
+    public String compileHaml(String name, Path haml, HamlOptions options) throws ScriptException, IOException {
+        Reader reader = Files.newBufferedReader(haml, StandardCharsets.UTF_8);
+        try {
+            return compileHaml(name, reader, options);
+        } finally {
+            reader.close();
         }
     }
 
-    private void _doctype(Tokeniser tokeniser, Integer indent, HamlGenerator generator) {
-        if (tokeniser.getToken().type == Token.TokenType.DOCTYPE) {
-            generator.getOutputBuffer().append(HamlRuntime.indentText(indent));
-            tokeniser.getNextToken();
-            if (tokeniser.getToken().type == Token.TokenType.WS) {
-                tokeniser.getNextToken();
-            }
-            String contents = tokeniser.skipToEOLorEOF();
-            if (StringUtils.isNotEmpty(contents)) {
-                String[] params = contents.split("\\s+");
-                if ("XML".equals(params[0])) {
-                    if (params.length > 1) {
-                        generator.getOutputBuffer().append("<?xml version=\"1.0\" encoding=\"" + params[1] + "\" ?>");
-                    } else {
-                        generator.getOutputBuffer().append("<?xml version=\"1.0\" encoding=\"utf-8\" ?>");
-                    }
-                } else if ("Strict".equals(params[0])) {
-                    generator.getOutputBuffer().append("<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Strict//EN\" \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-strict.dtd\">");
-                } else if ("Frameset".equals(params[0])) {
-                    generator.getOutputBuffer().append("<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Frameset//EN\" \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-frameset.dtd\">");
-                } else if ("5".equals(params[0])) {
-                    generator.getOutputBuffer().append("<!DOCTYPE html>");
-                } else if ("1.1".equals(params[0])) {
-                    generator.getOutputBuffer().append("<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.1//EN\" \"http://www.w3.org/TR/xhtml11/DTD/xhtml11.dtd\">");
-                } else if ("Basic".equals(params[0])) {
-                    generator.getOutputBuffer().append("<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML Basic 1.1//EN\" \"http://www.w3.org/TR/xhtml-basic/xhtml-basic11.dtd\">");
-                } else if ("Mobile".equals(params[0])) {
-                    generator.getOutputBuffer().append("<!DOCTYPE html PUBLIC \"-//WAPFORUM//DTD XHTML Mobile 1.2//EN\" \"http://www.openmobilealliance.org/tech/DTD/xhtml-mobile12.dtd\">");
-                } else if ("RDFa".equals(params[0])) {
-                    generator.getOutputBuffer().append("<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML+RDFa 1.0//EN\" \"http://www.w3.org/MarkUp/DTD/xhtml-rdfa-1.dtd\">");
-                }
-            } else {
-                generator.getOutputBuffer().append("<!DOCTYPE html>");
+    /**
+     * Renders the provided HAML template, parsing and generating the code for its top level blocks in parallel on
+     * the fork-join pool. The generated code is the same as with compileHaml on a single thread, except that the
+     * production option is ignored
+     * @param name Template name
+     * @param haml HAML source in string form
+     * @param options Options, can be null
+     * @param pool Pool to compile the top level blocks on
+     * @return Rendered template
+     */
+    public String compileHaml(String name, String haml, HamlOptions options, ForkJoinPool pool) {
+        HamlOptions opt = withoutProduction(options);
+        HamlGenerator generator = generatorFor(name, opt);
+
+        List<CompileSegment> tasks = new ArrayList<CompileSegment>();
+        List<TemplateSegment> segments = TemplateSegment.split(haml);
+        for (TemplateSegment segment: TemplateSegment.join(segments, pool.getParallelism() * SEGMENTS_PER_THREAD)) {
+            CompileSegment task = new CompileSegment(name, segment, opt, generator.newInstance());
+            tasks.add(task);
+            pool.execute(task);
+        }
+
+        // parse errors are raised first, the same as when the whole template is parsed before generating any code
+        for (CompileSegment task: tasks) {
+            task.join();
+            if (task.parseError != null) {
+                throw task.parseError;
             }
-            generator.getOutputBuffer().append(_newline(tokeniser));
-            tokeniser.getNextToken();
         }
-    }
 
-    private void _embeddedCode(Tokeniser tokeniser, Integer indent, List<Element> elementStack, TagOptions tagOptions, HamlGenerator generator) {
-        if (elementStack != null && !elementStack.isEmpty()) {
-            _closeElements(indent, elementStack, tokeniser, generator);
+        List<TemplateNode> templates = new ArrayList<TemplateNode>();
+        for (CompileSegment task: tasks) {
+            templates.add(task.template);
         }
-        if (tokeniser.getToken().type == Token.TokenType.EQUAL ||
-                tokeniser.getToken().type == Token.TokenType.ESCAPEHTML ||
-                tokeniser.getToken().type == Token.TokenType.UNESCAPEHTML ||
-                tokeniser.getToken().type == Token.TokenType.TILDE) {
-            boolean escapeHtml = tokeniser.getToken().type == Token.TokenType.ESCAPEHTML ||
-                    tokeniser.getToken().type == Token.TokenType.EQUAL;
-            boolean perserveWhitespace = tokeniser.getToken().type == Token.TokenType.TILDE;
-            ParsePoint currentParsePoint = tokeniser.currentParsePoint();
-            tokeniser.getNextToken();
-            String expression = tokeniser.skipToEOLorEOF();
-            String indentText = HamlRuntime.indentText(indent);
-            if (tagOptions == null || tagOptions.innerWhitespace) {
-                generator.getOutputBuffer().append(indentText);
-            }
-            generator.appendEmbeddedCode(indentText, expression, escapeHtml, perserveWhitespace, currentParsePoint);
-            if (tagOptions == null || tagOptions.innerWhitespace) {
-                generator.getOutputBuffer().append(_newline(tokeniser));
-                if (tokeniser.getToken().type == Token.TokenType.EOL) {
-                    tokeniser.getNextToken();
-                }
-            }
+        // the code of every segment depends on how the output of the whole template is collected
+        OutputProfile profile = OutputProfile.of(templates);
+        List<GenerateSegment> generateTasks = new ArrayList<GenerateSegment>();
+        for (CompileSegment task: tasks) {
+            task.generator.setOutputProfile(profile);
+            GenerateSegment generateTask = new GenerateSegment(task);
+            generateTasks.add(generateTask);
+            pool.execute(generateTask);
         }
-    }
 
-    private void _codeLine(Tokeniser tokeniser, Integer indent, List<Element> elementStack, HamlGenerator generator) {
-        if (tokeniser.getToken().type == Token.TokenType.MINUS) {
-            _closeElements(indent, elementStack, tokeniser, generator);
-            tokeniser.getNextToken();
-            String line = tokeniser.skipToEOLorEOF();
-            generator.setIndent(indent);
-            generator.appendCodeLine(line, _newline(tokeniser));
-            if (tokeniser.getToken().type == Token.TokenType.EOL) {
-                tokeniser.getNextToken();
-            }
-
-            if (generator.lineMatchesStartFunctionBlock(line)) {
-                Element el = new Element();
-                el.fnBlock = true;
-                elementStack.set(indent, el);
-            } else if (generator.lineMatchesStartBlock(line)) {
-                Element el = new Element();
-                el.block = true;
-                elementStack.set(indent, el);
+        generator.setTemplateVariables(TemplateVariables.of(templates));
+        generator.setOutputProfile(profile);
+        generator.initOutput();
+        CodeBuffer output = generator.getOutputBuffer();
+        for (GenerateSegment generateTask: generateTasks) {
+            generateTask.join();
+        }
+        for (CompileSegment task: tasks) {
+            if (task.generateError != null) {
+                throw task.generateError;
+            } else if (task.generator.getOutputBuffer().trimmedPastStart()) {
+                generator.generate(task.template);
+            } else {
+                output.append(task.generator.getOutputBuffer());
             }
         }
+        return generator.closeAndReturnOutput();
     }
 
-    private void _escapedLine(Tokeniser tokeniser, Integer indent, List<Element> elementStack, HamlGenerator generator) {
-        if (tokeniser.getToken().type == Token.TokenType.AMP) {
-            _closeElements(indent, elementStack, tokeniser, generator);
-            generator.getOutputBuffer().append(HamlRuntime.indentText(indent));
-            tokeniser.getNextToken();
-            String contents = tokeniser.skipToEOLorEOF();
-            if (StringUtils.isNotEmpty(contents)) {
-                generator.getOutputBuffer().append(HamlRuntime.escapeHTML(contents));
-            }
-            generator.getOutputBuffer().append(_newline(tokeniser));
-            tokeniser.getNextToken();
-        }
+    /**
+     * Renders a template that has already been parsed with parseHaml
+     * @param template Parsed template
+     * @param options Options, can be null
+     * @return Rendered template
+     */
+    public String compileHaml(TemplateNode template, HamlOptions options) {
+        HamlOptions opt = options == null ? new HamlOptions() : options;
+        return generate(generatorFor(template.name, opt), template);
     }
 
-    private void _commentLine(Tokeniser tokeniser, Integer indent, List<Element> elementStack, HamlGenerator generator) {
-        if (tokeniser.getToken().type == Token.TokenType.COMMENT) {
-            tokeniser.skipToEOLorEOF();
-            tokeniser.getNextToken();
-            int i = _whitespace(tokeniser);
-            while (tokeniser.getToken().type != Token.TokenType.EOF && i > indent) {
-                tokeniser.skipToEOLorEOF();
-                tokeniser.getNextToken();
-                i = _whitespace(tokeniser);
-            }
-            if (i > 0) {
-                tokeniser.pushBackToken();
-            }
-        } else if (tokeniser.getToken().type == Token.TokenType.SLASH) {
-            _closeElements(indent, elementStack, tokeniser, generator);
-            generator.getOutputBuffer().append(HamlRuntime.indentText(indent));
-            generator.getOutputBuffer().append("<!--");
-            tokeniser.getNextToken();
-            String contents = tokeniser.skipToEOLorEOF();
-
-            if (StringUtils.isNotEmpty(contents)) {
-                generator.getOutputBuffer().append(contents);
-            }
-
-            if (StringUtils.isNotEmpty(contents) && contents.startsWith("[") && contents.matches(".*\\]\\s*$")) {
-                Element el = new Element();
-                el.htmlConditionalComment = true;
-                el.eol = _newline(tokeniser);
-                elementStack.set(indent, el);
-                generator.getOutputBuffer().append(">");
-            } else {
-                Element el = new Element();
-                el.htmlComment = true;
-                el.eol = _newline(tokeniser);
-                elementStack.set(indent, el);
-            }
+    private String compileHaml(Tokeniser tokeniser, String name, HamlOptions options) {
+        HamlOptions opt = options == null ? new HamlOptions() : options;
+        HamlGenerator generator = generatorFor(name, opt);
+        return generate(generator, new HamlParser(generator, filters).parse(name, tokeniser, opt));
+    }
 
-            if (_tagHasContents(indent, tokeniser)) {
-                generator.getOutputBuffer().append("\n");
-            }
-            tokeniser.getNextToken();
-        }
+    private void compileHaml(Tokeniser tokeniser, String name, HamlOptions options, Appendable out) {
+        HamlOptions opt = options == null ? new HamlOptions() : options;
+        HamlGenerator generator = generatorFor(name, opt);
+        TemplateNode template = new HamlParser(generator, filters).parse(name, tokeniser, opt);
+        generator.setTemplateVariables(TemplateVariables.of(template));
+        generator.setOutputProfile(OutputProfile.of(template));
+        generator.initOutput(out);
+        generator.generate(template);
+        generator.closeOutput();
     }
 
-    private void _handleError(HamlOptions options, ErrorOptions errorOptions, Tokeniser tokeniser, Exception error) {
-        if (options != null && options.tolerateFaults) {
-            LOGGER.error(error.getLocalizedMessage(), error);
-            if (errorOptions != null && errorOptions.skipTo != null) {
-                _skipToNextLineWithIndent(tokeniser, errorOptions.skipTo);
-            }
-        } else {
-            if (error instanceof RuntimeException) {
-                throw (RuntimeException) error;
-            } else {
-                throw new RuntimeException(error);
-            }
-        }
+    private static String generate(HamlGenerator generator, TemplateNode template) {
+        return generate(generator, template, TemplateVariables.of(template));
     }
 
-    private void _skipToNextLineWithIndent(Tokeniser tokeniser, int indent) {
-        tokeniser.skipToEOLorEOF();
-        tokeniser.getNextToken();
-        int lineIndent = _whitespace(tokeniser);
-        while (lineIndent > indent) {
-            tokeniser.skipToEOLorEOF();
-            tokeniser.getNextToken();
-            lineIndent = _whitespace(tokeniser);
-        }
-        tokeniser.pushBackToken();
+    private static String generate(HamlGenerator generator, TemplateNode template, TemplateVariables variables) {
+        generator.setTemplateVariables(variables);
+        generator.setOutputProfile(OutputProfile.of(template));
+        generator.initOutput();
+        generator.generate(template);
+        return generator.closeAndReturnOutput();
     }
 
     /**
-     * TEMPLATELINE -> ([ELEMENT][IDSELECTOR][CLASSSELECTORS][ATTRIBUTES] [SLASH|CONTENTS])|(!CONTENTS) (EOL|EOF)
+     * Parses the provided HAML template. The parsed template does not change, so it can be kept and rendered with
+     * compileHaml as often as needed
+     * @param name Template name
+     * @param haml HAML source in string form
+     * @param options Options, can be null
+     * @return Parsed template
      */
-    private void _templateLine(Tokeniser tokeniser, List<Element> elementStack, int indent, HamlGenerator generator,
-                               HamlOptions options) {
-
-        if (tokeniser.getToken().type != Token.TokenType.EOL) {
-            _closeElements(indent, elementStack, tokeniser, generator);
-        }
-
-        String identifier = _element(tokeniser);
-        String id = _idSelector(tokeniser);
-        List<String> classes = _classSelector(tokeniser);
-        String objectRef = _objectReference(tokeniser);
-        Map<String, String> attrList = _attributeList(tokeniser, options);
-
-        ParsePoint currentParsePoint = tokeniser.currentParsePoint();
-        Map<String, String> attributesHash = _attributeHash(tokeniser, options);
-
-        TagOptions tagOptions = new TagOptions();
-        tagOptions.selfClosingTag = false;
-        tagOptions.innerWhitespace = true;
-        tagOptions.outerWhitespace = true;
-        boolean lineHasElement = _lineHasElement(identifier, id, classes);
-
-        if (tokeniser.getToken().type == Token.TokenType.SLASH) {
-            tagOptions.selfClosingTag = true;
-            tokeniser.getNextToken();
-        }
-        if (tokeniser.getToken().type == Token.TokenType.GT && lineHasElement) {
-            tagOptions.outerWhitespace = false;
-            tokeniser.getNextToken();
-        }
-        if (tokeniser.getToken().type == Token.TokenType.LT && lineHasElement) {
-            tagOptions.innerWhitespace = false;
-            tokeniser.getNextToken();
-        }
-
-        if (lineHasElement) {
-            if (!tagOptions.selfClosingTag) {
-                tagOptions.selfClosingTag = _isSelfClosingTag(identifier) && !_tagHasContents(indent, tokeniser);
-            }
-            _openElement(currentParsePoint, indent, identifier, id, classes, objectRef, attrList, attributesHash, elementStack,
-                tagOptions, generator);
-        }
-
-        boolean hasContents;
-        if (tokeniser.getToken().type == Token.TokenType.WS) {
-            tokeniser.getNextToken();
-        }
-
-        if (tokeniser.getToken().type == Token.TokenType.EQUAL || tokeniser.getToken().type == Token.TokenType.ESCAPEHTML
-                || tokeniser.getToken().type == Token.TokenType.UNESCAPEHTML) {
-            _embeddedCode(tokeniser, indent + 1, null, tagOptions, generator);
-            hasContents = true;
-        } else {
-            String contents;
-            boolean shouldInterpolate = false;
-            if (tokeniser.getToken().type == Token.TokenType.EXCLAMATION) {
-                tokeniser.getNextToken();
-                contents = tokeniser.skipToEOLorEOF();
-            } else {
-                contents = tokeniser.skipToEOLorEOF();
-                if (contents.startsWith("\\")) {
-                    contents = contents.substring(1);
-                }
-                shouldInterpolate = true;
-            }
-
-            hasContents = StringUtils.isNotEmpty(contents);
-            String indentText = "";
-            if (hasContents) {
-                if (tagOptions.innerWhitespace && lineHasElement || (!lineHasElement && _parentInnerWhitespace(elementStack, indent))) {
-                    indentText = HamlRuntime.indentText(identifier.length() > 0 ? indent + 1 : indent);
-                } else {
-                    contents = StringUtils.trim(contents);
-                }
-                generator.appendTextContents(indentText + contents, shouldInterpolate, currentParsePoint, null);
-                generator.getOutputBuffer().append(_newline(tokeniser));
-            }
-
-            _eolOrEof(tokeniser);
-        }
-
-        if (tagOptions.selfClosingTag && hasContents) {
-            _handleError(options, null, tokeniser, new RuntimeException(HamlRuntime.templateError(
-                currentParsePoint.lineNumber, currentParsePoint.characterNumber,
-                currentParsePoint.currentLine, "A self-closing tag can not have any contents")));
-        }
-    }
-
-    private String _objectReference(Tokeniser tokeniser) {
-        String attr = "";
-        if (tokeniser.getToken().type == Token.TokenType.OBJECTREF) {
-            attr = tokeniser.getToken().getTokenString();
-            tokeniser.getNextToken();
-        }
-        return attr;
+    public TemplateNode parseHaml(String name, String haml, HamlOptions options) {
+        return parseHaml(new Tokeniser(name, haml), name, options);
     }
 
-    // ATTRIBUTES -> ( ATTRIBUTE* )
-    private Map<String, String> _attributeList(Tokeniser tokeniser, HamlOptions options) {
-        Map<String, String> attrList = new HashMap<String, String>();
-
-        if (tokeniser.getToken().type == Token.TokenType.OPENBRACKET) {
-            tokeniser.setMode(Tokeniser.Mode.ATTRLIST);
-            tokeniser.getNextToken();
-            while (tokeniser.getToken().type != Token.TokenType.CLOSEBRACKET) {
-                Map.Entry<String, String> attr = _attribute(tokeniser, options);
-                if (attr != null) {
-                    attrList.put(attr.getKey(), attr.getValue());
-                } else {
-                    if (tokeniser.getToken().type == Token.TokenType.WS || tokeniser.getToken().type == Token.TokenType.EOL) {
-                        tokeniser.getNextToken();
-                    } else if (tokeniser.getToken().type != Token.TokenType.CLOSEBRACKET && tokeniser.getToken().type != Token.TokenType.HTMLIDENTIFIER) {
-                        tokeniser.clearMode();
-                        _handleError(options, null, tokeniser, new RuntimeException(
-                                tokeniser.parseError("Expecting either an attribute name to continue the attributes or a closing " +
-                                        "bracket to end")));
-                        while (tokeniser.getToken().type != Token.TokenType.CLOSEBRACKET && tokeniser.getToken().type != Token.TokenType.EOF
-                                && tokeniser.getToken().type != Token.TokenType.EOL) {
-                            tokeniser.getNextToken();
-                        }
-                        if (tokeniser.getToken().type == Token.TokenType.CLOSEBRACKET) {
-                            tokeniser.getNextToken();
-                        }
-                        return attrList;
-                    }
-                }
-            }
-            tokeniser.getNextToken();
-        }
-
-        tokeniser.clearMode();
-        return attrList;
+    private TemplateNode parseHaml(Tokeniser tokeniser, String name, HamlOptions options) {
+        HamlOptions opt = options == null ? new HamlOptions() : options;
+        return new HamlParser(generatorFor(name, opt), filters).parse(name, tokeniser, opt);
     }
 
-    // ATTRIBUTE -> IDENTIFIER WS* = WS* STRING
-    private Map.Entry<String, String> _attribute(Tokeniser tokeniser, HamlOptions options) {
-        Map.Entry<String, String> attr = null;
-
-        if (tokeniser.getToken().type == Token.TokenType.HTMLIDENTIFIER) {
-            String name = tokeniser.getToken().getTokenString();
-            tokeniser.getNextToken();
-            _whitespace(tokeniser);
-            if (tokeniser.getToken().type != Token.TokenType.EQUAL) {
-                _handleError(options, null, tokeniser,
-                        new RuntimeException(tokeniser.parseError("Expected equals \"=\" after attribute name")));
-                return null;
-            }
-            tokeniser.getNextToken();
-            _whitespace(tokeniser);
-            if (tokeniser.getToken().type != Token.TokenType.HTMLIDENTIFIER && tokeniser.getToken().type != Token.TokenType.STRING) {
-                _handleError(options, null, tokeniser,
-                        new RuntimeException(tokeniser.parseError("Expected a quoted string or an identifier for the attribute value")));
-                return null;
-            }
-            attr = new DefaultMapEntry<String, String>(name, tokeniser.getToken().getTokenString());
-            tokeniser.getNextToken();
-        }
-
-        return attr;
+    /**
+     * Returns the generator given with setGenerator, or null if a new JavascriptGenerator is used for each compile
+     */
+    public HamlGenerator getGenerator() {
+        return generator;
     }
 
-    private boolean _tagHasContents(int indent, Tokeniser tokeniser) {
-        if (!tokeniser.isEolOrEof()) {
-            return true;
-        } else {
-            Token nextToken = tokeniser.lookAhead(1);
-            return nextToken.type == Token.TokenType.WS && nextToken.getTokenString().length() / 2 > indent;
-        }
+    public void setGenerator(HamlGenerator generator) {
+        this.generator = generator;
     }
 
-    private boolean _isSelfClosingTag(String identifier) {
-        return SELF_CLOSING_TAGS.contains(identifier);
+    /**
+     * The code for the segments of a template is generated separately, which production mode does not support as
+     * the locations of the expressions are numbered across the whole template
+     */
+    private static HamlOptions withoutProduction(HamlOptions options) {
+        HamlOptions opt = options == null ? new HamlOptions() : options.copy();
+        opt.production = false;
+        return opt;
     }
 
-    // CLASSSELECTOR = (.CLASS)+
-    private List<String> _classSelector(Tokeniser tokeniser) {
-        List<String> classes = new ArrayList<String>();
-
-        while(tokeniser.getToken().type == Token.TokenType.CLASSSELECTOR) {
-            classes.add(tokeniser.getToken().getTokenString());
-            tokeniser.getNextToken();
-        }
-
-        return classes;
+    private HamlGenerator generatorFor(String name, HamlOptions options) {
+        return generator != null ? generator : new JavascriptGenerator(name, options);
     }
 
-    // IDSELECTOR = # ID
-    private String _idSelector(Tokeniser tokeniser) {
-        String id = "";
-        if (tokeniser.getToken().type == Token.TokenType.IDSELECTOR) {
-            id = tokeniser.getToken().getTokenString();
-            tokeniser.getNextToken();
-        }
-        return id;
-    }
+    /**
+     * Renders the provided HAML template, reusing the code generated for any top level blocks that have not changed
+     * since the template with the same name was last compiled with this method. The code generated for each top
+     * level block is kept separate, so the template is only rendered the same as with compileHaml, not to the
+     * same code. The production option is ignored.
+     * @param name Template name
+     * @param haml HAML source in string form
+     * @param options Options, can be null
+     * @return Rendered template
+     */
+    public String recompileHaml(String name, String haml, HamlOptions options) {
+        HamlOptions opt = withoutProduction(options);
+        HamlGenerator generator = generatorFor(name, opt);
+        HamlParser parser = new HamlParser(generator, filters);
 
-    private Map<String, String> _attributeHash(Tokeniser tokeniser, HamlOptions options) {
-        Map<String, String> hash = new HashMap<String, String>();
-        // HASH -> "{ WS* HASH_ENTRY ( "," WS* HASH_ENTRY )*  "}"
-        if (tokeniser.getToken().type == Token.TokenType.OPENBRACE) {
-            tokeniser.setMode(Tokeniser.Mode.ATTRHASH);
-            tokeniser.getNextToken();
-            _whitespace(tokeniser);
-            _hashEntry(hash, tokeniser, options);
-            while (tokeniser.getToken().type == Token.TokenType.COMMA) {
-                tokeniser.getNextToken();
-                _whitespace(tokeniser);
-                _hashEntry(hash, tokeniser, options);
-            }
-            if (tokeniser.getToken().type != Token.TokenType.CLOSEBRACE) {
-                _handleError(options, null, tokeniser,
-                    new RuntimeException(tokeniser.parseError("Expected a closing brace (}) to end an attribute hash")));
-            }
-            tokeniser.getNextToken();
+        CompiledSegments previous = compiledSegments.get(name);
+        if (previous != null && !previous.compiledWith(this.generator, filters, opt)) {
+            previous = null;
         }
-        tokeniser.clearMode();
-        return hash;
-    }
+        CompiledSegments compiled = new CompiledSegments(this.generator, filters, opt);
 
-    // HASH_ENTRY -> IDENTIFIER WS* ":" WS* !("," "}")
-    private void _hashEntry(Map<String, String> hash, Tokeniser tokeniser, HamlOptions options) {
-        if (tokeniser.getToken().type != Token.TokenType.CODE_ID) {
-            _handleError(options, null, tokeniser,
-                new RuntimeException(tokeniser.parseError("Hash keys must be normal identifiers")));
-        } else {
-            String id = tokeniser.getToken().getTokenString();
-            tokeniser.getNextToken();
-            _whitespace(tokeniser);
-            if (tokeniser.getToken().type != Token.TokenType.COLON) {
-                _handleError(options, null, tokeniser,
-                    new RuntimeException(tokeniser.parseError("Expected a colon (:) after a Hash key")));
-                if (options.tolerateFaults) {
-                    while (tokeniser.getToken().type != Token.TokenType.CLOSEBRACE && tokeniser.getToken().type != Token.TokenType.EOF) {
-                        tokeniser.getNextToken();
-                    }
-                }
+        // the segments are only parsed as they are generated, so the variables the template reads are not known
+        generator.setTemplateVariables(null);
+        generator.setOutputProfile(null);
+        generator.initOutput();
+        CodeBuffer output = generator.getOutputBuffer();
+        for (TemplateSegment segment: TemplateSegment.split(haml)) {
+            TemplateSegment cached = previous == null ? null : previous.segments.get(segment.source);
+            output.flush();
+            if (cached != null) {
+                segment = cached.moveTo(segment.lineNumber);
+                output.appendToOutputBuffer(segment.code);
+                output.addSourceLines(segment.sourceLines);
             } else {
-                String value = generator.scanEmbeddedCode(tokeniser);
-                if (value == null) {
-                    _handleError(options, null, tokeniser,
-                        new RuntimeException(tokeniser.parseError("Expected a closing brace (}) to end an attribute hash or a comma (,) to continue onto another entry")));
-                } else {
-                    hash.put(id, value);
-                    tokeniser.getNextToken();
+                int start = output.length();
+                int firstSite = output.getLineNumberSites().size();
+                Tokeniser tokeniser = new Tokeniser(name, new SourceBuffer(segment.source), segment.lineNumber);
+                generator.generate(parser.parse(name, tokeniser, opt));
+                output.flush();
+
+                segment.code = output.output(start, output.length());
+                List<Integer> sites = output.getLineNumberSites();
+                segment.lineNumberSites = new int[sites.size() - firstSite];
+                for (int i = firstSite; i < sites.size(); i++) {
+                    segment.lineNumberSites[i - firstSite] = sites.get(i) - start;
                 }
+                segment.sourceLines = new TreeMap<Integer, String>(output.getSourceLines().subMap(segment.lineNumber,
+                    segment.endLineNumber()));
             }
+            compiled.segments.put(segment.source, segment);
         }
-    }
-
-    private void _eolOrEof(Tokeniser tokeniser) {
-        if (tokeniser.getToken().type == Token.TokenType.EOL || tokeniser.getToken().type == Token.TokenType.CONTINUELINE) {
-            tokeniser.getNextToken();
-        } else if (tokeniser.getToken().type != Token.TokenType.EOF) {
-            throw new RuntimeException(tokeniser.parseError("Expected EOL or EOF"));
-        }
-    }
+        compiledSegments.put(name, compiled);
 
-    private String _newline(Tokeniser tokeniser) {
-        if (tokeniser.getToken().type == Token.TokenType.EOL) {
-            return tokeniser.getToken().getMatched();
-        } else if (tokeniser.getToken().type == Token.TokenType.CONTINUELINE) {
-            return tokeniser.getToken().getMatched().substring(1);
-        } else {
-            return "\n";
-        }
+        return generator.closeAndReturnOutput();
     }
 
-    private void _openElement(ParsePoint currentParsePoint, int indent, String identifier, String id,
-                              List<String> classes, String objectRef, Map<String, String> attributeList,
-                              Map<String, String> attributeHash, List<Element> elementStack, TagOptions tagOptions, HamlGenerator generator) {
-        String element = identifier;
-        if (StringUtils.isEmpty(element)) {
-            element = "div";
-        }
-
-        boolean parentInnerWhitespace = _parentInnerWhitespace(elementStack, indent);
-        boolean tagOuterWhitespace = tagOptions == null || tagOptions.outerWhitespace;
-        if (!tagOuterWhitespace) {
-            generator.getOutputBuffer().trimWhitespace();
-        }
-        if (indent > 0 && parentInnerWhitespace && tagOuterWhitespace) {
-            generator.getOutputBuffer().append(HamlRuntime.indentText(indent));
-        }
-        generator.getOutputBuffer().append("<" + element);
-        if (!attributeHash.isEmpty() || StringUtils.isNotEmpty(objectRef)) {
-            generator.generateCodeForDynamicAttributes(id, classes, attributeList, attributeHash, objectRef, currentParsePoint);
-        } else {
-            generator.getOutputBuffer().append(HamlRuntime.generateElementAttributes(null, id, classes, null, attributeList, null,
-                currentParsePoint.lineNumber, currentParsePoint.characterNumber, currentParsePoint.currentLine));
-        }
-        if (tagOptions.selfClosingTag) {
-            generator.getOutputBuffer().append("/>");
-            if (tagOptions.outerWhitespace) {
-                generator.getOutputBuffer().append("\n");
-            }
-        } else {
-            generator.getOutputBuffer().append(">");
-            Element el = new Element();
-            el.tag = element;
-            el.tagOptions = tagOptions;
-            elementStack.set(indent, el);
-            if (tagOptions.innerWhitespace) {
-                generator.getOutputBuffer().append("\n");
+    /**
+     * Parses a top level block of a template with a generator of its own, which generates its code with
+     * GenerateSegment once all the blocks have been parsed. Errors are kept to be raised on the thread that stitches
+     * the generated code together
+     */
+    private class CompileSegment extends RecursiveAction {
+
+        private final String name;
+        private final TemplateSegment segment;
+        private final HamlOptions options;
+        private final HamlGenerator generator;
+        private TemplateNode template;
+        private RuntimeException parseError;
+        private RuntimeException generateError;
+
+        private CompileSegment(String name, TemplateSegment segment, HamlOptions options, HamlGenerator generator) {
+            this.name = name;
+            this.segment = segment;
+            this.options = options;
+            this.generator = generator;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                Tokeniser tokeniser = new Tokeniser(name, new SourceBuffer(segment.source), segment.lineNumber);
+                template = new HamlParser(generator, filters).parse(name, tokeniser, options);
+            } catch (RuntimeException e) {
+                parseError = e;
             }
         }
     }
 
-    private boolean _lineHasElement(String identifier, String id, List<String> classes) {
-        return StringUtils.isNoneEmpty(identifier) || StringUtils.isNoneEmpty(id) || !classes.isEmpty();
-    }
+    /**
+     * Generates the code for a top level block that has been parsed
+     */
+    private static class GenerateSegment extends RecursiveAction {
 
-    private String _element(Tokeniser tokeniser) {
-        String identifier = "";
-        if (tokeniser.getToken().type == Token.TokenType.ELEMENT) {
-            identifier = tokeniser.getToken().getTokenString();
-            tokeniser.getNextToken();
-        }
-        return identifier;
-    }
+        private final CompileSegment segment;
 
-    private void _closeElements(int indent, List<Element> elementStack, Tokeniser tokeniser, HamlGenerator generator) {
-        int i = elementStack.size() - 1;
-        while (i >= indent) {
-            _closeElement(i--, elementStack, tokeniser, generator);
+        private GenerateSegment(CompileSegment segment) {
+            this.segment = segment;
         }
-    }
 
-    private void _closeElement(int indent, List<Element> elementStack, Tokeniser tokeniser, HamlGenerator generator) {
-        if (elementStack.size() > indent && elementStack.get(indent) != null) {
-            Element element = elementStack.get(indent);
-            generator.setIndent(indent);
-            if (element.htmlComment) {
-                generator.getOutputBuffer().append(HamlRuntime.indentText(indent) + "-->" + element.eol);
-            } else if (element.htmlConditionalComment) {
-                generator.getOutputBuffer().append(HamlRuntime.indentText(indent) + "<![endif]-->" + element.eol);
-            } else if (element.block) {
-                generator.closeOffCodeBlock(tokeniser);
-            } else if (element.fnBlock) {
-                generator.closeOffFunctionBlock(tokeniser);
-            } else {
-                boolean innerWhitespace = element.tagOptions == null || element.tagOptions.innerWhitespace;
-                if (innerWhitespace) {
-                    generator.getOutputBuffer().append(HamlRuntime.indentText(indent));
-                } else {
-                    generator.getOutputBuffer().trimWhitespace();
-                }
-                generator.getOutputBuffer().append("</" + element.tag + ">");
-                boolean outerWhitespace = element.tagOptions == null || element.tagOptions.outerWhitespace;
-                if (_parentInnerWhitespace(elementStack, indent) && outerWhitespace) {
-                    generator.getOutputBuffer().append("\n");
-                }
+        @Override
+        protected void compute() {
+            try {
+                segment.generator.generate(segment.template);
+            } catch (RuntimeException e) {
+                segment.generateError = e;
             }
-            elementStack.set(indent, null);
-            generator.mark();
         }
     }
 
-    private boolean _parentInnerWhitespace(List<Element> elementStack, int indent) {
-        return indent == 0 || indent > elementStack.size() || (elementStack.get(indent - 1) == null || elementStack.get(indent - 1).tagOptions == null
-            || elementStack.get(indent - 1).tagOptions.innerWhitespace);
-    }
+    /**
+     * The segments of a template from the last time it was compiled, along with everything else the generated
+     * code depends on. The generator is null when a JavascriptGenerator was created for the compile
+     */
+    private static class CompiledSegments {
+
+        private final HamlGenerator generator;
+        private final Map<String, Filter> filters;
+        private final boolean tolerateFaults;
+        private final boolean minifyCss;
+        private final boolean minifyJavascript;
+        private final Map<String, TemplateSegment> segments = new HashMap<String, TemplateSegment>();
+
+        private CompiledSegments(HamlGenerator generator, Map<String, Filter> filters, HamlOptions options) {
+            this.generator = generator;
+            this.filters = new HashMap<String, Filter>(filters);
+            this.tolerateFaults = options.tolerateFaults;
+            this.minifyCss = options.minifyCss;
+            this.minifyJavascript = options.minifyJavascript;
+        }
 
-    private int _whitespace(Tokeniser tokeniser) {
-        int indent = 0;
-        if (tokeniser.getToken().type == Token.TokenType.WS) {
-            indent = tokeniser.calculateIndent(tokeniser.getToken().getTokenString());
-            tokeniser.getNextToken();
+        private boolean compiledWith(HamlGenerator generator, Map<String, Filter> filters, HamlOptions options) {
+            return this.generator == generator && this.filters.equals(filters) && tolerateFaults == options.tolerateFaults &&
+                minifyCss == options.minifyCss && minifyJavascript == options.minifyJavascript;
         }
-        return indent;
     }
 
 }
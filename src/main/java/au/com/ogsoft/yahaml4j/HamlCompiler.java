@@ -0,0 +1,252 @@
+package au.com.ogsoft.yahaml4j;
+
+import au.com.ogsoft.yahaml4j.ast.TemplateNode;
+import au.com.ogsoft.yahaml4j.filters.Filter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HAML compiler that can be shared between threads. The filters are fixed when it is created, and each compile
+ * runs in a session of its own with its own parser and generator. The buffers the code is generated into are kept
+ * per thread and reset for each compile, so a busy thread does not have to grow new ones every time.
+ */
+public class HamlCompiler {
+
+    // scratch buffers that have grown past this many characters are not kept for the next compile
+    private static final int MAX_RETAINED_SCRATCH = 256 * 1024;
+
+    private final Map<String, Filter> filters;
+    private final ThreadLocal<Session> sessions = new ThreadLocal<Session>() {
+        @Override
+        protected Session initialValue() {
+            return new Session();
+        }
+    };
+
+    /**
+     * @param filters Filters to compile the templates with, which are copied
+     */
+    public HamlCompiler(Map<String, Filter> filters) {
+        this.filters = Collections.unmodifiableMap(new HashMap<String, Filter>(filters));
+    }
+
+    /**
+     * Creates a compiler with the standard filters
+     */
+    public static HamlCompiler withStandardFilters() {
+        return new HamlCompiler(Haml.standardFilters());
+    }
+
+    /**
+     * Returns the filters, which can not be changed
+     */
+    public Map<String, Filter> getFilters() {
+        return filters;
+    }
+
+    /**
+     * Renders the provided HAML template
+     * @param name Template name
+     * @param haml HAML source in string form
+     * @param options Options, can be null
+     * @return Rendered template
+     */
+    public String compileHaml(String name, String haml, HamlOptions options) {
+        return compileHaml(new Tokeniser(name, haml), name, options);
+    }
+
+    /**
+     * Renders the HAML template read from the provided reader
+     * @param name Template name
+     * @param haml Reader for the HAML source
+     * @param options Options, can be null
+     * @return Rendered template
+     */
+    public String compileHaml(String name, Reader haml, HamlOptions options) {
+        return compileHaml(new Tokeniser(name, new StreamingSourceBuffer(haml)), name, options);
+    }
+
+    /**
+     * Renders the HAML template in the provided UTF-8 encoded file
+     * @param name Template name
+     * @param haml Path to the HAML source
+     * @param options Options, can be null
+     * @return Rendered template
+     */
+    public String compileHaml(String name, Path haml, HamlOptions options) throws IOException {
+        Reader reader = Files.newBufferedReader(haml, StandardCharsets.UTF_8);
+        try {
+            return compileHaml(name, reader, options);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes the code for the provided HAML template to out as it is generated. Only the static contents that have
+     * not been flushed to the code yet are buffered
+     * @param name Template name
+     * @param haml HAML source in string form
+     * @param options Options, can be null
+     * @param out Where to write the generated code
+     */
+    public void compileHaml(String name, String haml, HamlOptions options, Appendable out) {
+        compileHaml(new Tokeniser(name, haml), name, options, out);
+    }
+
+    /**
+     * Writes the code for the HAML template read from the provided reader to out as it is generated
+     * @param name Template name
+     * @param haml Reader for the HAML source
+     * @param options Options, can be null
+     * @param out Where to write the generated code
+     */
+    public void compileHaml(String name, Reader haml, HamlOptions options, Appendable out) {
+        compileHaml(new Tokeniser(name, new StreamingSourceBuffer(haml)), name, options, out);
+    }
+
+    /**
+     * Compiles the provided HAML template. With fault tolerance on, the errors found in the template are returned
+     * with the code instead of being logged
+     * @param name Template name
+     * @param haml HAML source in string form
+     * @param options Options, can be null
+     * @return Generated code, the errors found and the source map if one was asked for
+     */
+    public CompiledTemplate compile(String name, String haml, HamlOptions options) {
+        return compile(new Tokeniser(name, haml), name, options);
+    }
+
+    /**
+     * Compiles the HAML template in the provided UTF-8 encoded file. With fault tolerance on, the errors found in
+     * the template are returned with the code instead of being logged
+     * @param name Template name
+     * @param haml Path to the HAML source
+     * @param options Options, can be null
+     * @return Generated code, the errors found and the source map if one was asked for
+     */
+    public CompiledTemplate compile(String name, Path haml, HamlOptions options) throws IOException {
+        Reader reader = Files.newBufferedReader(haml, StandardCharsets.UTF_8);
+        try {
+            return compile(new Tokeniser(name, new StreamingSourceBuffer(reader)), name, options);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Renders a template that has already been parsed with parseHaml. The parsed template can be rendered on
+     * several threads at once
+     * @param template Parsed template
+     * @param options Options, can be null
+     * @return Rendered template
+     */
+    public String compileHaml(TemplateNode template, HamlOptions options) {
+        HamlOptions opt = options == null ? new HamlOptions() : options;
+        return generate(new JavascriptGenerator(template.name, opt), template);
+    }
+
+    /**
+     * Parses the provided HAML template
+     * @param name Template name
+     * @param haml HAML source in string form
+     * @param options Options, can be null
+     * @return Parsed template
+     */
+    public TemplateNode parseHaml(String name, String haml, HamlOptions options) {
+        HamlOptions opt = options == null ? new HamlOptions() : options;
+        return new HamlParser(new JavascriptGenerator(name, opt), filters).parse(name, new Tokeniser(name, haml), opt);
+    }
+
+    private String compileHaml(Tokeniser tokeniser, String name, HamlOptions options) {
+        HamlOptions opt = options == null ? new HamlOptions() : options;
+        JavascriptGenerator generator = new JavascriptGenerator(name, opt);
+        return generate(generator, new HamlParser(generator, filters).parse(name, tokeniser, opt));
+    }
+
+    private void compileHaml(Tokeniser tokeniser, String name, HamlOptions options, Appendable out) {
+        HamlOptions opt = options == null ? new HamlOptions() : options;
+        JavascriptGenerator generator = new JavascriptGenerator(name, opt);
+        generate(generator, new HamlParser(generator, filters).parse(name, tokeniser, opt), out);
+    }
+
+    private CompiledTemplate compile(Tokeniser tokeniser, String name, HamlOptions options) {
+        HamlOptions opt = options == null ? new HamlOptions() : options;
+        JavascriptGenerator generator = new JavascriptGenerator(name, opt);
+        Diagnostics diagnostics = new Diagnostics(opt.maxErrors);
+        TemplateNode template = new HamlParser(generator, filters).parse(name, tokeniser, opt, diagnostics);
+        TemplateVariables variables = TemplateVariables.of(template);
+        generator.setTemplateVariables(variables);
+        String code = generate(generator, template);
+        String sourceMap = opt.sourceMap ? SourceMap.generate(name + ".js", name, code,
+            generator.getOutputBuffer().getSourceMarks()) : null;
+        return new CompiledTemplate(code, diagnostics, variables, sourceMap, generator.getStaticOutput());
+    }
+
+    private String generate(JavascriptGenerator generator, TemplateNode template) {
+        return generate(generator, template, null);
+    }
+
+    /**
+     * Generates the code into the thread's scratch buffers and returns it, or writes it to out if it is given. The
+     * variables the template reads are found first, unless they already have been
+     */
+    private String generate(JavascriptGenerator generator, TemplateNode template, Appendable out) {
+        if (generator.templateVariables == null) {
+            generator.setTemplateVariables(TemplateVariables.of(template));
+        }
+        generator.setOutputProfile(OutputProfile.of(template));
+        Session session = sessions.get();
+        // a filter can compile another template while this one is being generated, which gets buffers of its own
+        boolean reuse = !session.inUse;
+        if (reuse) {
+            session.inUse = true;
+            generator.setScratchBuffers(session.code, session.contents);
+        }
+        try {
+            if (out == null) {
+                generator.initOutput();
+                generator.generate(template);
+                return generator.closeAndReturnOutput();
+            } else {
+                generator.initOutput(out);
+                generator.generate(template);
+                generator.closeOutput();
+                return null;
+            }
+        } finally {
+            if (reuse) {
+                session.reset();
+            }
+        }
+    }
+
+    /**
+     * Scratch buffers of a thread
+     */
+    private static class Session {
+
+        private StringBuilder code = new StringBuilder();
+        private StringBuilder contents = new StringBuilder();
+        private boolean inUse;
+
+        private void reset() {
+            if (code.capacity() > MAX_RETAINED_SCRATCH) {
+                code = new StringBuilder();
+            }
+            if (contents.capacity() > MAX_RETAINED_SCRATCH) {
+                contents = new StringBuilder();
+            }
+            code.setLength(0);
+            contents.setLength(0);
+            inUse = false;
+        }
+    }
+}
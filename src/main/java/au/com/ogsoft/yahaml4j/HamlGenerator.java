@@ -1,20 +1,74 @@
 package au.com.ogsoft.yahaml4j;
 
+import au.com.ogsoft.yahaml4j.ast.Node;
+
 import java.util.List;
 import java.util.Map;
 
 public interface HamlGenerator {
 
-    void initElementStack();
-
     void initOutput();
 
+    /**
+     * Initialise the output, writing the generated code to out as it is generated instead of keeping it in memory
+     */
+    void initOutput(Appendable out);
+
+    /**
+     * Returns a new generator with the same settings and an empty output buffer, to generate part of a template
+     * separately
+     */
+    HamlGenerator newInstance();
+
+    /**
+     * Generate the code for a node of a parsed template and all the nodes nested in it
+     */
+    void generate(Node node);
+
     String generateFlush(String buffer);
 
+    /**
+     * Generate the code that starts a statement adding to the output. Static contents (generateString) and values
+     * can be added to it, separated by generateOutputSeparator, until it is ended with generateOutputEnd
+     */
+    String generateOutputStart();
+
+    String generateOutputSeparator();
+
+    String generateOutputEnd();
+
+    /**
+     * Generate the code for static contents added to an output statement
+     */
+    String generateString(String contents);
+
     String closeAndReturnOutput();
 
+    /**
+     * Returns what the template that was just generated renders if it did not have any code in it, which the
+     * generated code returns as a constant. Null if the template has code, or it was written to an Appendable
+     */
+    String getStaticOutput();
+
+    /**
+     * Flush and close the output that is being written to the Appendable given to initOutput
+     */
+    void closeOutput();
+
     CodeBuffer getOutputBuffer();
 
+    /**
+     * Sets the variables read by the template about to be generated, which need to be found before initOutput is
+     * called. Null if they are not known
+     */
+    void setTemplateVariables(TemplateVariables variables);
+
+    /**
+     * Sets how much of the output of the template about to be generated is static, which is used to pick how the
+     * output is collected. Needs to be set before any code is generated. Null if it is not known
+     */
+    void setOutputProfile(OutputProfile profile);
+
     /**
      * Save the current indent level if required
      */
@@ -25,22 +79,46 @@ public interface HamlGenerator {
      */
     void setIndent(int indent);
 
-    List<Element> getElementStack();
-
-    void closeOffCodeBlock(Tokeniser tokeniser);
+    /**
+     * Generate the code to close off a code block. The closing code is the code line that closed the block, if
+     * it was closed by one
+     */
+    void closeOffCodeBlock(String closingCode);
 
-    void closeOffFunctionBlock(Tokeniser tokeniser);
+    /**
+     * Generate the code to close off a function block. The closing code is the code line that closed the block, if
+     * it was closed by one
+     */
+    void closeOffFunctionBlock(String closingCode);
 
     void generateCodeForDynamicAttributes(String id, List<String> classes, Map<String, String> attributeList,
                                           Map<String, String> attributeHash, String objectRef, ParsePoint currentParsePoint);
 
     void appendTextContents(String text, boolean shouldInterpolate, ParsePoint currentParsePoint, ProcessOptions options);
 
+    /**
+     * Append a line of text contents after the indent text, followed by a newline. The line is only copied if it
+     * needs to be processed
+     */
+    void appendTextLine(String indentText, CharSequence line, boolean shouldInterpolate, ParsePoint currentParsePoint,
+                        ProcessOptions options);
+
     /**
      * Scan the token stream for a valid block of code
      */
     String scanEmbeddedCode(Tokeniser tokeniser);
 
+    /**
+     * Is the code a literal, which has the same value every time the template is rendered
+     */
+    boolean isLiteral(String code);
+
+    /**
+     * Returns the value of a literal as it is added to the attributes of an element, or null if it leaves the
+     * attribute out
+     */
+    String literalValue(String code);
+
     /**
      * Append a line of code to the output buffer
      */
@@ -2,4 +2,43 @@ package au.com.ogsoft.yahaml4j;
 
 public class HamlOptions {
     public boolean tolerateFaults;
+    /**
+     * Most errors to keep for each template compiled with fault tolerance on, or 0 to keep them all
+     */
+    public int maxErrors;
+    /**
+     * Remove the comments and whitespace from the contents of :css filters when the template is compiled
+     */
+    public boolean minifyCss;
+    /**
+     * Remove the comments, blank lines and indenting from the contents of :javascript filters when the template is
+     * compiled. Any #{} interpolations are left as they are
+     */
+    public boolean minifyJavascript;
+    /**
+     * Generate the smaller, faster code for production. Instead of a try/catch around each expression, the whole
+     * template is in one and the location of the code being run is kept in a register. The first error found ends
+     * the render, and the output that was being added along with the value in error is dropped. With fault tolerance
+     * on, that first error is logged and the output before it is returned
+     */
+    public boolean production;
+    /**
+     * Generate a source map mapping the lines of the generated code back to the template along with the code. Only
+     * templates compiled with compile get one
+     */
+    public boolean sourceMap;
+
+    /**
+     * Returns a copy of the options
+     */
+    public HamlOptions copy() {
+        HamlOptions copy = new HamlOptions();
+        copy.tolerateFaults = tolerateFaults;
+        copy.maxErrors = maxErrors;
+        copy.minifyCss = minifyCss;
+        copy.minifyJavascript = minifyJavascript;
+        copy.production = production;
+        copy.sourceMap = sourceMap;
+        return copy;
+    }
 }
@@ -0,0 +1,719 @@
+package au.com.ogsoft.yahaml4j;
+
+import au.com.ogsoft.yahaml4j.ast.*;
+import au.com.ogsoft.yahaml4j.filters.ConfigurableFilter;
+import au.com.ogsoft.yahaml4j.filters.Filter;
+import au.com.ogsoft.yahaml4j.filters.FilterContents;
+import org.apache.commons.collections4.keyvalue.DefaultMapEntry;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Parses a HAML template into a tree of nodes. The generator is only used to scan the embedded code, as that depends
+ * on the language it is generated in
+ */
+class HamlParser {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HamlParser.class);
+    private static final List<String> SELF_CLOSING_TAGS = Arrays.asList("meta", "img", "link", "script", "br", "hr");
+
+    private final HamlGenerator generator;
+    private final Map<String, Filter> filters;
+    private final ElementStack elementStack = new ElementStack();
+    // reset and reused for each template line
+    private final TagOptions tagOptions = new TagOptions();
+    private TemplateNode template;
+    private Diagnostics diagnostics;
+
+    HamlParser(HamlGenerator generator, Map<String, Filter> filters) {
+        this.generator = generator;
+        this.filters = filters;
+    }
+
+    /**
+     * Parses the template read by the tokeniser. With fault tolerance on, any errors are logged
+     * @param name Template name
+     * @param tokeniser Tokeniser over the HAML source
+     * @param options Options
+     * @return Root node of the parsed template
+     */
+    TemplateNode parse(String name, Tokeniser tokeniser, HamlOptions options) {
+        Diagnostics diagnostics = new Diagnostics(options.maxErrors);
+        TemplateNode result = parse(name, tokeniser, options, diagnostics);
+        for (TemplateDiagnostic error: diagnostics.getErrors()) {
+            LOGGER.error(error.toString());
+        }
+        if (diagnostics.isTruncated()) {
+            LOGGER.error((diagnostics.getErrorCount() - options.maxErrors) + " more errors in template " + name);
+        }
+        return result;
+    }
+
+    /**
+     * Parses the template read by the tokeniser
+     * @param name Template name
+     * @param tokeniser Tokeniser over the HAML source
+     * @param options Options
+     * @param diagnostics Where the errors are recorded with fault tolerance on
+     * @return Root node of the parsed template
+     */
+    TemplateNode parse(String name, Tokeniser tokeniser, HamlOptions options, Diagnostics diagnostics) {
+        template = new TemplateNode(name);
+        this.diagnostics = diagnostics;
+        elementStack.clear();
+
+        //  HAML -> WS* (
+        //            TEMPLATELINE
+        //            | DOCTYPE
+        //            | IGNOREDLINE
+        //            | EMBEDDEDCODE
+        //            | CODE
+        //            | COMMENTLINE
+        //          )* EOF
+
+        tokeniser.advance();
+        while (tokeniser.getTokenType() != Token.TokenType.EOF) {
+            if (tokeniser.getTokenType() != Token.TokenType.EOL) {
+                int indent = -1;
+                try {
+                    indent = _whitespace(tokeniser);
+
+                    if (tokeniser.getTokenType() == Token.TokenType.EOL) {
+                        _add(new TextNode(indent, tokeniser.currentParsePoint(), HamlRuntime.indentText(indent), false,
+                            _newline(tokeniser)));
+                        tokeniser.advance();
+                    } else if (tokeniser.getTokenType() == Token.TokenType.DOCTYPE) {
+                        _doctype(tokeniser, indent);
+                    } else if (tokeniser.getTokenType() == Token.TokenType.EQUAL ||
+                            tokeniser.getTokenType() == Token.TokenType.ESCAPEHTML ||
+                            tokeniser.getTokenType() == Token.TokenType.UNESCAPEHTML ||
+                            tokeniser.getTokenType() == Token.TokenType.TILDE) {
+                        _embeddedCode(tokeniser, indent, null);
+                    } else if (tokeniser.getTokenType() == Token.TokenType.MINUS) {
+                        _codeLine(tokeniser, indent);
+                    } else if (tokeniser.getTokenType() == Token.TokenType.COMMENT || tokeniser.getTokenType() == Token.TokenType.SLASH) {
+                        _commentLine(tokeniser, indent);
+                    } else if (tokeniser.getTokenType() == Token.TokenType.AMP) {
+                        _escapedLine(tokeniser, indent);
+                    } else if (tokeniser.getTokenType() == Token.TokenType.FILTER) {
+                        _filter(tokeniser, indent, options);
+                    } else {
+                        _templateLine(tokeniser, indent, options);
+                    }
+                } catch (SkipLine e) {
+                    // the error has already been recorded
+                    if (indent >= 0) {
+                        _skipToNextLineWithIndent(tokeniser, indent);
+                    }
+                } catch (Exception e) {
+                    ErrorOptions errorOptions = new ErrorOptions();
+                    errorOptions.skipTo = indent < 0 ? null : indent;
+                    _handleError(options, errorOptions, tokeniser, e);
+                }
+
+            } else {
+                _add(new TextNode(0, tokeniser.currentParsePoint(), "", false, _newline(tokeniser)));
+                tokeniser.advance();
+            }
+        }
+
+        TemplateNode result = template;
+        template = null;
+        this.diagnostics = null;
+        elementStack.clear();
+        return result;
+    }
+
+    /**
+     * Adds the node to the innermost open element, comment or code block
+     */
+    private void _add(Node node) {
+        int i = elementStack.size() - 1;
+        while (i >= 0 && !elementStack.isOpen(i)) {
+            i--;
+        }
+        Node parent = i < 0 ? template : elementStack.getNode(i);
+        parent.children.add(node);
+    }
+
+    private void _filter(Tokeniser tokeniser, int indent, HamlOptions options) {
+        if (tokeniser.getTokenType() == Token.TokenType.FILTER) {
+            String filter = tokeniser.getTokenValue().toString();
+            if (!filters.containsKey(filter)) {
+                ErrorOptions errorOptions = new ErrorOptions();
+                errorOptions.skipTo = indent;
+                _handleError(options, errorOptions, tokeniser, tokeniser.currentParsePoint(),
+                        "Filter \"" + filter + "\" not registered. Filter functions need to be added to the \"filters\" map.");
+                return;
+            }
+
+            tokeniser.skipToEOLorEOF();
+            tokeniser.advance();
+            int i = _whitespace(tokeniser);
+            FilterContents.Builder filterBlock = new FilterContents.Builder();
+            while (tokeniser.getTokenType() != Token.TokenType.EOF && i > indent) {
+                tokeniser.pushBackToken();
+                String line = tokeniser.skipToEOLorEOF();
+                filterBlock.add(line, 2 * indent);
+                tokeniser.advance();
+                i = _whitespace(tokeniser);
+            }
+            Filter filterFunction = filters.get(filter);
+            if (filterFunction instanceof ConfigurableFilter) {
+                filterFunction = ((ConfigurableFilter) filterFunction).configure(options);
+            }
+            _add(new FilterNode(indent, tokeniser.currentParsePoint(), filter, filterFunction, filterBlock.build()));
+            tokeniser.pushBackToken();
+        }
+    }
+
+    private void _doctype(Tokeniser tokeniser, int indent) {
+        if (tokeniser.getTokenType() == Token.TokenType.DOCTYPE) {
+            ParsePoint currentParsePoint = tokeniser.currentParsePoint();
+            tokeniser.advance();
+            if (tokeniser.getTokenType() == Token.TokenType.WS) {
+                tokeniser.advance();
+            }
+            String contents = tokeniser.skipToEOLorEOF();
+            String doctype = "";
+            if (StringUtils.isNotEmpty(contents)) {
+                String[] params = contents.split("\\s+");
+                if ("XML".equals(params[0])) {
+                    if (params.length > 1) {
+                        doctype = "<?xml version=\"1.0\" encoding=\"" + params[1] + "\" ?>";
+                    } else {
+                        doctype = "<?xml version=\"1.0\" encoding=\"utf-8\" ?>";
+                    }
+                } else if ("Strict".equals(params[0])) {
+                    doctype = "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Strict//EN\" \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-strict.dtd\">";
+                } else if ("Frameset".equals(params[0])) {
+                    doctype = "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Frameset//EN\" \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-frameset.dtd\">";
+                } else if ("5".equals(params[0])) {
+                    doctype = "<!DOCTYPE html>";
+                } else if ("1.1".equals(params[0])) {
+                    doctype = "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.1//EN\" \"http://www.w3.org/TR/xhtml11/DTD/xhtml11.dtd\">";
+                } else if ("Basic".equals(params[0])) {
+                    doctype = "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML Basic 1.1//EN\" \"http://www.w3.org/TR/xhtml-basic/xhtml-basic11.dtd\">";
+                } else if ("Mobile".equals(params[0])) {
+                    doctype = "<!DOCTYPE html PUBLIC \"-//WAPFORUM//DTD XHTML Mobile 1.2//EN\" \"http://www.openmobilealliance.org/tech/DTD/xhtml-mobile12.dtd\">";
+                } else if ("RDFa".equals(params[0])) {
+                    doctype = "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML+RDFa 1.0//EN\" \"http://www.w3.org/MarkUp/DTD/xhtml-rdfa-1.dtd\">";
+                }
+            } else {
+                doctype = "<!DOCTYPE html>";
+            }
+            _add(new DoctypeNode(indent, currentParsePoint, doctype, _newline(tokeniser)));
+            tokeniser.advance();
+        }
+    }
+
+    /**
+     * Embedded code on its own line (tagOptions is null) or as the contents of an element
+     */
+    private void _embeddedCode(Tokeniser tokeniser, int indent, TagOptions tagOptions) {
+        if (tagOptions == null) {
+            _closeElements(indent, null);
+        }
+        if (tokeniser.getTokenType() == Token.TokenType.EQUAL ||
+                tokeniser.getTokenType() == Token.TokenType.ESCAPEHTML ||
+                tokeniser.getTokenType() == Token.TokenType.UNESCAPEHTML ||
+                tokeniser.getTokenType() == Token.TokenType.TILDE) {
+            boolean escapeHtml = tokeniser.getTokenType() == Token.TokenType.ESCAPEHTML ||
+                    tokeniser.getTokenType() == Token.TokenType.EQUAL;
+            boolean perserveWhitespace = tokeniser.getTokenType() == Token.TokenType.TILDE;
+            ParsePoint currentParsePoint = tokeniser.currentParsePoint();
+            tokeniser.advance();
+            String expression = tokeniser.skipToEOLorEOF();
+            boolean whitespace = tagOptions == null || tagOptions.innerWhitespace;
+            _add(new EmbeddedCodeNode(indent, currentParsePoint, expression, escapeHtml, perserveWhitespace, whitespace,
+                _newline(tokeniser)));
+            if (whitespace && tokeniser.getTokenType() == Token.TokenType.EOL) {
+                tokeniser.advance();
+            }
+        }
+    }
+
+    private void _codeLine(Tokeniser tokeniser, int indent) {
+        if (tokeniser.getTokenType() == Token.TokenType.MINUS) {
+            ParsePoint currentParsePoint = tokeniser.currentParsePoint();
+            tokeniser.advance();
+            String line = tokeniser.skipToEOLorEOF();
+            _closeElements(indent, line);
+
+            boolean functionBlock = generator.lineMatchesStartFunctionBlock(line);
+            boolean block = !functionBlock && generator.lineMatchesStartBlock(line);
+            CodeNode node = new CodeNode(indent, currentParsePoint, line, _newline(tokeniser), block, functionBlock);
+            _add(node);
+            if (tokeniser.getTokenType() == Token.TokenType.EOL) {
+                tokeniser.advance();
+            }
+
+            if (block || functionBlock) {
+                elementStack.openBlock(indent, node);
+            }
+        }
+    }
+
+    private void _escapedLine(Tokeniser tokeniser, int indent) {
+        if (tokeniser.getTokenType() == Token.TokenType.AMP) {
+            _closeElements(indent, null);
+            ParsePoint currentParsePoint = tokeniser.currentParsePoint();
+            tokeniser.advance();
+            String contents = tokeniser.skipToEOLorEOF();
+            String text = HamlRuntime.indentText(indent);
+            if (StringUtils.isNotEmpty(contents)) {
+                text += HamlRuntime.escapeHTML(contents);
+            }
+            _add(new TextNode(indent, currentParsePoint, text, false, _newline(tokeniser)));
+            tokeniser.advance();
+        }
+    }
+
+    private void _commentLine(Tokeniser tokeniser, int indent) {
+        if (tokeniser.getTokenType() == Token.TokenType.COMMENT) {
+            tokeniser.skipToEOLorEOF();
+            tokeniser.advance();
+            int i = _whitespace(tokeniser);
+            while (tokeniser.getTokenType() != Token.TokenType.EOF && i > indent) {
+                tokeniser.skipToEOLorEOF();
+                tokeniser.advance();
+                i = _whitespace(tokeniser);
+            }
+            if (i > 0) {
+                tokeniser.pushBackToken();
+            }
+        } else if (tokeniser.getTokenType() == Token.TokenType.SLASH) {
+            _closeElements(indent, null);
+            ParsePoint currentParsePoint = tokeniser.currentParsePoint();
+            tokeniser.advance();
+            String contents = tokeniser.skipToEOLorEOF();
+            boolean conditional = StringUtils.isNotEmpty(contents) && contents.startsWith("[") &&
+                contents.matches(".*\\]\\s*$");
+            CommentNode node = new CommentNode(indent, currentParsePoint, contents, conditional, _newline(tokeniser),
+                _tagHasContents(indent, tokeniser));
+            _add(node);
+            elementStack.openHtmlComment(indent, node);
+            tokeniser.advance();
+        }
+    }
+
+    private void _handleError(HamlOptions options, ErrorOptions errorOptions, Tokeniser tokeniser, Exception error) {
+        if (options != null && options.tolerateFaults) {
+            diagnostics.add(tokeniser.currentParsePoint(), error.getLocalizedMessage());
+            if (errorOptions != null && errorOptions.skipTo != null) {
+                _skipToNextLineWithIndent(tokeniser, errorOptions.skipTo);
+            }
+        } else {
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            } else {
+                throw new RuntimeException(error);
+            }
+        }
+    }
+
+    /**
+     * Records the error with fault tolerance on, otherwise raises it. No exception is created unless it is raised
+     */
+    private void _handleError(HamlOptions options, ErrorOptions errorOptions, Tokeniser tokeniser,
+                              ParsePoint parsePoint, String error) {
+        if (options != null && options.tolerateFaults) {
+            diagnostics.add(parsePoint, error);
+            if (errorOptions != null && errorOptions.skipTo != null) {
+                _skipToNextLineWithIndent(tokeniser, errorOptions.skipTo);
+            }
+        } else {
+            throw new RuntimeException(HamlRuntime.templateError(parsePoint.lineNumber, parsePoint.characterNumber,
+                parsePoint.getCurrentLine(), error));
+        }
+    }
+
+    private void _skipToNextLineWithIndent(Tokeniser tokeniser, int indent) {
+        tokeniser.skipToEOLorEOF();
+        tokeniser.advance();
+        int lineIndent = _whitespace(tokeniser);
+        while (lineIndent > indent) {
+            tokeniser.skipToEOLorEOF();
+            tokeniser.advance();
+            lineIndent = _whitespace(tokeniser);
+        }
+        tokeniser.pushBackToken();
+    }
+
+    /**
+     * TEMPLATELINE -> ([ELEMENT][IDSELECTOR][CLASSSELECTORS][ATTRIBUTES] [SLASH|CONTENTS])|(!CONTENTS) (EOL|EOF)
+     */
+    private void _templateLine(Tokeniser tokeniser, int indent, HamlOptions options) {
+
+        if (tokeniser.getTokenType() != Token.TokenType.EOL) {
+            _closeElements(indent, null);
+        }
+
+        String identifier = _element(tokeniser);
+        String id = _idSelector(tokeniser);
+        List<String> classes = _classSelector(tokeniser);
+        String objectRef = _objectReference(tokeniser);
+        Map<String, String> attrList = _attributeList(tokeniser, options);
+
+        ParsePoint currentParsePoint = tokeniser.currentParsePoint();
+        Map<String, String> attributesHash = _attributeHash(tokeniser, options);
+
+        TagOptions tagOptions = this.tagOptions;
+        tagOptions.selfClosingTag = false;
+        tagOptions.innerWhitespace = true;
+        tagOptions.outerWhitespace = true;
+        boolean lineHasElement = _lineHasElement(identifier, id, classes);
+
+        if (tokeniser.getTokenType() == Token.TokenType.SLASH) {
+            tagOptions.selfClosingTag = true;
+            tokeniser.advance();
+        }
+        if (tokeniser.getTokenType() == Token.TokenType.GT && lineHasElement) {
+            tagOptions.outerWhitespace = false;
+            tokeniser.advance();
+        }
+        if (tokeniser.getTokenType() == Token.TokenType.LT && lineHasElement) {
+            tagOptions.innerWhitespace = false;
+            tokeniser.advance();
+        }
+
+        if (lineHasElement) {
+            if (!tagOptions.selfClosingTag) {
+                tagOptions.selfClosingTag = _isSelfClosingTag(identifier) && !_tagHasContents(indent, tokeniser);
+            }
+            _openElement(currentParsePoint, indent, identifier, id, classes, objectRef, attrList, attributesHash,
+                tagOptions);
+        }
+
+        boolean hasContents;
+        if (tokeniser.getTokenType() == Token.TokenType.WS) {
+            tokeniser.advance();
+        }
+
+        if (tokeniser.getTokenType() == Token.TokenType.EQUAL || tokeniser.getTokenType() == Token.TokenType.ESCAPEHTML
+                || tokeniser.getTokenType() == Token.TokenType.UNESCAPEHTML) {
+            _embeddedCode(tokeniser, indent + 1, tagOptions);
+            hasContents = true;
+        } else {
+            String contents;
+            boolean shouldInterpolate = false;
+            if (tokeniser.getTokenType() == Token.TokenType.EXCLAMATION) {
+                tokeniser.advance();
+                contents = tokeniser.skipToEOLorEOF();
+            } else {
+                contents = tokeniser.skipToEOLorEOF();
+                if (contents.startsWith("\\")) {
+                    contents = contents.substring(1);
+                }
+                shouldInterpolate = true;
+            }
+
+            hasContents = StringUtils.isNotEmpty(contents);
+            String indentText = "";
+            if (hasContents) {
+                if (tagOptions.innerWhitespace && lineHasElement || (!lineHasElement && _parentInnerWhitespace(indent))) {
+                    indentText = HamlRuntime.indentText(identifier.length() > 0 ? indent + 1 : indent);
+                } else {
+                    contents = StringUtils.trim(contents);
+                }
+                _add(new TextNode(indent, currentParsePoint, indentText + contents, shouldInterpolate,
+                    _newline(tokeniser)));
+            }
+
+            _eolOrEof(tokeniser, options);
+        }
+
+        if (tagOptions.selfClosingTag && hasContents) {
+            _handleError(options, null, tokeniser, currentParsePoint, "A self-closing tag can not have any contents");
+        }
+    }
+
+    private String _objectReference(Tokeniser tokeniser) {
+        String attr = "";
+        if (tokeniser.getTokenType() == Token.TokenType.OBJECTREF) {
+            attr = tokeniser.getTokenValue().toString();
+            tokeniser.advance();
+        }
+        return attr;
+    }
+
+    // ATTRIBUTES -> ( ATTRIBUTE* )
+    private Map<String, String> _attributeList(Tokeniser tokeniser, HamlOptions options) {
+        Map<String, String> attrList = Collections.emptyMap();
+
+        if (tokeniser.getTokenType() == Token.TokenType.OPENBRACKET) {
+            attrList = new HashMap<String, String>();
+            tokeniser.setMode(Tokeniser.Mode.ATTRLIST);
+            tokeniser.advance();
+            while (tokeniser.getTokenType() != Token.TokenType.CLOSEBRACKET) {
+                Map.Entry<String, String> attr = _attribute(tokeniser, options);
+                if (attr != null) {
+                    attrList.put(attr.getKey(), attr.getValue());
+                } else {
+                    if (tokeniser.getTokenType() == Token.TokenType.WS || tokeniser.getTokenType() == Token.TokenType.EOL) {
+                        tokeniser.advance();
+                    } else if (tokeniser.getTokenType() != Token.TokenType.CLOSEBRACKET && tokeniser.getTokenType() != Token.TokenType.HTMLIDENTIFIER) {
+                        tokeniser.clearMode();
+                        _handleError(options, null, tokeniser, tokeniser.currentParsePoint(),
+                                "Expecting either an attribute name to continue the attributes or a closing bracket to end");
+                        while (tokeniser.getTokenType() != Token.TokenType.CLOSEBRACKET && tokeniser.getTokenType() != Token.TokenType.EOF
+                                && tokeniser.getTokenType() != Token.TokenType.EOL) {
+                            tokeniser.advance();
+                        }
+                        if (tokeniser.getTokenType() == Token.TokenType.CLOSEBRACKET) {
+                            tokeniser.advance();
+                        }
+                        return attrList;
+                    }
+                }
+            }
+            tokeniser.advance();
+        }
+
+        tokeniser.clearMode();
+        return attrList;
+    }
+
+    // ATTRIBUTE -> IDENTIFIER WS* = WS* STRING
+    private Map.Entry<String, String> _attribute(Tokeniser tokeniser, HamlOptions options) {
+        Map.Entry<String, String> attr = null;
+
+        if (tokeniser.getTokenType() == Token.TokenType.HTMLIDENTIFIER) {
+            String name = tokeniser.getTokenValue().toString();
+            tokeniser.advance();
+            _whitespace(tokeniser);
+            if (tokeniser.getTokenType() != Token.TokenType.EQUAL) {
+                _handleError(options, null, tokeniser, tokeniser.currentParsePoint(),
+                        "Expected equals \"=\" after attribute name");
+                return null;
+            }
+            tokeniser.advance();
+            _whitespace(tokeniser);
+            if (tokeniser.getTokenType() != Token.TokenType.HTMLIDENTIFIER && tokeniser.getTokenType() != Token.TokenType.STRING) {
+                _handleError(options, null, tokeniser, tokeniser.currentParsePoint(),
+                        "Expected a quoted string or an identifier for the attribute value");
+                return null;
+            }
+            attr = new DefaultMapEntry<String, String>(name, tokeniser.getTokenValue().toString());
+            tokeniser.advance();
+        }
+
+        return attr;
+    }
+
+    private boolean _tagHasContents(int indent, Tokeniser tokeniser) {
+        if (!tokeniser.isEolOrEof()) {
+            return true;
+        } else {
+            Token nextToken = tokeniser.lookAhead(1);
+            return nextToken.type == Token.TokenType.WS && nextToken.getTokenString().length() / 2 > indent;
+        }
+    }
+
+    private boolean _isSelfClosingTag(String identifier) {
+        return SELF_CLOSING_TAGS.contains(identifier);
+    }
+
+    // CLASSSELECTOR = (.CLASS)+
+    private List<String> _classSelector(Tokeniser tokeniser) {
+        if (tokeniser.getTokenType() != Token.TokenType.CLASSSELECTOR) {
+            return Collections.emptyList();
+        }
+
+        List<String> classes = new ArrayList<String>();
+        while(tokeniser.getTokenType() == Token.TokenType.CLASSSELECTOR) {
+            classes.add(tokeniser.getTokenValue().toString());
+            tokeniser.advance();
+        }
+
+        return classes;
+    }
+
+    // IDSELECTOR = # ID
+    private String _idSelector(Tokeniser tokeniser) {
+        String id = "";
+        if (tokeniser.getTokenType() == Token.TokenType.IDSELECTOR) {
+            id = tokeniser.getTokenValue().toString();
+            tokeniser.advance();
+        }
+        return id;
+    }
+
+    private Map<String, String> _attributeHash(Tokeniser tokeniser, HamlOptions options) {
+        Map<String, String> hash = Collections.emptyMap();
+        // HASH -> "{ WS* HASH_ENTRY ( "," WS* HASH_ENTRY )*  "}"
+        if (tokeniser.getTokenType() == Token.TokenType.OPENBRACE) {
+            hash = new HashMap<String, String>();
+            tokeniser.setMode(Tokeniser.Mode.ATTRHASH);
+            tokeniser.advance();
+            _whitespace(tokeniser);
+            _hashEntry(hash, tokeniser, options);
+            while (tokeniser.getTokenType() == Token.TokenType.COMMA) {
+                tokeniser.advance();
+                _whitespace(tokeniser);
+                _hashEntry(hash, tokeniser, options);
+            }
+            if (tokeniser.getTokenType() != Token.TokenType.CLOSEBRACE) {
+                _handleError(options, null, tokeniser, tokeniser.currentParsePoint(),
+                    "Expected a closing brace (}) to end an attribute hash");
+            }
+            tokeniser.advance();
+        }
+        tokeniser.clearMode();
+        return hash;
+    }
+
+    // HASH_ENTRY -> IDENTIFIER WS* ":" WS* !("," "}")
+    private void _hashEntry(Map<String, String> hash, Tokeniser tokeniser, HamlOptions options) {
+        if (tokeniser.getTokenType() != Token.TokenType.CODE_ID) {
+            _handleError(options, null, tokeniser, tokeniser.currentParsePoint(),
+                "Hash keys must be normal identifiers");
+        } else {
+            String id = tokeniser.getTokenValue().toString();
+            tokeniser.advance();
+            _whitespace(tokeniser);
+            if (tokeniser.getTokenType() != Token.TokenType.COLON) {
+                _handleError(options, null, tokeniser, tokeniser.currentParsePoint(),
+                    "Expected a colon (:) after a Hash key");
+                if (options.tolerateFaults) {
+                    while (tokeniser.getTokenType() != Token.TokenType.CLOSEBRACE && tokeniser.getTokenType() != Token.TokenType.EOF) {
+                        tokeniser.advance();
+                    }
+                }
+            } else {
+                String value = generator.scanEmbeddedCode(tokeniser);
+                if (value == null) {
+                    _handleError(options, null, tokeniser, tokeniser.currentParsePoint(),
+                        "Expected a closing brace (}) to end an attribute hash or a comma (,) to continue onto another entry");
+                } else {
+                    hash.put(id, value);
+                    tokeniser.advance();
+                }
+            }
+        }
+    }
+
+    private void _eolOrEof(Tokeniser tokeniser, HamlOptions options) {
+        if (tokeniser.getTokenType() == Token.TokenType.EOL || tokeniser.getTokenType() == Token.TokenType.CONTINUELINE) {
+            tokeniser.advance();
+        } else if (tokeniser.getTokenType() != Token.TokenType.EOF) {
+            _handleError(options, null, tokeniser, tokeniser.currentParsePoint(), "Expected EOL or EOF");
+            throw SkipLine.INSTANCE;
+        }
+    }
+
+    private String _newline(Tokeniser tokeniser) {
+        if (tokeniser.getTokenType() == Token.TokenType.EOL) {
+            return tokeniser.getTokenMatched().length() == 1 ? "\n" : "\r\n";
+        } else if (tokeniser.getTokenType() == Token.TokenType.CONTINUELINE) {
+            return tokeniser.getTokenMatched().subSequence(1, tokeniser.getTokenMatched().length()).toString();
+        } else {
+            return "\n";
+        }
+    }
+
+    private void _openElement(ParsePoint currentParsePoint, int indent, String identifier, String id,
+                              List<String> classes, String objectRef, Map<String, String> attributeList,
+                              Map<String, String> attributeHash, TagOptions tagOptions) {
+        String element = identifier;
+        if (StringUtils.isEmpty(element)) {
+            element = "div";
+        }
+
+        Map<String, String> attributes = attributeList;
+        Map<String, String> hash = attributeHash;
+        if (!attributeHash.isEmpty()) {
+            attributes = new HashMap<String, String>(attributeList);
+            hash = new HashMap<String, String>();
+            _foldAttributeHash(objectRef, attributeHash, attributes, hash);
+        }
+
+        ElementNode node = new ElementNode(indent, currentParsePoint, element, id, classes, objectRef, attributes,
+            hash, tagOptions.selfClosingTag, tagOptions.innerWhitespace, tagOptions.outerWhitespace,
+            _parentInnerWhitespace(indent));
+        _add(node);
+        if (!tagOptions.selfClosingTag) {
+            elementStack.openElement(indent, node);
+        }
+    }
+
+    /**
+     * Adds the entries of the attribute hash with literal values to the attributes, so they are generated with the
+     * static attributes, and the rest to the dynamic hash. An entry is only added if it would be combined with the
+     * other attributes the same way when the template is rendered, so entries with the same name as an attribute in
+     * the list stay in the hash, as do id, class and for entries when there is an object reference
+     */
+    private void _foldAttributeHash(String objectRef, Map<String, String> attributeHash, Map<String, String> attributes,
+                                    Map<String, String> hash) {
+        boolean hasObjectRef = StringUtils.isNotEmpty(objectRef);
+        for (Map.Entry<String, String> entry: attributeHash.entrySet()) {
+            String name = entry.getKey();
+            boolean combined = name.equals("id") || name.equals("class") || name.equals("for");
+            if (generator.isLiteral(entry.getValue()) && !attributes.containsKey(name) && !(hasObjectRef && combined)) {
+                String value = generator.literalValue(entry.getValue());
+                if (value != null) {
+                    attributes.put(name, value);
+                }
+            } else {
+                hash.put(name, entry.getValue());
+            }
+        }
+    }
+
+    private boolean _lineHasElement(String identifier, String id, List<String> classes) {
+        return StringUtils.isNoneEmpty(identifier) || StringUtils.isNoneEmpty(id) || !classes.isEmpty();
+    }
+
+    private String _element(Tokeniser tokeniser) {
+        String identifier = "";
+        if (tokeniser.getTokenType() == Token.TokenType.ELEMENT) {
+            identifier = tokeniser.getTokenValue().toString();
+            tokeniser.advance();
+        }
+        return identifier;
+    }
+
+    /**
+     * Closes all the open entries at or past the indent. Code blocks are told about the code line that closed them
+     */
+    private void _closeElements(int indent, String closingCode) {
+        for (int i = elementStack.size() - 1; i >= indent; i--) {
+            if (elementStack.isOpen(i)) {
+                Node node = elementStack.getNode(i);
+                if (node instanceof CodeNode) {
+                    ((CodeNode) node).closingCode = closingCode;
+                }
+                elementStack.close(i);
+            }
+        }
+    }
+
+    private boolean _parentInnerWhitespace(int indent) {
+        return indent == 0 || !elementStack.isOpen(indent - 1) || elementStack.hasInnerWhitespace(indent - 1);
+    }
+
+    private int _whitespace(Tokeniser tokeniser) {
+        int indent = 0;
+        if (tokeniser.getTokenType() == Token.TokenType.WS) {
+            indent = tokeniser.tokenIndent();
+            tokeniser.advance();
+        }
+        return indent;
+    }
+
+    /**
+     * Abandons the rest of a line after its error has been recorded. It is raised for every broken line of a
+     * template, so it is shared and has no stack trace
+     */
+    private static class SkipLine extends RuntimeException {
+
+        private static final SkipLine INSTANCE = new SkipLine();
+
+        private SkipLine() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -47,6 +47,17 @@ public class HamlRuntime {
     public static String generateElementAttributes(Object context, String id, List<String> classes, Object objectRef,
                                                    Map<String, String> attributeList, Object attributeFn, int lineNumber,
                                                    int characterNumber, String currentLine) {
+        return generateElementAttributes(context, id, classes, objectRef, attributeList, attributeFn,
+            new ParsePoint(lineNumber, characterNumber, currentLine));
+    }
+
+    /**
+     * Generates the attributes for the element by combining all the various sources together. The parse point is
+     * only used to report errors
+     */
+    public static String generateElementAttributes(Object context, String id, List<String> classes, Object objectRef,
+                                                   Map<String, String> attributeList, Object attributeFn,
+                                                   ParsePoint parsePoint) {
 
         Map<String, Object> attributes = new HashMap<String, Object>();
 
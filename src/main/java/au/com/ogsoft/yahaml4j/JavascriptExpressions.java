@@ -0,0 +1,473 @@
+package au.com.ogsoft.yahaml4j;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Checks embedded code when a template is compiled to see if it can be put straight into the generated function.
+ * Only code that is a single, complete expression is accepted. Anything else (statements, comments, unbalanced
+ * brackets or unterminated strings) is left to be evaluated when the template is rendered, so any error is reported
+ * the same way it always has been. Only ES5 syntax is accepted, as that is all the script engine can parse, so code
+ * using anything newer is evaluated too. Literals are also recognised, so their values can be used when the template
+ * is compiled.
+ */
+public class JavascriptExpressions {
+
+    private static final Set<String> BINARY_KEYWORDS = new HashSet<String>(Arrays.asList("in", "instanceof"));
+    private static final Set<String> PREFIX_KEYWORDS = new HashSet<String>(Arrays.asList("typeof", "new", "void",
+        "delete"));
+    private static final Set<String> STATEMENT_KEYWORDS = new HashSet<String>(Arrays.asList("var", "if", "else",
+        "for", "while", "return", "throw"));
+    private static final Set<String> VALUE_KEYWORDS = new HashSet<String>(Arrays.asList("function", "this", "true",
+        "false", "null"));
+    // keywords added after ES5, and the statements that are left to eval
+    private static final Set<String> UNSUPPORTED_KEYWORDS = new HashSet<String>(Arrays.asList("let", "const",
+        "class", "import", "export", "yield", "await", "super", "enum", "extends", "do", "switch", "case", "default",
+        "try", "catch", "finally", "break", "continue", "with", "debugger"));
+    private static final Set<String> PREFIX_OPERATORS = new HashSet<String>(Arrays.asList("++", "--", "+", "-", "!",
+        "~"));
+    // the operators that can only go before an operand
+    private static final Set<String> UNARY_OPERATORS = new HashSet<String>(Arrays.asList("++", "--", "!", "~"));
+    // the kinds of bracket: grouping, call arguments, array literal, index, object literal, function parameters,
+    // function expression and declaration bodies, blocks, the block of an if and the conditions of if, for and while
+    private static final char GROUP = '(';
+    private static final char CALL = 'a';
+    private static final char ARRAY = '[';
+    private static final char INDEX = 'x';
+    private static final char OBJECT = 'o';
+    private static final char PARAMETERS = 'p';
+    private static final char FUNCTION = 'f';
+    private static final char DECLARATION = 'd';
+    private static final char BLOCK = 'b';
+    private static final char IF_BLOCK = 't';
+    private static final char IF_CONDITION = 'i';
+    private static final char FOR_CONDITION = 'r';
+    private static final char CONDITION = 'c';
+
+    private JavascriptExpressions() {
+
+    }
+
+    /**
+     * Is the code a single, complete javascript expression. Statements are only accepted inside the body of a
+     * function in the expression, and then only declarations, expression statements, if, for, while, return and throw
+     */
+    public static boolean isExpression(String code) {
+        String expression = code.trim();
+        if (expression.isEmpty() || expression.charAt(0) == '{') {
+            return false;
+        }
+
+        // the kinds of the brackets that are open, innermost first
+        Deque<Character> brackets = new ArrayDeque<Character>();
+        // the number of ? waiting for their : in the current bracket, and in each of the brackets it is nested in
+        Deque<Integer> outerTernaries = new ArrayDeque<Integer>();
+        int ternaries = 0;
+        boolean value = false;
+        boolean newline = false;
+        boolean first = true;
+        // does the next token start a statement
+        boolean start = false;
+        String last = "";
+        // 1 when an object literal is waiting for a property name, 2 when it is waiting for the : after it
+        int objectKey = 0;
+        // 1 after function in an expression, 2 after function in a declaration, 3 after the name and 4 after the
+        // parameters
+        int header = 0;
+        boolean declaration = false;
+        // the kind of bracket for the condition that has to follow if, for or while
+        char condition = 0;
+        boolean elseAllowed = false;
+        boolean ifBody = false;
+        // a var declaration waiting for a name, and the number of brackets open where it was declared
+        boolean nameNext = false;
+        int declaring = -1;
+        int length = expression.length();
+        int i = 0;
+        while (i < length) {
+            char ch = expression.charAt(i);
+            if (ch == '\n' || ch == '\r') {
+                newline = true;
+                i++;
+                continue;
+            } else if (Character.isWhitespace(ch)) {
+                i++;
+                continue;
+            } else if (ch == '/' && i + 1 < length && (expression.charAt(i + 1) == '/' || expression.charAt(i + 1) == '*')) {
+                return false;
+            }
+
+            char top = brackets.isEmpty() ? 0 : brackets.peek();
+            boolean operand = Character.isJavaIdentifierStart(ch) || Character.isDigit(ch) || ch == '"' || ch == '\'';
+            if ((objectKey == 1 && !operand && ch != '}') || (objectKey == 2 && ch != ':') ||
+                    (header > 0 && header < 4 && ch != '(' && !(header < 3 && Character.isJavaIdentifierStart(ch))) ||
+                    (header == 4 && ch != '{') || (condition != 0 && ch != '(') ||
+                    (nameNext && !Character.isJavaIdentifierStart(ch)) ||
+                    (top == PARAMETERS && !Character.isJavaIdentifierStart(ch) && ch != ',' && ch != ')') ||
+                    (newline && last.equals("throw"))) {
+                return false;
+            }
+            // a value on a new line in a function body ends the statement, and the next one starts
+            if (value && newline && isBody(top) && (operand || ch == '{')) {
+                value = false;
+                start = true;
+                declaring = -1;
+            }
+
+            int end;
+            boolean endsValue;
+            boolean startsNext = false;
+            boolean allowsElse = false;
+            boolean endsIf = false;
+            if (Character.isJavaIdentifierStart(ch)) {
+                end = i + 1;
+                while (end < length && Character.isJavaIdentifierPart(expression.charAt(end))) {
+                    end++;
+                }
+                String word = expression.substring(i, end);
+                if (objectKey == 1) {
+                    objectKey = 2;
+                    endsValue = false;
+                } else if (header > 0 || nameNext || top == PARAMETERS) {
+                    // the name of a function, parameter or variable
+                    if (value || isReserved(word)) {
+                        return false;
+                    }
+                    if (header > 0) {
+                        header = 3;
+                    }
+                    nameNext = false;
+                    endsValue = true;
+                } else if (UNSUPPORTED_KEYWORDS.contains(word)) {
+                    return false;
+                } else if (BINARY_KEYWORDS.contains(word)) {
+                    if (!value) {
+                        return false;
+                    }
+                    endsValue = false;
+                } else if (PREFIX_KEYWORDS.contains(word)) {
+                    if (value) {
+                        return false;
+                    }
+                    endsValue = false;
+                } else if (word.equals("function")) {
+                    // a function at the start would be a declaration to eval, not an expression
+                    if (first || value) {
+                        return false;
+                    }
+                    declaration = start;
+                    header = declaration ? 2 : 1;
+                    endsValue = false;
+                } else if (STATEMENT_KEYWORDS.contains(word)) {
+                    boolean allowed = word.equals("else") ? elseAllowed :
+                        start || (word.equals("var") && top == FOR_CONDITION && last.equals("("));
+                    if (!allowed) {
+                        return false;
+                    }
+                    if (word.equals("if")) {
+                        condition = IF_CONDITION;
+                    } else if (word.equals("for")) {
+                        condition = FOR_CONDITION;
+                    } else if (word.equals("while")) {
+                        condition = CONDITION;
+                    } else if (word.equals("var")) {
+                        nameNext = true;
+                        declaring = brackets.size();
+                    }
+                    startsNext = word.equals("else");
+                    endsValue = false;
+                } else {
+                    if (value) {
+                        return false;
+                    }
+                    endsValue = true;
+                }
+            } else if (Character.isDigit(ch) || (ch == '.' && !value && i + 1 < length &&
+                    Character.isDigit(expression.charAt(i + 1)))) {
+                if (value) {
+                    return false;
+                }
+                end = i + 1;
+                while (end < length && (Character.isLetterOrDigit(expression.charAt(end)) || expression.charAt(end) == '.' ||
+                        ((expression.charAt(end) == '+' || expression.charAt(end) == '-') &&
+                        (expression.charAt(end - 1) == 'e' || expression.charAt(end - 1) == 'E')))) {
+                    end++;
+                }
+                if (!isNumber(expression, i, end)) {
+                    return false;
+                }
+                endsValue = objectKey == 0;
+                objectKey = objectKey == 1 ? 2 : objectKey;
+            } else if (ch == '"' || ch == '\'' || (ch == '/' && !value)) {
+                if (value) {
+                    return false;
+                }
+                end = ch == '/' ? JavascriptLexer.skipRegex(expression, i) : JavascriptLexer.skipString(expression, i);
+                if (end < 0) {
+                    return false;
+                }
+                endsValue = objectKey == 0;
+                objectKey = objectKey == 1 ? 2 : objectKey;
+            } else if (ch == '(' || ch == '[' || ch == '{') {
+                char kind;
+                if (ch == '(') {
+                    if (header == 2) {
+                        return false;
+                    }
+                    kind = header > 0 ? PARAMETERS : condition != 0 ? condition : value ? CALL : GROUP;
+                    header = 0;
+                    condition = 0;
+                } else if (ch == '[') {
+                    kind = value ? INDEX : ARRAY;
+                } else if (header == 4) {
+                    kind = declaration ? DECLARATION : FUNCTION;
+                    header = 0;
+                    startsNext = true;
+                } else if (start) {
+                    kind = ifBody ? IF_BLOCK : BLOCK;
+                    startsNext = true;
+                } else if (!value) {
+                    kind = OBJECT;
+                    objectKey = 1;
+                } else {
+                    return false;
+                }
+                brackets.push(kind);
+                outerTernaries.push(ternaries);
+                ternaries = 0;
+                end = i + 1;
+                endsValue = false;
+            } else if (ch == ')' || ch == ']' || ch == '}') {
+                if (brackets.isEmpty() || ternaries != 0) {
+                    return false;
+                }
+                char kind = brackets.pop();
+                boolean complete;
+                if (kind == ARRAY) {
+                    complete = true;
+                } else if (kind == CALL || kind == PARAMETERS) {
+                    complete = value || last.equals("(");
+                } else if (kind == OBJECT) {
+                    complete = value || objectKey == 1;
+                } else if (isBody(kind)) {
+                    complete = value || start || last.equals("return");
+                } else {
+                    complete = value;
+                }
+                if (!complete || ch != closing(kind)) {
+                    return false;
+                }
+                ternaries = outerTernaries.pop();
+                objectKey = 0;
+                if (declaring > brackets.size()) {
+                    declaring = -1;
+                }
+                if (kind == PARAMETERS) {
+                    header = 4;
+                    endsValue = false;
+                } else if (kind == IF_CONDITION || kind == FOR_CONDITION || kind == CONDITION) {
+                    endsIf = kind == IF_CONDITION;
+                    startsNext = true;
+                    endsValue = false;
+                } else if (kind == BLOCK || kind == IF_BLOCK || kind == DECLARATION) {
+                    allowsElse = kind == IF_BLOCK;
+                    startsNext = true;
+                    endsValue = false;
+                } else {
+                    endsValue = true;
+                }
+                end = i + 1;
+            } else if (ch == ';') {
+                if (!isBody(top) || !(value || start || last.equals("return"))) {
+                    return false;
+                }
+                declaring = -1;
+                startsNext = true;
+                end = i + 1;
+                endsValue = false;
+            } else if (ch == ',') {
+                if (!value && top != ARRAY) {
+                    return false;
+                }
+                if (top == OBJECT) {
+                    objectKey = 1;
+                }
+                nameNext = declaring == brackets.size();
+                end = i + 1;
+                endsValue = false;
+            } else if (objectKey == 2) {
+                // the : after a property name
+                objectKey = 0;
+                end = i + 1;
+                endsValue = false;
+            } else if (JavascriptLexer.isOperatorChar(ch)) {
+                String operator = JavascriptLexer.operatorAt(expression, i);
+                if (value && !newline && (operator.equals("++") || operator.equals("--"))) {
+                    // a postfix increment leaves a value behind
+                    endsValue = true;
+                } else if (value ? UNARY_OPERATORS.contains(operator) : !PREFIX_OPERATORS.contains(operator)) {
+                    return false;
+                } else {
+                    endsValue = false;
+                }
+                if (operator.equals(".") && !startsProperty(expression, i + 1)) {
+                    return false;
+                }
+                if (operator.equals("?")) {
+                    ternaries++;
+                } else if (operator.equals(":")) {
+                    // labels and case clauses are left to eval, so a colon has to end a ternary
+                    if (ternaries == 0) {
+                        return false;
+                    }
+                    ternaries--;
+                }
+                end = i + operator.length();
+            } else {
+                return false;
+            }
+
+            last = expression.substring(i, end);
+            value = endsValue;
+            start = startsNext;
+            elseAllowed = allowsElse;
+            ifBody = endsIf;
+            newline = false;
+            first = false;
+            i = end;
+        }
+        return brackets.isEmpty() && ternaries == 0 && value;
+    }
+
+    /**
+     * Is the bracket a block of statements in a function
+     */
+    private static boolean isBody(char kind) {
+        return kind == FUNCTION || kind == DECLARATION || kind == BLOCK || kind == IF_BLOCK;
+    }
+
+    /**
+     * Returns the character that closes the kind of bracket
+     */
+    private static char closing(char kind) {
+        if (kind == ARRAY || kind == INDEX) {
+            return ']';
+        } else if (kind == OBJECT || isBody(kind)) {
+            return '}';
+        } else {
+            return ')';
+        }
+    }
+
+    /**
+     * Is the word reserved, so it can not name a variable, function or parameter
+     */
+    private static boolean isReserved(String word) {
+        return BINARY_KEYWORDS.contains(word) || PREFIX_KEYWORDS.contains(word) || STATEMENT_KEYWORDS.contains(word) ||
+            UNSUPPORTED_KEYWORDS.contains(word) || VALUE_KEYWORDS.contains(word);
+    }
+
+    /**
+     * Does a property name follow the index
+     */
+    private static boolean startsProperty(String text, int i) {
+        while (i < text.length() && Character.isWhitespace(text.charAt(i))) {
+            i++;
+        }
+        return i < text.length() && Character.isJavaIdentifierStart(text.charAt(i));
+    }
+
+    /**
+     * Is the text from start to end an ES5 number, a decimal with an optional fraction and exponent or a hexadecimal
+     */
+    private static boolean isNumber(String text, int start, int end) {
+        int i = start;
+        if (end - start > 2 && text.charAt(i) == '0' && (text.charAt(i + 1) == 'x' || text.charAt(i + 1) == 'X')) {
+            for (i += 2; i < end; i++) {
+                if (Character.digit(text.charAt(i), 16) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        int digits = 0;
+        while (i < end && Character.isDigit(text.charAt(i))) {
+            i++;
+            digits++;
+        }
+        if (i < end && text.charAt(i) == '.') {
+            i++;
+            while (i < end && Character.isDigit(text.charAt(i))) {
+                i++;
+                digits++;
+            }
+        }
+        if (digits == 0) {
+            return false;
+        }
+        if (i < end && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+            i++;
+            if (i < end && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+                i++;
+            }
+            int exponent = i;
+            while (i < end && Character.isDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i == exponent) {
+                return false;
+            }
+        }
+        return i == end;
+    }
+
+    /**
+     * Is the code a literal whose value is known when the template is compiled: a string with no escapes in it, a
+     * decimal integer, true, false or null
+     */
+    public static boolean isLiteral(String code) {
+        String literal = code.trim();
+        if (literal.equals("true") || literal.equals("false") || literal.equals("null")) {
+            return true;
+        } else if (literal.length() >= 2 && (literal.charAt(0) == '"' || literal.charAt(0) == '\'')) {
+            char quote = literal.charAt(0);
+            for (int i = 1; i < literal.length() - 1; i++) {
+                char ch = literal.charAt(i);
+                if (ch == quote || ch == '\\' || ch == '\n' || ch == '\r' || ch == '\u2028' || ch == '\u2029') {
+                    return false;
+                }
+            }
+            return literal.charAt(literal.length() - 1) == quote;
+        } else {
+            // integers small enough to be written the same way when converted back to a string
+            int start = literal.startsWith("-") ? 1 : 0;
+            int digits = literal.length() - start;
+            if (digits < 1 || digits > 9 || (literal.charAt(start) == '0' && (digits > 1 || start > 0))) {
+                return false;
+            }
+            for (int i = start; i < literal.length(); i++) {
+                if (literal.charAt(i) < '0' || literal.charAt(i) > '9') {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the value of a literal converted to a string, or null for false and null
+     */
+    public static String literalValue(String code) {
+        String literal = code.trim();
+        if (literal.equals("false") || literal.equals("null")) {
+            return null;
+        } else if (literal.charAt(0) == '"' || literal.charAt(0) == '\'') {
+            return literal.substring(1, literal.length() - 1);
+        } else {
+            return literal;
+        }
+    }
+}
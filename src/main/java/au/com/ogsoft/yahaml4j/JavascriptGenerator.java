@@ -1,13 +1,16 @@
 package au.com.ogsoft.yahaml4j;
 
-import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.json.JSONObject;
 import org.json.JSONStringer;
 import org.json.JSONWriter;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.regex.Pattern;
 
 /**
@@ -17,7 +20,19 @@ public class JavascriptGenerator extends BaseCodeGenerator {
 
     public static final Pattern CODE_BLOCK_END = Pattern.compile("[ \\t]*\\}");
 
+    private static final String HEX_DIGITS = "0123456789ABCDEF";
+    // below this much static contents for each value, the output is collected in a string instead of an array
+    private static final int STRING_OUTPUT_STATIC_PER_VALUE = 64;
+
     private String scriptName;
+    // the source location of each expression in production mode, indexed by the value of the location register
+    private final List<String> errorSites = new ArrayList<String>();
+    // is the output collected by concatenating strings instead of in an array that is joined at the end
+    private boolean stringOutput;
+    // the length of the code before any code for the template, and the contents of the last template generated if
+    // it had no code
+    private int bodyStart;
+    private String staticOutput;
 
     public JavascriptGenerator(String scriptName, HamlOptions options) {
         super(options);
@@ -28,6 +43,18 @@ public class JavascriptGenerator extends BaseCodeGenerator {
      * Initialise the output buffer with any variables or code
      */
     public void initOutput() {
+        outputBuffer = newOutputBuffer();
+        appendFunctionStart();
+    }
+
+    @Override
+    public void initOutput(Appendable out) {
+        outputBuffer = newOutputBuffer(out);
+        appendFunctionStart();
+    }
+
+    private void appendFunctionStart() {
+        errorSites.clear();
         getOutputBuffer().appendToOutputBuffer("function " + safeName(scriptName) + " (context) {\n");
         if (options.tolerateFaults) {
             getOutputBuffer().appendToOutputBuffer("  var handleError = haml.HamlRuntime._logError;");
@@ -36,10 +63,76 @@ public class JavascriptGenerator extends BaseCodeGenerator {
         }
 
         getOutputBuffer().appendToOutputBuffer(
-            "  var html = [];" +
-                "  var hashFunction = null, hashObject = null, objRef = null, objRefFn = null;" +
-                "  with (context || {}) {\n"
+            (stringOutput ? "  var html = \"\";" : "  var html = [];") + "  var hashObject = null, objRef = null, value = null;"
         );
+        if (options.production) {
+            getOutputBuffer().appendToOutputBuffer("  var currentSite = 0;  try {");
+        }
+        // with fault tolerance on, each expression reports its own error and is left blank while the rest of the
+        // template still renders, which only looking the variables up through a with block does
+        if (templateVariables != null && templateVariables.conclusive && (!options.tolerateFaults || options.production)) {
+            // the variables are looked up once, instead of on every use through a with block
+            SortedSet<String> names = new TreeSet<String>(templateVariables.names);
+            names.addAll(templateVariables.globals);
+            boolean sites = false;
+            for (String name: names) {
+                getOutputBuffer().appendToOutputBuffer((name.equals(names.first()) ? "  var " : ", ") + name + " = ");
+                sites = appendVariableLookup(name) || sites;
+            }
+            if (!names.isEmpty()) {
+                getOutputBuffer().appendToOutputBuffer(sites ? ";  currentSite = 0;" : ";");
+            }
+            getOutputBuffer().appendToOutputBuffer("  {\n");
+        } else {
+            getOutputBuffer().appendToOutputBuffer("  with (context || {}) {\n");
+        }
+        bodyStart = getOutputBuffer().length();
+        staticOutput = null;
+    }
+
+    /**
+     * Appends the code to look up a variable in the context when the template starts. A missing variable is reported
+     * at the first place the template reads it, the same as the error from reading it would be, unless the template
+     * only checks it with typeof. Returns if the location register of a production template was set
+     */
+    private boolean appendVariableLookup(String name) {
+        CodeBuffer buffer = getOutputBuffer();
+        ParsePoint point = templateVariables.firstRead(name);
+        String lookup = "haml.HamlRuntime.variable(context, " + JSONObject.quote(name);
+        if (templateVariables.probed.contains(name)) {
+            buffer.appendToOutputBuffer(lookup + ", false)");
+        } else if (point == null) {
+            buffer.appendToOutputBuffer(lookup + ")");
+        } else if (options.production) {
+            buffer.appendToOutputBuffer("(currentSite = " + errorSite(point) + ", " + lookup + "))");
+            return true;
+        } else {
+            buffer.appendToOutputBuffer(lookup + ", handleError, ");
+            buffer.appendLineNumber(point.lineNumber);
+            buffer.appendToOutputBuffer(", " + point.characterNumber + ", sourceLine)");
+            addSourceLine(point);
+        }
+        return false;
+    }
+
+    @Override
+    public void setOutputProfile(OutputProfile profile) {
+        super.setOutputProfile(profile);
+        stringOutput = useStringOutput();
+    }
+
+    /**
+     * Should the output be collected by concatenating strings instead of pushing the parts onto an array. Appending
+     * to a string is faster when there are many values with little static contents between them, while pushing
+     * is faster when long static contents are added. Without a profile the output is collected in an array
+     */
+    protected boolean useStringOutput() {
+        return outputProfile != null && outputProfile.staticLengthPerValue() < STRING_OUTPUT_STATIC_PER_VALUE;
+    }
+
+    @Override
+    public HamlGenerator newInstance() {
+        return new JavascriptGenerator(scriptName, options);
     }
 
     private String safeName(String scriptName) {
@@ -53,7 +146,31 @@ public class JavascriptGenerator extends BaseCodeGenerator {
      */
     @Override
     public String generateFlush(String buffer) {
-        return "    html.push(\"" + escapeCode(buffer) + "\");\n";
+        StringBuilder code = new StringBuilder(buffer.length() + 20).append(generateOutputStart()).append('"');
+        escapeCode(code, buffer);
+        return code.append('"').append(generateOutputEnd()).toString();
+    }
+
+    @Override
+    public String generateOutputStart() {
+        return stringOutput ? "    html += " : "    html.push(";
+    }
+
+    @Override
+    public String generateOutputSeparator() {
+        return stringOutput ? " + " : ", ";
+    }
+
+    @Override
+    public String generateOutputEnd() {
+        return stringOutput ? ";\n" : ");\n";
+    }
+
+    @Override
+    public String generateString(String contents) {
+        StringBuilder code = new StringBuilder(contents.length() + 8).append('"');
+        escapeCode(code, contents);
+        return code.append('"').toString();
     }
 
     /**
@@ -61,8 +178,77 @@ public class JavascriptGenerator extends BaseCodeGenerator {
      */
     @Override
     public String closeAndReturnOutput() {
-        getOutputBuffer().flush();
-        return getOutputBuffer().output() + "  }\n  return html.join(\"\");\n}\n";
+        closeOutput();
+        return getOutputBuffer().output();
+    }
+
+    @Override
+    public void closeOutput() {
+        CodeBuffer buffer = getOutputBuffer();
+        if (buffer.length() == bodyStart && !buffer.isStreaming()) {
+            // no code was generated for the template, so its contents are all it renders
+            staticOutput = buffer.getBuffer().toString();
+            buffer.restart();
+            buffer.appendToOutputBuffer("function " + safeName(scriptName) + " (context) {\n  return " +
+                generateString(staticOutput) + ";\n}\n");
+            return;
+        }
+        if (options.production) {
+            // the table of locations is only built if there is an error
+            buffer.appendToOutputBuffer("  }\n  } catch (e) {\n" +
+                "    handleError(haml.HamlRuntime.siteError([null" + (errorSites.isEmpty() ? "" : ", ") +
+                StringUtils.join(errorSites, ", ") + "], currentSite, e" + (errorSites.isEmpty() ? "" : ", sourceLine") +
+                "));\n  }\n");
+        } else {
+            buffer.appendToOutputBuffer("  }\n");
+        }
+        buffer.appendToOutputBuffer(stringOutput ? "  return html;\n" : "  return html.join(\"\");\n");
+        appendSourceLines(buffer.getSourceLines());
+        buffer.appendToOutputBuffer("}\n");
+    }
+
+    @Override
+    public String getStaticOutput() {
+        return staticOutput;
+    }
+
+    /**
+     * Appends the table of the template lines the code reports errors against. It is a function declaration, so it
+     * can come after the return and still be called from anywhere in the template
+     */
+    private void appendSourceLines(Map<Integer, String> sourceLines) {
+        if (!sourceLines.isEmpty()) {
+            StringBuilder table = new StringBuilder("  function sourceLine(lineNumber) {\n    return {");
+            for (Map.Entry<Integer, String> line: sourceLines.entrySet()) {
+                if (table.charAt(table.length() - 1) != '{') {
+                    table.append(", ");
+                }
+                table.append(line.getKey()).append(": \"");
+                escapeCode(table, line.getValue());
+                table.append('"');
+            }
+            table.append("}[lineNumber];\n  }\n");
+            getOutputBuffer().appendToOutputBuffer(table.toString());
+        }
+    }
+
+    /**
+     * Records the location of an expression for the error handler of a production template, and returns the value
+     * of the location register for it. A location that is already recorded keeps its register value
+     */
+    private int errorSite(ParsePoint parsePoint) {
+        String site = "[" + parsePoint.lineNumber + ", " + parsePoint.characterNumber + "]";
+        int index = errorSites.indexOf(site);
+        if (index < 0) {
+            errorSites.add(site);
+            addSourceLine(parsePoint);
+            index = errorSites.size() - 1;
+        }
+        return index + 1;
+    }
+
+    private void addSourceLine(ParsePoint parsePoint) {
+        outputBuffer.addSourceLine(parsePoint.lineNumber, parsePoint.getCurrentLine());
     }
 
     @Override
@@ -74,8 +260,8 @@ public class JavascriptGenerator extends BaseCodeGenerator {
      * Generate the code to close off a code block
      */
     @Override
-    public void closeOffCodeBlock(Tokeniser tokeniser) {
-        if (tokeniser.getToken().type != Token.TokenType.MINUS || tokeniser.matchToken(CODE_BLOCK_END) == null) {
+    public void closeOffCodeBlock(String closingCode) {
+        if (!closesCodeBlock(closingCode)) {
             outputBuffer.flush();
             outputBuffer.appendToOutputBuffer(HamlRuntime.indentText(getIndent()) + "}\n");
         }
@@ -85,55 +271,89 @@ public class JavascriptGenerator extends BaseCodeGenerator {
      * Generate the code to close off a function parameter
      */
     @Override
-    public void closeOffFunctionBlock(Tokeniser tokeniser) {
-        if (tokeniser.getToken().type != Token.TokenType.MINUS || tokeniser.matchToken(CODE_BLOCK_END) == null) {
+    public void closeOffFunctionBlock(String closingCode) {
+        if (!closesCodeBlock(closingCode)) {
             outputBuffer.flush();
             outputBuffer.appendToOutputBuffer(HamlRuntime.indentText(getIndent()) + "});\n");
         }
     }
 
     /**
-     * Generate the code for dynamic attributes ({} form)
+     * Does the code line that closed a block start with the closing brace (matches CODE_BLOCK_END)
+     */
+    static boolean closesCodeBlock(String closingCode) {
+        if (closingCode == null) {
+            return false;
+        }
+        int i = 0;
+        while (i < closingCode.length() && (closingCode.charAt(i) == ' ' || closingCode.charAt(i) == '\t')) {
+            i++;
+        }
+        return i < closingCode.length() && closingCode.charAt(i) == '}';
+    }
+
+    /**
+     * Generate the code for dynamic attributes ({} form). The attributes are added to the output in the same
+     * statement as the contents around them
      */
     @Override
     public void generateCodeForDynamicAttributes(String id, List<String> classes, Map<String, String> attributeList,
                                                  Map<String, String> attributeHash, String objectRef, ParsePoint currentParsePoint) {
-        outputBuffer.flush();
-        if (!attributeHash.isEmpty()) {
-            String hashStr = "";
-            for (Map.Entry<String, String> entry : attributeHash.entrySet()) {
-                String key = entry.getKey();
-                if (!hashStr.isEmpty()) {
-                    hashStr += ", ";
-                }
-                String value = entry.getValue().replaceAll("[\"]", "\\\\\"").replaceAll("\n", "\\\\n");
-                value = replaceReservedWordsInHash(value);
-                hashStr += "\\\"" + key + "\\\": " + value;
-            }
-            outputBuffer.appendToOutputBuffer("    hashFunction = function () { return eval(\"hashObject = {" +
-                hashStr + " }\"); };\n");
+        StringBuilder code = new StringBuilder("haml.HamlRuntime.generateElementAttributes(context, \"").append(id)
+            .append("\", [\"").append(StringUtils.join(classes, "\",\"")).append("\"], ");
+        if (StringUtils.isNotEmpty(objectRef) && canInline(objectRef)) {
+            code.append("function () { return (").append(objectRef.trim()).append("); }");
+        } else if (StringUtils.isNotEmpty(objectRef)) {
+            code.append("function () { return eval(\"objRef = ").append(objectRef).append("\"); }");
         } else {
-            outputBuffer.appendToOutputBuffer("    hashFunction = null;\n");
-        }
-        if (StringUtils.isNotEmpty(objectRef)) {
-            outputBuffer.appendToOutputBuffer("    objRefFn = function () { return eval(\"objRef = " +
-                objectRef.replaceAll("\"", "\\\"") + "\"); };\n");
-        } else {
-            outputBuffer.appendToOutputBuffer("    objRefFn = null;\n");
+            code.append("null");
         }
 
         JSONWriter json = new JSONStringer().object();
         for(Map.Entry<String, String> attr: attributeList.entrySet()) {
             json.key(attr.getKey()).value(attr.getValue());
         }
-        String attrbuteListJson = json.endObject().toString();
+        code.append(", ").append(json.endObject().toString()).append(", ");
+
+        if (!attributeHash.isEmpty()) {
+            List<String> values = new ArrayList<String>(attributeHash.size());
+            boolean inline = true;
+            for (String value: attributeHash.values()) {
+                StringBuilder quoted = new StringBuilder(value.length() + 8);
+                appendHashValue(quoted, value, "\"", false);
+                values.add(quoted.toString());
+                inline = inline && canInline(values.get(values.size() - 1));
+            }
+            code.append(inline ? "function () { return {" : "function () { return eval(\"hashObject = {");
+            int i = 0;
+            for (Map.Entry<String, String> entry : attributeHash.entrySet()) {
+                if (i > 0) {
+                    code.append(", ");
+                }
+                if (inline) {
+                    code.append(JSONObject.quote(entry.getKey())).append(": ").append(values.get(i));
+                } else {
+                    code.append("\\\"").append(entry.getKey()).append("\\\": ");
+                    appendHashValue(code, entry.getValue(), "\\\"", true);
+                }
+                i++;
+            }
+            code.append(inline ? " }; }" : " }\"); }");
+        } else {
+            code.append("null");
+        }
 
-        outputBuffer.appendToOutputBuffer("    html.push(haml.HamlRuntime.generateElementAttributes(context, \"" +
-          id + "\", [\"" +
-          StringUtils.join(classes, "\",\"") + "\"], objRefFn, " +
-          attrbuteListJson + ", hashFunction, " +
-          currentParsePoint.lineNumber + ", " + currentParsePoint.characterNumber + ", \"" +
-          escapeCode(currentParsePoint.currentLine) + "\", handleError));\n");
+        outputBuffer.startOutputExpression();
+        if (options.production) {
+            // without a location the runtime leaves any error to the error handler of the template
+            outputBuffer.appendToOutputExpression("(currentSite = " + errorSite(currentParsePoint) + ", value = " +
+                code + "), currentSite = 0, value)");
+        } else {
+            outputBuffer.appendToOutputExpression(code.append(", ").toString());
+            outputBuffer.appendLineNumber(currentParsePoint.lineNumber);
+            outputBuffer.appendToOutputExpression(", " + currentParsePoint.characterNumber + ", sourceLine, handleError)");
+            addSourceLine(currentParsePoint);
+        }
     }
 
     /**
@@ -141,13 +361,113 @@ public class JavascriptGenerator extends BaseCodeGenerator {
      */
     @Override
     public void appendTextContents(String text, boolean shouldInterpolate, ParsePoint currentParsePoint, ProcessOptions options) {
-        if (shouldInterpolate && text.matches("#\\{[^}]*\\}")) {
-            // @interpolateString(text, currentParsePoint, options)
-        } else{
+        if (shouldInterpolate && findInterpolation(text, 0) >= 0) {
+            interpolateString(text, currentParsePoint, options);
+        } else {
             outputBuffer.append(processText(text, options));
         }
     }
 
+    /**
+     * Splits the text into the static text and the #{} interpolations in it, generating the code for each
+     * interpolation the same as for an embedded expression. A backslash before the #{ keeps it as text, unless the
+     * backslash is escaped itself
+     */
+    private void interpolateString(String text, ParsePoint currentParsePoint, ProcessOptions options) {
+        boolean escapeHtml = options != null && (options.escapeHTML || options.escapeInterpolations);
+        boolean perserveWhitespace = options != null && options.perserveWhitespace;
+        int index = 0;
+        int start = findInterpolation(text, 0);
+        while (start >= 0) {
+            int end = interpolationEnd(text, start);
+            if (isEscapedInterpolation(text, start)) {
+                outputBuffer.append(processText(text.substring(index, start - 1), options));
+                outputBuffer.append(processText(text.substring(start, end), options));
+            } else {
+                outputBuffer.append(processText(text.substring(index, start), options));
+                appendEmbeddedCode(HamlRuntime.indentText(getIndent() + 1), text.substring(start + 2, end - 1),
+                    escapeHtml, perserveWhitespace, currentParsePoint);
+            }
+            index = end;
+            start = findInterpolation(text, index);
+        }
+        if (index < text.length()) {
+            outputBuffer.append(processText(text.substring(index), options));
+        }
+    }
+
+    /**
+     * Returns the start of the next #{} interpolation in the text from the given index, or -1 if there are no more.
+     * A #{ with no } closing it is just text
+     */
+    static int findInterpolation(CharSequence text, int from) {
+        for (int i = from; i < text.length() - 1; i++) {
+            if (text.charAt(i) == '#' && text.charAt(i + 1) == '{') {
+                return interpolationEnd(text, i) < 0 ? -1 : i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index after the } that closes the #{} interpolation starting at the given index, or -1 if it is not
+     * closed. Strings and braces in the code of the interpolation are skipped over
+     */
+    static int interpolationEnd(CharSequence text, int start) {
+        int braces = 0;
+        int i = start + 2;
+        while (i < text.length()) {
+            char ch = text.charAt(i);
+            if (ch == '"' || ch == '\'' || ch == '`') {
+                i = JavascriptLexer.skipString(text, i);
+                if (i < 0) {
+                    return -1;
+                }
+                continue;
+            } else if (ch == '{') {
+                braces++;
+            } else if (ch == '}') {
+                if (braces == 0) {
+                    return i + 1;
+                }
+                braces--;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * Is the interpolation starting at the given index escaped with a backslash, which is not escaped itself
+     */
+    static boolean isEscapedInterpolation(CharSequence text, int start) {
+        return start > 0 && text.charAt(start - 1) == '\\' && !(start > 1 && text.charAt(start - 2) == '\\');
+    }
+
+    @Override
+    public void appendTextLine(String indentText, CharSequence line, boolean shouldInterpolate,
+                               ParsePoint currentParsePoint, ProcessOptions options) {
+        if (shouldInterpolate && findInterpolation(line, 0) >= 0) {
+            appendTextContents(indentText + line + '\n', true, currentParsePoint, options);
+        } else if (options == null || !(options.escapeHTML || options.perserveWhitespace)) {
+            outputBuffer.append(indentText);
+            outputBuffer.append(line, 0, line.length());
+            outputBuffer.append("\n");
+        } else {
+            appendTextContents(indentText + line + '\n', shouldInterpolate, currentParsePoint, options);
+        }
+    }
+
+    @Override
+    public boolean isLiteral(String code) {
+        return JavascriptExpressions.isLiteral(code);
+    }
+
+    @Override
+    public String literalValue(String code) {
+        return JavascriptExpressions.literalValue(code);
+    }
+
     @Override
     public String scanEmbeddedCode(Tokeniser tokeniser) {
         StringBuilder result = new StringBuilder();
@@ -198,7 +518,47 @@ public class JavascriptGenerator extends BaseCodeGenerator {
      */
     @Override
     public boolean lineMatchesStartFunctionBlock(String line) {
-        return line.matches(".*function\\s*\\((,?\\s*\\w+)*\\)\\s*\\{\\s*$");
+        // scans back over what the pattern .*function\s*\((,?\s*\w+)*\)\s*\{\s*$ would match
+        int brace = skipWhitespaceBack(line, line.length()) - 1;
+        if (brace < 0 || line.charAt(brace) != '{') {
+            return false;
+        }
+        int close = skipWhitespaceBack(line, brace) - 1;
+        if (close < 0 || line.charAt(close) != ')') {
+            return false;
+        }
+        int open = close - 1;
+        while (open >= 0 && (isWordChar(line.charAt(open)) || isWhitespace(line.charAt(open)) ||
+                line.charAt(open) == ',')) {
+            open--;
+        }
+        if (open < 0 || line.charAt(open) != '(' || !isParameterList(line, open + 1, close)) {
+            return false;
+        }
+        int end = skipWhitespaceBack(line, open);
+        return line.startsWith("function", end - 8) && !hasLineTerminator(line, end - 8);
+    }
+
+    /**
+     * Is the text between start and end a list of parameters, matching (,?\s*\w+)*
+     */
+    private static boolean isParameterList(String line, int start, int end) {
+        int i = start;
+        while (i < end) {
+            if (line.charAt(i) == ',') {
+                i++;
+            }
+            while (i < end && isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            if (i == end || !isWordChar(line.charAt(i))) {
+                return false;
+            }
+            while (i < end && isWordChar(line.charAt(i))) {
+                i++;
+            }
+        }
+        return true;
     }
 
     /**
@@ -206,7 +566,39 @@ public class JavascriptGenerator extends BaseCodeGenerator {
      */
     @Override
     public boolean lineMatchesStartBlock(String line) {
-        return line.matches(".*\\{\\s*$");
+        int brace = skipWhitespaceBack(line, line.length()) - 1;
+        return brace >= 0 && line.charAt(brace) == '{' && !hasLineTerminator(line, brace);
+    }
+
+    /**
+     * Returns the index after the last character before end that is not whitespace (\s)
+     */
+    private static int skipWhitespaceBack(String line, int end) {
+        while (end > 0 && isWhitespace(line.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isWhitespace(char ch) {
+        return ch == ' ' || ch == '\t' || ch == '\n' || ch == '\u000B' || ch == '\f' || ch == '\r';
+    }
+
+    private static boolean isWordChar(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9') || ch == '_';
+    }
+
+    /**
+     * Does the line have a line break before end, which .* would not match
+     */
+    private static boolean hasLineTerminator(String line, int end) {
+        for (int i = 0; i < end; i++) {
+            char ch = line.charAt(i);
+            if (ch == '\n' || ch == '\r' || ch == '\u0085' || ch == '\u2028' || ch == '\u2029') {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -214,26 +606,62 @@ public class JavascriptGenerator extends BaseCodeGenerator {
      */
     @Override
     public void appendEmbeddedCode(String indentText, String expression, boolean escapeHtml, boolean perserveWhitespace, ParsePoint currentParsePoint) {
-        outputBuffer.flush();
+        if (options.production) {
+            // the value is added to the output in the same statement as the contents around it
+            outputBuffer.startOutputExpression();
+            outputBuffer.appendToOutputExpression("(currentSite = " + errorSite(currentParsePoint) + ", value = " +
+                expressionCode(expression) + ", value = " +
+                outputValue("value === null ? \"\" : value", escapeHtml, perserveWhitespace) +
+                ", currentSite = 0, value)");
+            return;
+        }
 
+        outputBuffer.flush();
         outputBuffer.appendToOutputBuffer(indentText + "try {\n");
-        outputBuffer.appendToOutputBuffer(indentText + "    var value = eval(\"" +
-            escapeCode(expression.trim()).replaceAll("\n", "\\\\n") + "\");\n");
-        outputBuffer.appendToOutputBuffer(indentText + "    value = value === null ? \"\" : value;\n");
+        appendExpressionValue(indentText + "    ", expression, escapeHtml, perserveWhitespace);
+        outputBuffer.appendToOutputBuffer(indentText + "} catch (e) {\n");
+        outputBuffer.appendToOutputBuffer(indentText + "  handleError(haml.HamlRuntime.templateError(");
+        outputBuffer.appendLineNumber(currentParsePoint.lineNumber);
+        outputBuffer.appendToOutputBuffer(", " + currentParsePoint.characterNumber + ", sourceLine,\n");
+        addSourceLine(currentParsePoint);
+        outputBuffer.appendToOutputBuffer(indentText + "    \"Error evaluating expression - \" + e));\n");
+        outputBuffer.appendToOutputBuffer(indentText + "}\n");
+    }
+
+    /**
+     * Append the code to work out the value of an expression and push it into the output
+     */
+    private void appendExpressionValue(String indentText, String expression, boolean escapeHtml,
+                                       boolean perserveWhitespace) {
+        outputBuffer.appendToOutputBuffer(indentText + "var value = " + expressionCode(expression) + ";\n");
+        outputBuffer.appendToOutputBuffer(indentText + "value = value === null ? \"\" : value;\n");
+        outputBuffer.appendToOutputBuffer(indentText + StringUtils.stripStart(generateOutputStart(), " ") +
+            outputValue("value", escapeHtml, perserveWhitespace) + generateOutputEnd());
+    }
+
+    /**
+     * Returns the code for the value of an expression, evaluating it with eval if it can not be put straight into
+     * the generated function
+     */
+    private String expressionCode(String expression) {
+        if (canInline(expression)) {
+            return "(" + expression.trim() + ")";
+        } else {
+            return "eval(\"" + escapeCode(expression.trim()) + "\")";
+        }
+    }
+
+    /**
+     * Returns the code for the string added to the output for a value
+     */
+    private String outputValue(String value, boolean escapeHtml, boolean perserveWhitespace) {
         if (escapeHtml) {
-            outputBuffer.appendToOutputBuffer(indentText + "    html.push(haml.HamlRuntime.escapeHTML(String(value)));\n");
+            return "haml.HamlRuntime.escapeHTML(String(" + value + "))";
         } else if (perserveWhitespace) {
-            outputBuffer.appendToOutputBuffer(indentText + "    html.push(haml.HamlRuntime.perserveWhitespace(String(value)));\n");
+            return "haml.HamlRuntime.perserveWhitespace(String(" + value + "))";
         } else {
-            outputBuffer.appendToOutputBuffer(indentText + "    html.push(String(value));\n");
+            return "String(" + value + ")";
         }
-
-        outputBuffer.appendToOutputBuffer(indentText + "} catch (e) {\n");
-        outputBuffer.appendToOutputBuffer(indentText + "  handleError(haml.HamlRuntime.templateError(" +
-          currentParsePoint.lineNumber + ", " + currentParsePoint.characterNumber + ", \"" +
-          escapeCode(currentParsePoint.currentLine) + "\",\n");
-        outputBuffer.appendToOutputBuffer(indentText + "    \"Error evaluating expression - \" + e));\n");
-        outputBuffer.appendToOutputBuffer(indentText + "}\n");
     }
 
     /**
@@ -252,19 +680,86 @@ public class JavascriptGenerator extends BaseCodeGenerator {
     /**
      * Escape the line so it is safe to put into a javascript string
      */
-    private String escapeCode(String jsString) {
-        return StringEscapeUtils.escapeEcmaScript(jsString);
+    private static String escapeCode(String jsString) {
+        StringBuilder out = new StringBuilder(jsString.length() + 16);
+        escapeCode(out, jsString);
+        return out.toString();
+    }
+
+    /**
+     * Appends the text escaped the same way as StringEscapeUtils.escapeEcmaScript, in a single pass
+     */
+    static void escapeCode(StringBuilder out, CharSequence text) {
+        int length = text.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char ch = text.charAt(i);
+            if (ch >= 32 && ch <= 0x7f && ch != '\'' && ch != '"' && ch != '\\' && ch != '/') {
+                continue;
+            }
+            out.append(text, start, i);
+            start = i + 1;
+            switch (ch) {
+                case '\'': case '"': case '\\': case '/':
+                    out.append('\\').append(ch);
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                default:
+                    out.append("\\u");
+                    for (int shift = 12; shift >= 0; shift -= 4) {
+                        out.append(HEX_DIGITS.charAt((ch >> shift) & 0xF));
+                    }
+            }
+        }
+        out.append(text, start, length);
+    }
+
+    /**
+     * Can the embedded code be put straight into the generated function. Code that can not is evaluated with eval
+     * when the template is rendered, so any errors in it are reported then
+     */
+    protected boolean canInline(String code) {
+        return JavascriptExpressions.isExpression(code);
     }
 
     /**
-    Clean any reserved words in the given hash
-    */
-    private String replaceReservedWordsInHash(String hash) {
-        String resultHash = hash;
-        for(String reservedWord: Arrays.asList("class", "for")) {
-            resultHash = resultHash.replaceAll(reservedWord + ':', "\\\\\"" + reservedWord + "\\\\\":");
+     * Appends a value of an attribute hash with any reserved words quoted with the given quote. Values that are
+     * evaluated also have their double quotes and newlines escaped
+     */
+    private static void appendHashValue(StringBuilder out, String value, String quote, boolean escape) {
+        int length = value.length();
+        int i = 0;
+        while (i < length) {
+            char ch = value.charAt(i);
+            String reservedWord = ch == 'c' && value.startsWith("class:", i) ? "class" :
+                ch == 'f' && value.startsWith("for:", i) ? "for" : null;
+            if (reservedWord != null) {
+                out.append(quote).append(reservedWord).append(quote).append(':');
+                i += reservedWord.length() + 1;
+                continue;
+            } else if (escape && ch == '"') {
+                out.append("\\\"");
+            } else if (escape && ch == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(ch);
+            }
+            i++;
         }
-        return resultHash;
     }
 
     /*
@@ -278,25 +773,6 @@ public class JavascriptGenerator extends BaseCodeGenerator {
     catch e
       throw "Incorrect embedded code has resulted in an invalid Haml function - #{e}\nGenerated Function:\n#{functionBody}"
 
-  ###
-    Interpolate any embedded code in the text
-  ###
-  interpolateString: (text, currentParsePoint, options) ->
-    index = 0
-    result = @embeddedCodeBlockMatcher.exec(text)
-    while result
-      precheedingChar = text.charAt(result.index - 1) if result.index > 0
-      precheedingChar2 = text.charAt(result.index - 2) if result.index > 1
-      if precheedingChar is '\\' and precheedingChar2 isnt '\\'
-        @outputBuffer.append(@processText(text.substring(index, result.index - 1), options)) unless result.index == 0
-        @outputBuffer.append(@processText(result[0]), options)
-      else
-        @outputBuffer.append(@processText(text.substring(index, result.index)), options)
-        @appendEmbeddedCode(HamlRuntime.indentText(@indent + 1), result[1], options.escapeHTML, options.perserveWhitespace, currentParsePoint)
-      index = @embeddedCodeBlockMatcher.lastIndex
-      result = @embeddedCodeBlockMatcher.exec(text)
-    @outputBuffer.append(@processText(text.substring(index), options)) if index < text.length
-
      */
 
 }
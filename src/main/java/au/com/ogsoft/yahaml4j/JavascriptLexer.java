@@ -0,0 +1,117 @@
+package au.com.ogsoft.yahaml4j;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The pieces of javascript tokenising shared by the code that scans the embedded code of a template when it is
+ * compiled: skipping over strings and regular expressions, and matching the ES5 operators.
+ */
+class JavascriptLexer {
+
+    private static final String OPERATOR_CHARS = "+-*/%=<>&|^!~?:.";
+    // longest first, so the longest operator at a position is matched
+    private static final List<String> OPERATORS = Arrays.asList(">>>=", "===", "!==", "<<=", ">>=", ">>>", "==",
+        "!=", "<=", ">=", "&&", "||", "<<", ">>", "++", "--", "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=", "=", "+",
+        "-", "*", "/", "%", "<", ">", "&", "|", "^", "!", "~", "?", ":", ".");
+    private static final Set<String> ASSIGNMENTS = new HashSet<String>(Arrays.asList("=", "+=", "-=", "*=", "/=",
+        "%=", "<<=", ">>=", ">>>=", "&=", "|=", "^=", "++", "--"));
+
+    private JavascriptLexer() {
+
+    }
+
+    /**
+     * Can an operator start with the character
+     */
+    static boolean isOperatorChar(char ch) {
+        return OPERATOR_CHARS.indexOf(ch) >= 0;
+    }
+
+    /**
+     * Returns the longest operator at the index, or null if there is none
+     */
+    static String operatorAt(CharSequence text, int i) {
+        for (String operator: OPERATORS) {
+            if (regionMatches(text, i, operator)) {
+                return operator;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Is the next operator after the index, skipping any whitespace, an assignment, increment or decrement
+     */
+    static boolean assigns(CharSequence text, int i) {
+        while (i < text.length() && Character.isWhitespace(text.charAt(i))) {
+            i++;
+        }
+        String operator = operatorAt(text, i);
+        return operator != null && ASSIGNMENTS.contains(operator) && !regionMatches(text, i, "=>");
+    }
+
+    /**
+     * Returns the end of the string starting at i, or -1 if it is not terminated
+     */
+    static int skipString(CharSequence text, int i) {
+        char quote = text.charAt(i);
+        int j = i + 1;
+        while (j < text.length()) {
+            char ch = text.charAt(j);
+            if (ch == '\\') {
+                j += 2;
+            } else if (ch == quote) {
+                return j + 1;
+            } else if ((ch == '\n' || ch == '\r') && quote != '`') {
+                return -1;
+            } else {
+                j++;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the end of the regular expression starting at i, or -1 if it is not terminated
+     */
+    static int skipRegex(CharSequence text, int i) {
+        boolean inClass = false;
+        int j = i + 1;
+        while (j < text.length()) {
+            char ch = text.charAt(j);
+            if (ch == '\\') {
+                j += 2;
+                continue;
+            } else if (ch == '\n' || ch == '\r') {
+                return -1;
+            } else if (ch == '[') {
+                inClass = true;
+            } else if (ch == ']') {
+                inClass = false;
+            } else if (ch == '/' && !inClass) {
+                j++;
+                while (j < text.length() && Character.isLetter(text.charAt(j))) {
+                    j++;
+                }
+                return j;
+            }
+            j++;
+        }
+        return -1;
+    }
+
+    private static boolean regionMatches(CharSequence text, int i, String part) {
+        if (i + part.length() > text.length()) {
+            return false;
+        }
+        for (int j = 0; j < part.length(); j++) {
+            if (text.charAt(i + j) != part.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,119 @@
+package au.com.ogsoft.yahaml4j;
+
+import au.com.ogsoft.yahaml4j.ast.*;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * How much of the output of a template is static contents and how many values are worked out when it is rendered,
+ * measured from the parsed template when it is compiled. The generator uses it to pick how the output is collected
+ */
+public class OutputProfile {
+
+    /**
+     * Length of the static contents, near enough: the tags of elements are counted without their attributes
+     */
+    public final int staticLength;
+    /**
+     * Number of places a value is added to the output: expressions and elements with dynamic attributes
+     */
+    public final int values;
+
+    private OutputProfile(int staticLength, int values) {
+        this.staticLength = staticLength;
+        this.values = values;
+    }
+
+    /**
+     * Measures the template
+     */
+    public static OutputProfile of(TemplateNode template) {
+        return of(Collections.singletonList(template));
+    }
+
+    /**
+     * Measures the templates, which are the parts of one template
+     */
+    public static OutputProfile of(List<TemplateNode> templates) {
+        Counter counter = new Counter();
+        for (TemplateNode template: templates) {
+            template.accept(counter);
+        }
+        return new OutputProfile(counter.staticLength, counter.values);
+    }
+
+    /**
+     * The average length of the static contents between values, or the whole length if there are no values
+     */
+    public double staticLengthPerValue() {
+        return (double) staticLength / Math.max(values, 1);
+    }
+
+    @Override
+    public String toString() {
+        return staticLength + " static, " + values + " values";
+    }
+
+    private static class Counter implements NodeVisitor {
+
+        private int staticLength;
+        private int values;
+
+        private void visitChildren(Node node) {
+            for (Node child: node.children) {
+                child.accept(this);
+            }
+        }
+
+        @Override
+        public void visit(TemplateNode node) {
+            visitChildren(node);
+        }
+
+        @Override
+        public void visit(DoctypeNode node) {
+            staticLength += node.doctype.length();
+        }
+
+        @Override
+        public void visit(ElementNode node) {
+            // the opening and closing tags
+            staticLength += node.tag.length() * 2 + 5;
+            if (node.hasDynamicAttributes()) {
+                values++;
+            }
+            visitChildren(node);
+        }
+
+        @Override
+        public void visit(TextNode node) {
+            if (node.text != null) {
+                staticLength += node.text.length();
+            }
+        }
+
+        @Override
+        public void visit(CodeNode node) {
+            visitChildren(node);
+        }
+
+        @Override
+        public void visit(EmbeddedCodeNode node) {
+            values++;
+        }
+
+        @Override
+        public void visit(CommentNode node) {
+            staticLength += node.contents == null ? 7 : node.contents.length() + 7;
+            visitChildren(node);
+        }
+
+        @Override
+        public void visit(FilterNode node) {
+            for (CharSequence line: node.contents) {
+                staticLength += line.length() + 1;
+            }
+        }
+    }
+}
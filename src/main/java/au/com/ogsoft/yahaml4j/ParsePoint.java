@@ -4,11 +4,34 @@ public class ParsePoint {
 
     public int lineNumber;
     public int characterNumber;
-    public String currentLine;
+    private String currentLine;
+    private SourceBuffer source;
+    private int lineStart;
 
     public ParsePoint(Integer lineNumber, Integer characterNumber, String currentLine) {
         this.lineNumber = lineNumber;
         this.characterNumber = characterNumber;
         this.currentLine = currentLine;
     }
+
+    /**
+     * Creates a parse point that only reads the text of the current line from the source when it is asked for
+     */
+    ParsePoint(int lineNumber, int characterNumber, SourceBuffer source, int lineStart) {
+        this.lineNumber = lineNumber;
+        this.characterNumber = characterNumber;
+        this.source = source;
+        this.lineStart = lineStart;
+    }
+
+    /**
+     * Returns the text of the line. Parsed templates can be shared between threads, so the line is read under a lock
+     */
+    public synchronized String getCurrentLine() {
+        if (source != null) {
+            currentLine = source.line(lineStart);
+            source = null;
+        }
+        return currentLine;
+    }
 }
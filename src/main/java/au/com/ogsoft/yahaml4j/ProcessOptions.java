@@ -4,4 +4,8 @@ public class ProcessOptions {
 
     public boolean escapeHTML;
     public boolean perserveWhitespace;
+    /**
+     * Escape the values of #{} interpolations, without escaping the text around them
+     */
+    public boolean escapeInterpolations;
 }
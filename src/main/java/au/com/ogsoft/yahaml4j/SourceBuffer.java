@@ -1,22 +1,51 @@
 package au.com.ogsoft.yahaml4j;
 
+import java.nio.CharBuffer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * Input buffer over the HAML source. All offsets are from the start of the source. Subclasses can provide the
+ * source as a window over a stream by loading characters on demand in fill (see StreamingSourceBuffer)
+ */
 public class SourceBuffer {
 
-    private final String source;
+    private final CharSequence source;
     private int index;
     private int mark;
 
     public SourceBuffer(String source) {
+        this((CharSequence) source);
+    }
+
+    protected SourceBuffer(CharSequence source) {
         this.source = source;
         index = 0;
     }
 
+    /**
+     * Makes sure the characters before the end offset can be read from the source, returning false if the
+     * source ends before then
+     */
+    protected boolean fill(int end) {
+        return end <= source.length();
+    }
+
+    /**
+     * Lets the buffer know that the characters before the offset will not be read again
+     */
+    public void release(int offset) {
+    }
+
+    /**
+     * Can the source from the offset still be read after it has been released
+     */
+    public boolean retains(int offset) {
+        return true;
+    }
 
     public boolean empty() {
-        return index >= source.length();
+        return !fill(index + 1);
     }
 
     public int mark() {
@@ -25,6 +54,7 @@ public class SourceBuffer {
     }
 
     public char get() {
+        fill(index + 1);
         return source.charAt(index++);
     }
 
@@ -40,15 +70,51 @@ public class SourceBuffer {
         return index;
     }
 
-    public String subSequence(Integer index, int pos) {
-        return source.substring(this.index + index, pos);
+    /**
+     * Returns the character at the given offset in the source
+     */
+    public char charAt(int offset) {
+        return source.charAt(offset);
+    }
+
+    /**
+     * Returns the source text between the start and end offsets
+     */
+    public String substring(int start, int end) {
+        return source.subSequence(start, end).toString();
+    }
+
+    /**
+     * Returns the text of the line starting at the given offset, not including the newline
+     */
+    public String line(int start) {
+        int end = start;
+        while (fill(end + 1) && source.charAt(end) != '\n') {
+            end++;
+        }
+        return end > start ? substring(start, end) : "";
+    }
+
+    /**
+     * Returns a view of the source text between the start and end offsets, without copying it
+     */
+    public CharSequence view(int start, int end) {
+        return CharBuffer.wrap(source, start, end);
     }
 
     /**
-     * Try to match a token with the given regexp
+     * Try to match a token with the given regexp. The match is limited to the rest of the current line, including
+     * the newline character
      */
     public String matchRegex(Pattern matcher) {
-        Matcher m = matcher.matcher(source).region(index, source.length());
+        int end = index;
+        while (fill(end + 1) && source.charAt(end) != '\n') {
+            end++;
+        }
+        if (fill(end + 1)) {
+            end++;
+        }
+        Matcher m = matcher.matcher(source).region(index, end);
         if (m.lookingAt()) {
             return m.group();
         }
@@ -56,10 +122,24 @@ public class SourceBuffer {
     }
 
     public char peek() {
-        return source.length() > index ? source.charAt(index) : 0;
+        return fill(index + 1) ? source.charAt(index) : 0;
     }
 
     public char peek(int i) {
-        return source.length() > index + i ? source.charAt(index + i) : 0;
+        return fill(index + i + 1) ? source.charAt(index + i) : 0;
+    }
+
+    /**
+     * Is there a character i characters past the current position
+     */
+    public boolean available(int i) {
+        return fill(index + i + 1);
+    }
+
+    /**
+     * Returns the next length characters without consuming them
+     */
+    public String peekString(int length) {
+        return substring(index, index + length);
     }
 }
@@ -0,0 +1,82 @@
+package au.com.ogsoft.yahaml4j;
+
+import org.json.JSONStringer;
+
+import java.util.List;
+
+/**
+ * Builds a version 3 source map for the code generated for a template, mapping each line of the generated function
+ * back to the template line the code on it was generated from. Lines of static contents are mapped to the line of
+ * the code before them
+ */
+public class SourceMap {
+
+    private static final String BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    private SourceMap() {
+
+    }
+
+    /**
+     * Generates the source map
+     * @param file Name of the generated file
+     * @param source Name of the template source
+     * @param code Generated code
+     * @param marks Offset in the code, template line and character of the code generated for each node, in order
+     * @return Source map in JSON form
+     */
+    public static String generate(String file, String source, String code, List<int[]> marks) {
+        StringBuilder mappings = new StringBuilder();
+        int next = 0;
+        int[] mark = null;
+        int previousLine = 0;
+        int previousColumn = 0;
+        int lineStart = 0;
+        while (lineStart <= code.length()) {
+            int lineEnd = code.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = code.length();
+            }
+            while (next < marks.size() && marks.get(next)[0] < Math.max(lineEnd, lineStart + 1)) {
+                mark = marks.get(next++);
+            }
+            if (lineStart > 0) {
+                mappings.append(';');
+            }
+            if (mark != null) {
+                int line = mark[1] - 1;
+                int column = Math.max(mark[2] - 1, 0);
+                appendVlq(mappings, 0);
+                appendVlq(mappings, 0);
+                appendVlq(mappings, line - previousLine);
+                appendVlq(mappings, column - previousColumn);
+                previousLine = line;
+                previousColumn = column;
+            }
+            lineStart = lineEnd + 1;
+        }
+
+        return new JSONStringer().object()
+            .key("version").value(3)
+            .key("file").value(file)
+            .key("sources").array().value(source).endArray()
+            .key("names").array().endArray()
+            .key("mappings").value(mappings.toString())
+            .endObject().toString();
+    }
+
+    /**
+     * Appends the value as a base 64 variable length quantity, with the sign in the lowest bit
+     */
+    static void appendVlq(StringBuilder out, int value) {
+        int vlq = value < 0 ? (-value << 1) | 1 : value << 1;
+        do {
+            int digit = vlq & 31;
+            vlq >>>= 5;
+            if (vlq > 0) {
+                digit |= 32;
+            }
+            out.append(BASE64.charAt(digit));
+        } while (vlq > 0);
+    }
+}
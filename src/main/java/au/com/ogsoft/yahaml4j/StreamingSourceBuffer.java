@@ -0,0 +1,135 @@
+package au.com.ogsoft.yahaml4j;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Source buffer that reads the HAML source from a Reader into a sliding window, so the whole template never has
+ * to be in memory. Characters are kept from the offset last released by the tokeniser, and the window only grows
+ * past its initial size if a single line does not fit into it
+ */
+public class StreamingSourceBuffer extends SourceBuffer {
+
+    public static final int DEFAULT_WINDOW_SIZE = 16 * 1024;
+
+    private final Reader reader;
+    private final Window window;
+    private int released;
+    private boolean eof;
+
+    public StreamingSourceBuffer(Reader reader) {
+        this(reader, DEFAULT_WINDOW_SIZE);
+    }
+
+    public StreamingSourceBuffer(Reader reader, int windowSize) {
+        this(reader, new Window(windowSize));
+    }
+
+    private StreamingSourceBuffer(Reader reader, Window window) {
+        super(window);
+        this.reader = reader;
+        this.window = window;
+    }
+
+    @Override
+    protected boolean fill(int end) {
+        while (window.length() < end && !eof) {
+            if (window.count == window.chars.length) {
+                window.compact(released);
+            }
+            if (window.count == window.chars.length) {
+                window.grow();
+            }
+            try {
+                int read = reader.read(window.chars, window.count, window.chars.length - window.count);
+                if (read < 0) {
+                    eof = true;
+                } else {
+                    window.count += read;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read the template source", e);
+            }
+        }
+        return end <= window.length();
+    }
+
+    @Override
+    public void release(int offset) {
+        if (offset > released) {
+            released = offset;
+        }
+    }
+
+    @Override
+    public boolean retains(int offset) {
+        return false;
+    }
+
+    /**
+     * Returns the number of characters the window can currently hold
+     */
+    int getWindowSize() {
+        return window.chars.length;
+    }
+
+    /**
+     * The characters read so far that have not been released yet
+     */
+    private static class Window implements CharSequence {
+
+        private char[] chars;
+        private int start;
+        private int count;
+
+        private Window(int size) {
+            chars = new char[size];
+        }
+
+        /**
+         * Drops the characters before the offset from the window
+         */
+        private void compact(int offset) {
+            int discard = Math.min(offset - start, count);
+            if (discard > 0) {
+                System.arraycopy(chars, discard, chars, 0, count - discard);
+                start += discard;
+                count -= discard;
+            }
+        }
+
+        private void grow() {
+            char[] newChars = new char[chars.length * 2];
+            System.arraycopy(chars, 0, newChars, 0, count);
+            chars = newChars;
+        }
+
+        @Override
+        public int length() {
+            return start + count;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < start || index >= start + count) {
+                throw new IndexOutOfBoundsException("Offset " + index + " is outside the source window (" + start +
+                    " - " + (start + count) + ")");
+            }
+            return chars[index - start];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < this.start || end > this.start + count || start > end) {
+                throw new IndexOutOfBoundsException("Range " + start + " - " + end + " is outside the source window (" +
+                    this.start + " - " + (this.start + count) + ")");
+            }
+            return new String(chars, start - this.start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, 0, count);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package au.com.ogsoft.yahaml4j;
+
+/**
+ * An error found in a template while compiling it with fault tolerance on
+ */
+public class TemplateDiagnostic {
+
+    public final int lineNumber;
+    public final int characterNumber;
+    public final String message;
+    private final ParsePoint parsePoint;
+
+    public TemplateDiagnostic(ParsePoint parsePoint, String message) {
+        this.lineNumber = parsePoint.lineNumber;
+        this.characterNumber = parsePoint.characterNumber;
+        this.message = message;
+        this.parsePoint = parsePoint;
+    }
+
+    /**
+     * Returns the text of the line the error is on
+     */
+    public String getCurrentLine() {
+        return parsePoint.getCurrentLine();
+    }
+
+    /**
+     * Formats the error the same way as the exceptions raised with fault tolerance off
+     */
+    @Override
+    public String toString() {
+        return HamlRuntime.templateError(lineNumber, characterNumber, getCurrentLine(), message);
+    }
+}
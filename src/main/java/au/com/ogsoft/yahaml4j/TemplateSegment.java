@@ -0,0 +1,232 @@
+package au.com.ogsoft.yahaml4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A top level block of a HAML template, starting at a line with no indent and running up to the next one. Segments
+ * are compiled on their own, so the code generated for a segment only depends on its source and the line it starts
+ * on, and can be reused when the template is recompiled.
+ */
+class TemplateSegment {
+
+    final String source;
+    final int lineNumber;
+    String code;
+    int[] lineNumberSites;
+    // the text of the lines the generated code reports errors against, by line number
+    SortedMap<Integer, String> sourceLines = new TreeMap<Integer, String>();
+
+    TemplateSegment(String source, int lineNumber) {
+        this.source = source;
+        this.lineNumber = lineNumber;
+    }
+
+    /**
+     * Returns a copy of this segment starting at the given line, with the line numbers in the generated code and its
+     * source lines moved to match
+     */
+    TemplateSegment moveTo(int newLineNumber) {
+        TemplateSegment segment = new TemplateSegment(source, newLineNumber);
+        int delta = newLineNumber - lineNumber;
+        if (delta == 0) {
+            segment.code = code;
+            segment.lineNumberSites = lineNumberSites;
+            segment.sourceLines = sourceLines;
+        } else {
+            StringBuilder result = new StringBuilder(code.length() + lineNumberSites.length);
+            segment.lineNumberSites = new int[lineNumberSites.length];
+            int index = 0;
+            for (int i = 0; i < lineNumberSites.length; i++) {
+                int site = lineNumberSites[i];
+                int end = site;
+                while (end < code.length() && Character.isDigit(code.charAt(end))) {
+                    end++;
+                }
+                result.append(code, index, site);
+                segment.lineNumberSites[i] = result.length();
+                result.append(Integer.parseInt(code.substring(site, end)) + delta);
+                index = end;
+            }
+            result.append(code, index, code.length());
+            segment.code = result.toString();
+            segment.sourceLines = new TreeMap<Integer, String>();
+            for (Map.Entry<Integer, String> line: sourceLines.entrySet()) {
+                segment.sourceLines.put(line.getKey() + delta, line.getValue());
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * Returns the line after the last line of the segment
+     */
+    int endLineNumber() {
+        int lines = 1;
+        for (int i = source.indexOf('\n'); i >= 0; i = source.indexOf('\n', i + 1)) {
+            lines++;
+        }
+        return lineNumber + lines;
+    }
+
+    /**
+     * Splits the template source into top level segments. A line only starts a new segment if nothing on the
+     * lines before it can carry on past it and processing it will close off all open elements first, so blank
+     * lines, silent comments, filters, doctypes, closing code blocks, lines following a multiline (|) line, an
+     * unclosed attribute list or hash or a filter block, and lines removing outer whitespace (>) all stay in the
+     * current segment.
+     */
+    static List<TemplateSegment> split(String haml) {
+        List<TemplateSegment> segments = new ArrayList<TemplateSegment>();
+        int segmentStart = 0;
+        int segmentLine = 1;
+        int lineStart = 0;
+        int line = 1;
+        AttributeScanner attributes = new AttributeScanner();
+        boolean multiline = false;
+        int filterIndent = -1;
+        while (lineStart < haml.length()) {
+            int lineEnd = haml.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = haml.length();
+            }
+            String text = haml.substring(lineStart, lineEnd);
+            String trimmed = text.trim();
+            int indent = text.indexOf(trimmed);
+            // the line ending a filter block is processed after the filter pushes back the end of the block
+            boolean endsFilter = filterIndent >= 0 && (trimmed.isEmpty() || indent <= filterIndent);
+            if (!attributes.open && !multiline && !endsFilter && lineStart > 0 && startsSegment(text)) {
+                segments.add(new TemplateSegment(haml.substring(segmentStart, lineStart), segmentLine));
+                segmentStart = lineStart;
+                segmentLine = line;
+            }
+            if (endsFilter) {
+                filterIndent = -1;
+            }
+            if (!attributes.open && trimmed.startsWith(":")) {
+                filterIndent = indent;
+            }
+            attributes.scan(text);
+            multiline = trimmed.endsWith("|");
+            lineStart = lineEnd + 1;
+            line++;
+        }
+        if (segmentStart < haml.length() || segments.isEmpty()) {
+            segments.add(new TemplateSegment(haml.substring(segmentStart), segmentLine));
+        }
+        return segments;
+    }
+
+    /**
+     * Joins runs of consecutive segments together, so there are no more than count segments of about the same size
+     */
+    static List<TemplateSegment> join(List<TemplateSegment> segments, int count) {
+        if (segments.size() <= count) {
+            return segments;
+        }
+        int length = 0;
+        for (TemplateSegment segment: segments) {
+            length += segment.source.length();
+        }
+        int target = length / count + 1;
+        List<TemplateSegment> joined = new ArrayList<TemplateSegment>(count);
+        StringBuilder source = new StringBuilder(target);
+        int lineNumber = segments.get(0).lineNumber;
+        for (TemplateSegment segment: segments) {
+            if (source.length() >= target) {
+                joined.add(new TemplateSegment(source.toString(), lineNumber));
+                source.setLength(0);
+                lineNumber = segment.lineNumber;
+            }
+            source.append(segment.source);
+        }
+        joined.add(new TemplateSegment(source.toString(), lineNumber));
+        return joined;
+    }
+
+    private static boolean startsSegment(String line) {
+        if (line.trim().isEmpty() || Character.isWhitespace(line.charAt(0))) {
+            return false;
+        } else if (line.startsWith("-#") || line.startsWith(":") || line.startsWith("!!!")) {
+            return false;
+        } else if (line.startsWith("-") && line.substring(1).trim().startsWith("}")) {
+            return false;
+        } else {
+            return !(isTemplateLine(line, 0) && line.indexOf('>') >= 0);
+        }
+    }
+
+    private static boolean isTemplateLine(String line, int index) {
+        char ch = line.charAt(index);
+        return ch == '%' || ch == '.' || ch == '#';
+    }
+
+    /**
+     * Tracks the attribute list and hash of template lines, so lines continuing an attribute list or hash that was
+     * not closed on the line it was opened on are not treated as the start of a segment
+     */
+    private static class AttributeScanner {
+
+        private boolean open;
+        private boolean hash;
+        private int depth;
+        private char quote;
+
+        private void scan(String line) {
+            int i = 0;
+            if (!open) {
+                while (i < line.length() && (line.charAt(i) == ' ' || line.charAt(i) == '\t')) {
+                    i++;
+                }
+                if (i == line.length() || !isTemplateLine(line, i)) {
+                    return;
+                }
+                while (i < line.length() && (Character.isLetterOrDigit(line.charAt(i)) || "%.#-_:".indexOf(line.charAt(i)) >= 0)) {
+                    i++;
+                }
+                if (i < line.length() && line.charAt(i) == '[') {
+                    int end = line.indexOf(']', i);
+                    i = end < 0 ? line.length() : end + 1;
+                }
+                if (i < line.length() && (line.charAt(i) == '(' || line.charAt(i) == '{')) {
+                    open(line.charAt(i) == '{');
+                    i++;
+                }
+            }
+
+            while (open && i < line.length()) {
+                char ch = line.charAt(i++);
+                if (hash) {
+                    // attribute hash values are scanned for matching braces without regard to quotes
+                    if (ch == '{') {
+                        depth++;
+                    } else if (ch == '}' && --depth == 0) {
+                        open = false;
+                    }
+                } else if (quote != 0) {
+                    if (ch == quote) {
+                        quote = 0;
+                    }
+                } else if (ch == '"' || ch == '\'') {
+                    quote = ch;
+                } else if (ch == ')') {
+                    open = false;
+                    if (i < line.length() && line.charAt(i) == '{') {
+                        open(true);
+                        i++;
+                    }
+                }
+            }
+        }
+
+        private void open(boolean hash) {
+            this.open = true;
+            this.hash = hash;
+            depth = 1;
+            quote = 0;
+        }
+    }
+}
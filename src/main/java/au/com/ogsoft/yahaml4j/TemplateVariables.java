@@ -0,0 +1,458 @@
+package au.com.ogsoft.yahaml4j;
+
+import au.com.ogsoft.yahaml4j.ast.*;
+import au.com.ogsoft.yahaml4j.filters.*;
+
+import java.util.*;
+
+/**
+ * The variables a template reads from its context, found by scanning the code in the template when it is compiled.
+ * Names declared in the template itself, the parameters of functions in it, property names and the standard
+ * javascript globals are left out. The analysis is inconclusive if the code could read or change variables in a way
+ * the scan can not follow, such as assigning to a context variable or through the context, calling a function from
+ * the context (which a with block calls with the context as this), calling eval or using a filter that generates
+ * code of its own.
+ */
+public class TemplateVariables {
+
+    private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList("break", "case", "catch", "class",
+        "const", "continue", "debugger", "default", "delete", "do", "else", "export", "extends", "finally", "for",
+        "function", "if", "import", "in", "instanceof", "let", "new", "return", "super", "switch", "this", "throw",
+        "try", "typeof", "var", "void", "while", "with", "yield", "true", "false", "null"));
+    private static final Set<String> GLOBALS = new HashSet<String>(Arrays.asList("undefined", "NaN", "Infinity",
+        "Math", "JSON", "String", "Number", "Boolean", "Array", "Object", "Date", "RegExp", "Error", "parseInt",
+        "parseFloat", "isNaN", "isFinite", "encodeURI", "encodeURIComponent", "decodeURI", "decodeURIComponent",
+        "escape", "unescape", "haml"));
+    // names the generated function declares itself, and names that give code access to the scope of the function
+    private static final Set<String> UNSAFE_NAMES = new HashSet<String>(Arrays.asList("html", "handleError",
+        "hashObject", "objRef", "value", "currentSite", "sourceLine", "eval", "arguments"));
+    private static final List<Class<? extends Filter>> STANDARD_FILTERS = Arrays.<Class<? extends Filter>>asList(
+        PlainFilter.class, JavascriptFilter.class, CssFilter.class, CDataFilter.class, EscapedFilter.class,
+        PreserveFilter.class);
+
+    /**
+     * Names of the variables read from the context, in alphabetical order
+     */
+    public final SortedSet<String> names;
+    /**
+     * Could all the variables the template reads be found
+     */
+    public final boolean conclusive;
+    /**
+     * The standard globals the template reads, which are still looked up in the context first
+     */
+    final SortedSet<String> globals;
+    /**
+     * Names the template checks with typeof, which are not an error if they are missing
+     */
+    final Set<String> probed;
+    private final Map<String, ParsePoint> firstReads;
+
+    private TemplateVariables(SortedSet<String> names, boolean conclusive, SortedSet<String> globals,
+                              Set<String> probed, Map<String, ParsePoint> firstReads) {
+        this.names = Collections.unmodifiableSortedSet(names);
+        this.conclusive = conclusive;
+        this.globals = Collections.unmodifiableSortedSet(globals);
+        this.probed = Collections.unmodifiableSet(probed);
+        this.firstReads = firstReads;
+    }
+
+    /**
+     * Returns where the template first reads the name, for reporting it missing from the context, or null if that
+     * is not known
+     */
+    ParsePoint firstRead(String name) {
+        return firstReads.get(name);
+    }
+
+    /**
+     * Finds the variables read by the template
+     */
+    public static TemplateVariables of(TemplateNode template) {
+        return of(Collections.singletonList(template));
+    }
+
+    /**
+     * Finds the variables read by the templates, which are the parts of one template in order
+     */
+    public static TemplateVariables of(List<TemplateNode> templates) {
+        Scanner scanner = new Scanner();
+        for (TemplateNode template: templates) {
+            template.accept(scanner);
+        }
+        SortedSet<String> names = new TreeSet<String>(scanner.read);
+        names.removeAll(scanner.scopes.getLast());
+        SortedSet<String> globals = new TreeSet<String>(scanner.globals);
+        globals.removeAll(scanner.scopes.getLast());
+        return new TemplateVariables(names, scanner.conclusive && scanner.scopes.size() == 1, globals, scanner.probed,
+            scanner.firstReads);
+    }
+
+    @Override
+    public String toString() {
+        return (conclusive ? "" : "inconclusive ") + names;
+    }
+
+    /**
+     * Scans the code of each node in the order it is generated. The scopes are kept from one node to the next, as a
+     * block started by one line of code is closed by a later one
+     */
+    private static class Scanner implements NodeVisitor {
+
+        private final Set<String> read = new HashSet<String>();
+        private final Set<String> globals = new HashSet<String>();
+        private final Set<String> probed = new HashSet<String>();
+        private final Map<String, ParsePoint> firstReads = new HashMap<String, ParsePoint>();
+        // the location of the node being scanned
+        private ParsePoint point;
+        // the names declared in each open block, with the template's own block last
+        private final Deque<Set<String>> scopes = new ArrayDeque<Set<String>>();
+        // the scopes of the open function bodies, which var and function declarations go into
+        private final Deque<Set<String>> functionScopes = new ArrayDeque<Set<String>>();
+        // the names of the function or catch clause being declared, to be added to the scope of its body
+        private Set<String> parameters;
+        private boolean functionParameters;
+        private boolean conclusive = true;
+
+        private Scanner() {
+            scopes.push(new HashSet<String>());
+            functionScopes.push(scopes.peek());
+        }
+
+        @Override
+        public void visit(TemplateNode node) {
+            visitChildren(node);
+        }
+
+        @Override
+        public void visit(DoctypeNode node) {
+
+        }
+
+        @Override
+        public void visit(ElementNode node) {
+            point = node.parsePoint;
+            for (String value: node.attributeHash.values()) {
+                scan(value);
+            }
+            if (node.objectRef != null) {
+                scan(node.objectRef);
+            }
+            visitChildren(node);
+        }
+
+        @Override
+        public void visit(TextNode node) {
+            if (node.interpolate) {
+                point = node.parsePoint;
+                scanInterpolations(node.text);
+            }
+        }
+
+        @Override
+        public void visit(CodeNode node) {
+            point = node.parsePoint;
+            scan(node.code);
+            visitChildren(node);
+            if ((node.block || node.functionBlock) && !JavascriptGenerator.closesCodeBlock(node.closingCode)) {
+                closeBlock();
+            }
+        }
+
+        @Override
+        public void visit(EmbeddedCodeNode node) {
+            point = node.parsePoint;
+            scan(node.expression);
+        }
+
+        @Override
+        public void visit(CommentNode node) {
+            visitChildren(node);
+        }
+
+        @Override
+        public void visit(FilterNode node) {
+            if (node.filter == null || !STANDARD_FILTERS.contains(node.filter.getClass())) {
+                conclusive = false;
+                return;
+            }
+            point = node.parsePoint;
+            for (CharSequence line: node.contents) {
+                scanInterpolations(line.toString());
+            }
+        }
+
+        private void visitChildren(Node node) {
+            for (Node child: node.children) {
+                child.accept(this);
+            }
+        }
+
+        private void scanInterpolations(String text) {
+            int start = JavascriptGenerator.findInterpolation(text, 0);
+            while (start >= 0) {
+                int end = JavascriptGenerator.interpolationEnd(text, start);
+                if (!JavascriptGenerator.isEscapedInterpolation(text, start)) {
+                    scan(text.substring(start + 2, end - 1));
+                }
+                start = JavascriptGenerator.findInterpolation(text, end);
+            }
+        }
+
+        private void closeBlock() {
+            if (scopes.size() > 1) {
+                if (scopes.pop() == functionScopes.peek()) {
+                    functionScopes.pop();
+                }
+            } else {
+                conclusive = false;
+            }
+        }
+
+        private boolean declared(String name) {
+            for (Set<String> scope: scopes) {
+                if (scope.contains(name)) {
+                    return true;
+                }
+            }
+            return parameters != null && parameters.contains(name);
+        }
+
+        /**
+         * Scans a piece of code for the names it reads and declares
+         */
+        private void scan(String code) {
+            if (code == null) {
+                return;
+            }
+            int length = code.length();
+            // the last token, which tells a regular expression from a division and a property from a variable
+            String last = "";
+            boolean value = false;
+            // brackets opened since the start of a var, let or const, or -1 outside a declaration
+            int declaring = -1;
+            // the scope the names of the declaration go into, block scoped for let and const
+            Set<String> declarationScope = null;
+            // brackets opened since the start of the parameters of a function, or -1 outside them
+            int inParameters = -1;
+            boolean expectParameters = false;
+            int i = 0;
+            while (i < length) {
+                char ch = code.charAt(i);
+                if (Character.isWhitespace(ch)) {
+                    i++;
+                    continue;
+                } else if (code.startsWith("//", i)) {
+                    return;
+                } else if (code.startsWith("/*", i)) {
+                    int end = code.indexOf("*/", i + 2);
+                    i = end < 0 ? length : end + 2;
+                    continue;
+                }
+
+                int end;
+                if (Character.isJavaIdentifierStart(ch)) {
+                    end = i + 1;
+                    while (end < length && Character.isJavaIdentifierPart(code.charAt(end))) {
+                        end++;
+                    }
+                    String word = code.substring(i, end);
+                    if (last.equals(".")) {
+                        value = true;
+                    } else if (word.equals("var") || word.equals("let") || word.equals("const")) {
+                        declaring = 0;
+                        declarationScope = word.equals("var") ? functionScopes.peek() : scopes.peek();
+                        value = false;
+                    } else if (word.equals("function") || word.equals("catch")) {
+                        parameters = new HashSet<String>();
+                        functionParameters = word.equals("function");
+                        expectParameters = true;
+                        // a function at the start of a statement is a declaration, anywhere else it is an expression
+                        value = !(last.isEmpty() || last.equals(";") || last.equals("{") || last.equals("}"));
+                    } else if (expectParameters && inParameters < 0) {
+                        // the name of a function declaration goes into the enclosing function, while the name of a
+                        // function expression is only seen inside it
+                        (value ? parameters : functionScopes.peek()).add(word);
+                        value = true;
+                    } else if (inParameters == 1 && (last.equals("(") || last.equals(","))) {
+                        parameters.add(word);
+                        value = true;
+                    } else if (declaring == 0 && (last.equals("var") || last.equals("let") || last.equals("const") ||
+                            last.equals(","))) {
+                        declarationScope.add(word);
+                        value = true;
+                    } else if (KEYWORDS.contains(word)) {
+                        if (word.equals("with") || word.equals("class")) {
+                            conclusive = false;
+                        }
+                        value = word.equals("this") || word.equals("true") || word.equals("false") ||
+                            word.equals("null");
+                    } else if ((last.equals("{") || last.equals(",")) && nextChar(code, end) == ':') {
+                        // a key in an object literal
+                        value = false;
+                    } else if (word.equals("context") && !declared(word)) {
+                        // the variables are read before the code runs, so it can only read properties of the context
+                        if (!readsProperty(code, end) || last.equals("++") || last.equals("--")) {
+                            conclusive = false;
+                        }
+                        value = true;
+                    } else {
+                        if (UNSAFE_NAMES.contains(word) || JavascriptLexer.assigns(code, end) || last.equals("++") ||
+                                last.equals("--")) {
+                            if (!declared(word)) {
+                                conclusive = false;
+                            }
+                        }
+                        if (!declared(word)) {
+                            read(word, code, end, last);
+                        }
+                        value = true;
+                    }
+                    last = word;
+                    i = end;
+                    continue;
+                } else if (Character.isDigit(ch)) {
+                    end = i + 1;
+                    while (end < length && (Character.isLetterOrDigit(code.charAt(end)) || code.charAt(end) == '.')) {
+                        end++;
+                    }
+                    value = true;
+                    last = "0";
+                } else if (ch == '"' || ch == '\'' || ch == '`' || (ch == '/' && !value)) {
+                    // the code in a template literal is not followed
+                    end = ch == '`' ? -1 : ch == '/' ? JavascriptLexer.skipRegex(code, i) :
+                        JavascriptLexer.skipString(code, i);
+                    if (end < 0) {
+                        conclusive = false;
+                        return;
+                    }
+                    value = true;
+                    last = "\"";
+                } else if (ch == '(' || ch == '[' || ch == '{') {
+                    if (declaring >= 0) {
+                        if (declaring == 0 && (last.equals("var") || last.equals("let") || last.equals("const") ||
+                                last.equals(","))) {
+                            // destructuring
+                            conclusive = false;
+                        }
+                        declaring++;
+                    }
+                    if (inParameters >= 0) {
+                        inParameters++;
+                    } else if (expectParameters && ch == '(') {
+                        inParameters = 1;
+                    }
+                    if (ch == '{') {
+                        Set<String> scope = new HashSet<String>();
+                        scopes.push(scope);
+                        if (parameters != null && inParameters < 0) {
+                            scope.addAll(parameters);
+                            if (functionParameters) {
+                                functionScopes.push(scope);
+                            }
+                            parameters = null;
+                            expectParameters = false;
+                        }
+                    }
+                    end = i + 1;
+                    value = false;
+                    last = String.valueOf(ch);
+                } else if (ch == ')' || ch == ']' || ch == '}') {
+                    if (declaring > 0) {
+                        declaring--;
+                    }
+                    if (inParameters > 0) {
+                        inParameters--;
+                        if (inParameters == 0) {
+                            inParameters = -1;
+                        }
+                    }
+                    if (ch == '}') {
+                        closeBlock();
+                    }
+                    end = i + 1;
+                    value = true;
+                    last = String.valueOf(ch);
+                } else if (ch == ';') {
+                    declaring = -1;
+                    end = i + 1;
+                    value = false;
+                    last = ";";
+                } else if (ch == ',') {
+                    end = i + 1;
+                    value = false;
+                    last = ",";
+                } else if (JavascriptLexer.isOperatorChar(ch)) {
+                    if (code.startsWith("=>", i) || code.startsWith("...", i)) {
+                        // the parameters of an arrow function have already been taken as variables, and spread and
+                        // rest are not followed
+                        conclusive = false;
+                    }
+                    last = JavascriptLexer.operatorAt(code, i);
+                    end = i + last.length();
+                    value = value && (last.equals("++") || last.equals("--"));
+                } else {
+                    end = i + 1;
+                    value = false;
+                    last = String.valueOf(ch);
+                }
+                i = end;
+            }
+        }
+
+        /**
+         * Records a read of a name that is not declared in the template
+         */
+        private void read(String word, String code, int end, String last) {
+            // a with block deletes from the context, and calls a function from it with the context as this
+            if (last.equals("delete") || (nextChar(code, end) == '(' && !last.equals("new") &&
+                    !GLOBALS.contains(word))) {
+                conclusive = false;
+            }
+            if (GLOBALS.contains(word)) {
+                // the generated code uses haml itself, so it is never looked up in the context
+                if (!word.equals("haml")) {
+                    globals.add(word);
+                }
+            } else {
+                read.add(word);
+            }
+            if (last.equals("typeof")) {
+                probed.add(word);
+            }
+            if (!firstReads.containsKey(word)) {
+                firstReads.put(word, point);
+            }
+        }
+
+        /**
+         * Is the name ending at i followed by a property that is read, and not assigned to or called
+         */
+        private static boolean readsProperty(String code, int i) {
+            while (i < code.length() && Character.isWhitespace(code.charAt(i))) {
+                i++;
+            }
+            if (i >= code.length() || code.charAt(i) != '.') {
+                return false;
+            }
+            i++;
+            while (i < code.length() && Character.isWhitespace(code.charAt(i))) {
+                i++;
+            }
+            if (i >= code.length() || !Character.isJavaIdentifierStart(code.charAt(i))) {
+                return false;
+            }
+            while (i < code.length() && Character.isJavaIdentifierPart(code.charAt(i))) {
+                i++;
+            }
+            return !JavascriptLexer.assigns(code, i) && nextChar(code, i) != '(';
+        }
+
+        private static char nextChar(String code, int i) {
+            while (i < code.length() && Character.isWhitespace(code.charAt(i))) {
+                i++;
+            }
+            return i < code.length() ? code.charAt(i) : 0;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package au.com.ogsoft.yahaml4j;
 
 import org.apache.commons.lang3.StringUtils;
 
+import java.util.Arrays;
 import java.util.regex.Pattern;
 
 /**
@@ -9,31 +10,77 @@ import java.util.regex.Pattern;
  */
 public class Tokeniser {
 
-    // tokenMatchers
-    private static Pattern WHITESPACE = Pattern.compile("[ \\t]+");
-    private static Pattern ELEMENT = Pattern.compile("%[a-zA-Z][a-zA-Z0-9]*");
-    private static Pattern IDSELECTOR = Pattern.compile("#[a-zA-Z0-9_\\-]+");
-    private static Pattern CLASSSELECTOR = Pattern.compile("\\.[a-zA-Z0-9_\\-]+");
-    private static Pattern HTMLIDENTIFIER = Pattern.compile("[a-zA-Z][a-zA-Z0-9\\-]*");
-    private static Pattern QUOTEDSTRING = Pattern.compile("'[^'\\n]*'");
-    private static Pattern QUOTEDSTRING2 = Pattern.compile("\"[^\"\\n]*\"");
-    private static Pattern COMMENT = Pattern.compile("\\-#");
-    private static Pattern ESCAPEHTML = Pattern.compile("&=");
-    private static Pattern UNESCAPEHTML = Pattern.compile("!=");
-    private static Pattern OBJECTREF = Pattern.compile("\\[[a-zA-Z_][a-zA-Z0-9_]*\\]");
-    private static Pattern DOCTYPE = Pattern.compile("!!!");
-    private static Pattern CONTINUELINE = Pattern.compile("\\|[ \\t]*\\n");
-    private static Pattern FILTER = Pattern.compile(":\\w+");
-    private static Pattern CODE_IDENTIFIER = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
+    // character classes used by the token scanner
+    private static final int ALPHA = 1;
+    private static final int DIGIT = 2;
+    private static final int UNDERSCORE = 4;
+    private static final int HYPHEN = 8;
+    private static final int BLANK = 16;
+
+    private static final int WORD = ALPHA | DIGIT | UNDERSCORE;
+    private static final int SELECTOR = WORD | HYPHEN;
+
+    private static final int[] CHAR_CLASSES = new int[128];
+    private static final Token.TokenType[] SINGLE_CHAR_TOKENS = new Token.TokenType[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            CHAR_CLASSES[c] = ALPHA;
+            CHAR_CLASSES[Character.toUpperCase(c)] = ALPHA;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            CHAR_CLASSES[c] = DIGIT;
+        }
+        CHAR_CLASSES['_'] = UNDERSCORE;
+        CHAR_CLASSES['-'] = HYPHEN;
+        CHAR_CLASSES[' '] = BLANK;
+        CHAR_CLASSES['\t'] = BLANK;
+
+        SINGLE_CHAR_TOKENS['{'] = Token.TokenType.OPENBRACE;
+        SINGLE_CHAR_TOKENS['}'] = Token.TokenType.CLOSEBRACE;
+        SINGLE_CHAR_TOKENS[','] = Token.TokenType.COMMA;
+        SINGLE_CHAR_TOKENS[':'] = Token.TokenType.COLON;
+        SINGLE_CHAR_TOKENS['/'] = Token.TokenType.SLASH;
+        SINGLE_CHAR_TOKENS['('] = Token.TokenType.OPENBRACKET;
+        SINGLE_CHAR_TOKENS[')'] = Token.TokenType.CLOSEBRACKET;
+        SINGLE_CHAR_TOKENS['='] = Token.TokenType.EQUAL;
+        SINGLE_CHAR_TOKENS['!'] = Token.TokenType.EXCLAMATION;
+        SINGLE_CHAR_TOKENS['-'] = Token.TokenType.MINUS;
+        SINGLE_CHAR_TOKENS['&'] = Token.TokenType.AMP;
+        SINGLE_CHAR_TOKENS['<'] = Token.TokenType.LT;
+        SINGLE_CHAR_TOKENS['>'] = Token.TokenType.GT;
+        SINGLE_CHAR_TOKENS['~'] = Token.TokenType.TILDE;
+    }
 
     private final String name;
-    private final String source;
     private final SourceBuffer buffer;
-    private Token token;
-    private Token prevToken;
-    private Integer lineNumber;
-    private Integer characterNumber;
-    private String currentLine;
+    private final int firstLineNumber;
+
+    // Tokens are packed into a ring of int records: [type ordinal and token string bounds, start offset, length,
+    // mode the token was scanned in]. The ring holds the tokens already scanned for push back and look ahead, so no
+    // part of the source is scanned twice. Token objects are only created when asked for.
+    private static final int RING_SIZE = 8;
+    private static final int TOKEN_SIZE = 4;
+    private static final int TYPE_MASK = 0xFF;
+    private static final int LEAD_SHIFT = 8;
+    private static final int TRAIL_SHIFT = 12;
+    private static final Token.TokenType[] TOKEN_TYPES = Token.TokenType.values();
+
+    private final int[] tokens = new int[RING_SIZE * TOKEN_SIZE];
+    private final Token[] tokenObjects = new Token[RING_SIZE];
+    // sequence numbers of the current token and of the last token scanned from the buffer
+    private int position = -1;
+    private int scanned = -1;
+
+    // offsets of the start of each line, filled in as the source is scanned. The line and character counters are
+    // worked out from the end offset of the current token
+    private int[] lineStarts = new int[64];
+    private int lineCount = 1;
+    private int indexedTo = 0;
+
+    private int scannedLength;
+    private int valueLead;
+    private int valueTrail;
 
     private static Pattern CURRENT_LINE_MATCHER = Pattern.compile("[^\\n]*");
 
@@ -43,7 +90,8 @@ public class Tokeniser {
      * Is the current token an end of line or end of input buffer
      */
     public boolean isEolOrEof() {
-        return token.type == Token.TokenType.EOL || token.type == Token.TokenType.EOF;
+        Token.TokenType type = getTokenType();
+        return type == Token.TokenType.EOL || type == Token.TokenType.EOF;
     }
 
     /**
@@ -52,24 +100,14 @@ public class Tokeniser {
     public Token lookAhead(int numberOfTokens) {
         Token token = null;
         if (numberOfTokens > 0) {
-            Token currentToken = this.token;
-            Token prevToken = this.prevToken;
-            String currentLine = this.currentLine;
-            int lineNumber = this.lineNumber;
-            int characterNumber = this.characterNumber;
-            buffer.mark();
-
-            int i = 0;
-            while (i++ < numberOfTokens) {
-                token = getNextToken();
+            if (numberOfTokens > RING_SIZE - 2) {
+                throw new IllegalArgumentException("Can not look ahead more than " + (RING_SIZE - 2) + " tokens");
             }
-
-            this.token = currentToken;
-            this.prevToken = prevToken;
-            this.currentLine = currentLine;
-            this.lineNumber = lineNumber;
-            this.characterNumber = characterNumber;
-            buffer.reset();
+            discardStaleTokens();
+            while (scanned < position + numberOfTokens) {
+                scanNextToken();
+            }
+            token = tokenAt(position + numberOfTokens);
         }
         return token;
     }
@@ -86,22 +124,50 @@ public class Tokeniser {
         ATTRLIST, ATTRHASH
     }
 
-    private interface MatchedFn {
-        public String match(String value);
+    public Tokeniser(String name, String source) {
+        this(name, new SourceBuffer(source));
     }
 
-    public Tokeniser(String name, String source) {
-        this.name = name;
-        this.source = source;
+    public Tokeniser(String name, SourceBuffer buffer) {
+        this(name, buffer, 1);
+    }
 
-        buffer = new SourceBuffer(source);
-        lineNumber = 0;
-        characterNumber = 0;
-        currentLine = null;
+    /**
+     * Creates a tokeniser for source that starts at the given line of a template
+     */
+    public Tokeniser(String name, SourceBuffer buffer, int firstLineNumber) {
+        this.name = name;
+        this.buffer = buffer;
+        this.firstLineNumber = firstLineNumber;
     }
 
+    /**
+     * Returns the current token, creating the token object from the packed token if required
+     */
     public Token getToken() {
-        return token;
+        return position < 0 ? null : tokenAt(position);
+    }
+
+    /**
+     * Returns the type of the current token
+     */
+    public Token.TokenType getTokenType() {
+        return position < 0 ? null : typeAt(position);
+    }
+
+    /**
+     * Returns a view of the source text matched by the current token, or null at the end of the input buffer
+     */
+    public CharSequence getTokenMatched() {
+        return matchedAt(position);
+    }
+
+    /**
+     * Returns a view of the token string of the current token (the matched text without any prefix or suffix
+     * characters), or null if the token does not have one
+     */
+    public CharSequence getTokenValue() {
+        return valueAt(position);
     }
 
     /**
@@ -109,178 +175,315 @@ public class Tokeniser {
      * @return Token
      */
     public Token getNextToken() {
-        prevToken = token;
-        token = null;
+        advance();
+        return getToken();
+    }
 
+    /**
+     * Match the next token in the input buffer without creating a token object for it. Tokens that have already
+     * been scanned by a look ahead or were pushed back are taken from the ring instead of the buffer
+     * @return the type of the token
+     */
+    public Token.TokenType advance() {
+        discardStaleTokens();
+        if (position < scanned) {
+            position++;
+        } else {
+            scanNextToken();
+            position++;
+        }
+        return typeAt(position);
+    }
+
+    /**
+     * Scan the next token from the input buffer into the ring
+     */
+    private void scanNextToken() {
+        Token.TokenType type;
+        int start = buffer.position();
         if (buffer.empty()) {
-            token = new Token(Token.TokenType.EOF);
+            type = Token.TokenType.EOF;
+            scannedLength = 0;
+            valueLead = -1;
+            valueTrail = 0;
         } else {
-            initLine();
-
-            if (token == null) {
-                char ch = buffer.peek();
-                char ch1 = buffer.peek(1);
-                if (ch == 10 || (ch == 13 && ch1 == 10)) {
-                    token = new Token(Token.TokenType.EOL);
-                    if (ch == 13) {
-                        token.setMatched(String.valueOf(ch) + ch1);
-                        advanceCharsInBuffer(2);
-                    } else {
-                        token.setMatched(String.valueOf(ch));
-                        advanceCharsInBuffer(1);
-                    }
-                }
-            }
+            indexLines(start);
+            type = scanToken();
+        }
 
-            matchMultiCharToken(WHITESPACE, Token.TokenType.WS, null);
+        if (scannedLength > 0) {
+            advanceCharsInBuffer(scannedLength);
+        }
 
-            if (this.mode == null) {
-                matchMultiCharToken(CONTINUELINE, Token.TokenType.CONTINUELINE, null);
-                matchMultiCharToken(ELEMENT, Token.TokenType.ELEMENT, new MatchedFn() {
-                    @Override
-                    public String match(String value) {
-                        return value.substring(1);
-                    }
-                });
-                matchMultiCharToken(IDSELECTOR, Token.TokenType.IDSELECTOR, new MatchedFn() {
-                    @Override
-                    public String match(String value) {
-                        return value.substring(1);
-                    }
-                });
-                matchMultiCharToken(CLASSSELECTOR, Token.TokenType.CLASSSELECTOR, new MatchedFn() {
-                    @Override
-                    public String match(String value) {
-                        return value.substring(1);
-                    }
-                });
-                matchMultiCharToken(COMMENT, Token.TokenType.COMMENT, null);
-                matchMultiCharToken(ESCAPEHTML, Token.TokenType.ESCAPEHTML, null);
-                matchMultiCharToken(UNESCAPEHTML, Token.TokenType.UNESCAPEHTML, null);
-                matchMultiCharToken(OBJECTREF, Token.TokenType.OBJECTREF, new MatchedFn() {
-                    @Override
-                    public String match(String value) {
-                        return value.substring(1, value.length() - 1);
-                    }
-                });
-                matchMultiCharToken(DOCTYPE, Token.TokenType.DOCTYPE, null);
-                matchMultiCharToken(FILTER, Token.TokenType.FILTER, new MatchedFn() {
-                    @Override
-                    public String match(String value) {
-                        return value.substring(1);
-                    }
-                });
-            }
+        scanned++;
+        if (scanned >= RING_SIZE - 1) {
+            // the oldest token in the ring is the furthest back the tokeniser can be pushed back to
+            buffer.release(tokens[slot(scanned - RING_SIZE + 1) + 1]);
+        }
+        int slot = slot(scanned);
+        tokens[slot] = type.ordinal() | (valueLead + 1) << LEAD_SHIFT | valueTrail << TRAIL_SHIFT;
+        tokens[slot + 1] = start;
+        tokens[slot + 2] = scannedLength;
+        tokens[slot + 3] = mode == null ? -1 : mode.ordinal();
+        tokenObjects[scanned & (RING_SIZE - 1)] = null;
+    }
 
-            if (this.mode == Mode.ATTRHASH) {
-                matchMultiCharToken(CODE_IDENTIFIER, Token.TokenType.CODE_ID, null);
-            }
+    /**
+     * Drops any tokens scanned ahead of the current token in a different mode to the current one, as they need to
+     * be scanned again
+     */
+    private void discardStaleTokens() {
+        int modeOrdinal = mode == null ? -1 : mode.ordinal();
+        int seq = position + 1;
+        while (seq <= scanned && tokens[slot(seq) + 3] == modeOrdinal) {
+            seq++;
+        }
+        if (seq <= scanned) {
+            rewindTo(seq - 1);
+        }
+    }
 
-            if (this.mode == Mode.ATTRLIST) {
-                matchMultiCharToken(HTMLIDENTIFIER, Token.TokenType.HTMLIDENTIFIER, null);
+    /**
+     * Moves the input buffer back to the end of the current token, dropping any tokens scanned ahead of it. This
+     * is needed before anything reads the input buffer directly
+     */
+    private void syncBuffer() {
+        if (scanned > position) {
+            rewindTo(position);
+        }
+    }
 
-                if (token == null) {
-                    String str = matchToken(QUOTEDSTRING);
-                    if (str == null) {
-                        str = matchToken(QUOTEDSTRING2);
-                    }
-                    if (str != null) {
-                        token = new Token(Token.TokenType.STRING, str);
-                        token.setTokenString(str.substring(1, str.length() - 1));
-                        advanceCharsInBuffer(str.length());
-                    }
+    /**
+     * Moves the input buffer back to the end of the given token, making it the last scanned token
+     */
+    private void rewindTo(int seq) {
+        int end = seq < 0 ? 0 : tokens[slot(seq) + 1] + tokens[slot(seq) + 2];
+        buffer.position(end - buffer.position());
+        scanned = seq;
+    }
+
+    /**
+     * Adds the start of any lines before the end offset to the line start table
+     */
+    private void indexLines(int end) {
+        while (indexedTo < end) {
+            if (buffer.charAt(indexedTo) == '\n') {
+                if (lineCount == lineStarts.length) {
+                    lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
                 }
+                lineStarts[lineCount++] = indexedTo + 1;
             }
+            indexedTo++;
+        }
+    }
 
-            matchSingleCharToken('{', Token.TokenType.OPENBRACE);
-            matchSingleCharToken('}', Token.TokenType.CLOSEBRACE);
-            matchSingleCharToken(',', Token.TokenType.COMMA);
-            matchSingleCharToken(':', Token.TokenType.COLON);
-            matchSingleCharToken('/', Token.TokenType.SLASH);
-            matchSingleCharToken('(', Token.TokenType.OPENBRACKET);
-            matchSingleCharToken(')', Token.TokenType.CLOSEBRACKET);
-            matchSingleCharToken('=', Token.TokenType.EQUAL);
-            matchSingleCharToken('!', Token.TokenType.EXCLAMATION);
-            matchSingleCharToken('-', Token.TokenType.MINUS);
-            matchSingleCharToken('&', Token.TokenType.AMP);
-            matchSingleCharToken('<', Token.TokenType.LT);
-            matchSingleCharToken('>', Token.TokenType.GT);
-            matchSingleCharToken('~', Token.TokenType.TILDE);
-
-            if (token == null) {
-                token = new Token(Token.TokenType.UNKNOWN, String.valueOf(buffer.peek()));
-                advanceCharsInBuffer(1);
-            }
+    /**
+     * Returns the index of the line in the line start table containing the offset
+     */
+    private int lineIndex(int offset) {
+        indexLines(offset);
+        int index = Arrays.binarySearch(lineStarts, 0, lineCount, offset);
+        return index >= 0 ? index : -index - 2;
+    }
 
+    private int slot(int seq) {
+        return (seq & (RING_SIZE - 1)) * TOKEN_SIZE;
+    }
+
+    private Token.TokenType typeAt(int seq) {
+        return TOKEN_TYPES[tokens[slot(seq)] & TYPE_MASK];
+    }
+
+    private CharSequence matchedAt(int seq) {
+        if (typeAt(seq) == Token.TokenType.EOF) {
+            return null;
         }
+        int start = tokens[slot(seq) + 1];
+        return buffer.view(start, start + tokens[slot(seq) + 2]);
+    }
 
+    private CharSequence valueAt(int seq) {
+        int info = tokens[slot(seq)];
+        int lead = ((info >> LEAD_SHIFT) & 0xF) - 1;
+        if (lead < 0) {
+            return null;
+        }
+        int trail = (info >> TRAIL_SHIFT) & 0xF;
+        int start = tokens[slot(seq) + 1];
+        return buffer.view(start + lead, start + tokens[slot(seq) + 2] - trail);
+    }
+
+    private Token tokenAt(int seq) {
+        Token token = tokenObjects[seq & (RING_SIZE - 1)];
+        if (token == null) {
+            CharSequence matched = matchedAt(seq);
+            token = new Token(typeAt(seq), matched == null ? null : matched.toString());
+            CharSequence value = valueAt(seq);
+            if (value != null) {
+                token.setTokenString(value.toString());
+            }
+            tokenObjects[seq & (RING_SIZE - 1)] = token;
+        }
         return token;
     }
 
     /**
-     * Match a single character token
+     * Scans the token at the current buffer position by dispatching on its first character. Sets the length of the
+     * match and the number of characters to trim off either end of it for the token string (a lead of -1 means the
+     * token has no token string), and returns the type of the token
      */
-    private void matchSingleCharToken(char c, Token.TokenType tokenType) {
-        if (token == null && buffer.peek() == c) {
-            token = new Token(tokenType);
-            token.setTokenString(String.valueOf(c));
-            token.setMatched(String.valueOf(c));
-            advanceCharsInBuffer(1);
+    private Token.TokenType scanToken() {
+        char ch = buffer.peek();
+        valueLead = 0;
+        valueTrail = 0;
+
+        if (ch == '\n' || (ch == '\r' && buffer.peek(1) == '\n')) {
+            scannedLength = ch == '\r' ? 2 : 1;
+            valueLead = -1;
+            return Token.TokenType.EOL;
+        }
+
+        if (isCharClass(ch, BLANK)) {
+            scannedLength = runLength(1, BLANK);
+            return Token.TokenType.WS;
+        }
+
+        if (mode == null) {
+            Token.TokenType type = scanTemplateToken(ch);
+            if (type != null) {
+                return type;
+            }
+        } else if (mode == Mode.ATTRHASH) {
+            if (isCharClass(ch, ALPHA | UNDERSCORE)) {
+                scannedLength = runLength(1, WORD);
+                return Token.TokenType.CODE_ID;
+            }
+        } else if (mode == Mode.ATTRLIST) {
+            if (isCharClass(ch, ALPHA)) {
+                scannedLength = runLength(1, ALPHA | DIGIT | HYPHEN);
+                return Token.TokenType.HTMLIDENTIFIER;
+            } else if (ch == '\'' || ch == '"') {
+                int i = 1;
+                while (buffer.available(i) && buffer.peek(i) != ch && buffer.peek(i) != '\n') {
+                    i++;
+                }
+                if (buffer.available(i) && buffer.peek(i) == ch) {
+                    scannedLength = i + 1;
+                    valueLead = 1;
+                    valueTrail = 1;
+                    return Token.TokenType.STRING;
+                }
+            }
+        }
+
+        scannedLength = 1;
+        Token.TokenType type = ch < SINGLE_CHAR_TOKENS.length ? SINGLE_CHAR_TOKENS[ch] : null;
+        if (type == null) {
+            valueLead = -1;
+            return Token.TokenType.UNKNOWN;
         }
+        return type;
     }
 
     /**
-     * Match a multi-character token
+     * Scans the multi-character tokens that are only valid outside of attribute lists and hashes
      */
-    private void matchMultiCharToken(Pattern matcher, Token.TokenType tokenType, MatchedFn fn) {
-        if (this.token == null) {
-            String matched = buffer.matchRegex(matcher);
-            if (matched != null) {
-                this.token = new Token(tokenType);
-                this.token.setMatched(matched);
-                if (fn != null) {
-                    this.token.setTokenString(fn.match(matched));
-                } else {
-                    this.token.setTokenString(matched);
+    private Token.TokenType scanTemplateToken(char ch) {
+        switch (ch) {
+            case '|':
+                int i = runLength(1, BLANK);
+                if (buffer.peek(i) == '\n') {
+                    scannedLength = i + 1;
+                    return Token.TokenType.CONTINUELINE;
                 }
-                advanceCharsInBuffer(matched.length());
-            }
+                break;
+            case '%':
+                if (isCharClass(buffer.peek(1), ALPHA)) {
+                    scannedLength = runLength(2, ALPHA | DIGIT);
+                    valueLead = 1;
+                    return Token.TokenType.ELEMENT;
+                }
+                break;
+            case '#':
+                if (isCharClass(buffer.peek(1), SELECTOR)) {
+                    scannedLength = runLength(2, SELECTOR);
+                    valueLead = 1;
+                    return Token.TokenType.IDSELECTOR;
+                }
+                break;
+            case '.':
+                if (isCharClass(buffer.peek(1), SELECTOR)) {
+                    scannedLength = runLength(2, SELECTOR);
+                    valueLead = 1;
+                    return Token.TokenType.CLASSSELECTOR;
+                }
+                break;
+            case '-':
+                if (buffer.peek(1) == '#') {
+                    scannedLength = 2;
+                    return Token.TokenType.COMMENT;
+                }
+                break;
+            case '&':
+                if (buffer.peek(1) == '=') {
+                    scannedLength = 2;
+                    return Token.TokenType.ESCAPEHTML;
+                }
+                break;
+            case '!':
+                if (buffer.peek(1) == '=') {
+                    scannedLength = 2;
+                    return Token.TokenType.UNESCAPEHTML;
+                } else if (buffer.peek(1) == '!' && buffer.peek(2) == '!') {
+                    scannedLength = 3;
+                    return Token.TokenType.DOCTYPE;
+                }
+                break;
+            case '[':
+                if (isCharClass(buffer.peek(1), ALPHA | UNDERSCORE)) {
+                    int end = runLength(2, WORD);
+                    if (buffer.peek(end) == ']') {
+                        scannedLength = end + 1;
+                        valueLead = 1;
+                        valueTrail = 1;
+                        return Token.TokenType.OBJECTREF;
+                    }
+                }
+                break;
+            case ':':
+                if (isCharClass(buffer.peek(1), WORD)) {
+                    scannedLength = runLength(2, WORD);
+                    valueLead = 1;
+                    return Token.TokenType.FILTER;
+                }
+                break;
         }
+        return null;
     }
 
     /**
-     * Advances the input buffer pointer by a number of characters, updating the line and character counters
+     * Returns the offset of the first character at or after the given offset that is not in the character classes
      */
-    private void advanceCharsInBuffer(int numChars) {
-        int i = 0;
-        while (i < numChars) {
-            char ch = buffer.get();
-            char ch1 = buffer.peek();
-            if (ch == 13 && ch1 == 10) {
-                buffer.position(1);
-                lineNumber++;
-                characterNumber = 0;
-                currentLine = getCurrentLine(i);
-                i++;
-            } else if (ch == 10) {
-                lineNumber++;
-                characterNumber = 0;
-                currentLine = getCurrentLine(i);
-            } else {
-                characterNumber++;
-            }
+    private int runLength(int offset, int charClasses) {
+        int i = offset;
+        while (isCharClass(buffer.peek(i), charClasses)) {
             i++;
         }
+        return i;
+    }
+
+    private static boolean isCharClass(char ch, int charClasses) {
+        return ch < CHAR_CLASSES.length && (CHAR_CLASSES[ch] & charClasses) != 0;
     }
 
     /**
-     * Initilise the line and character counters
+     * Advances the input buffer pointer by a number of characters. A carriage return at the end is advanced over
+     * along with the newline following it
      */
-    private void initLine() {
-        if (StringUtils.isEmpty(currentLine)) {
-            currentLine = getCurrentLine(0);
-            lineNumber = 1;
-            characterNumber = 0;
+    private void advanceCharsInBuffer(int numChars) {
+        buffer.position(numChars);
+        if (numChars > 0 && buffer.charAt(buffer.position() - 1) == '\r' && buffer.peek() == '\n') {
+            buffer.position(1);
         }
     }
 
@@ -288,25 +491,13 @@ public class Tokeniser {
      * Returns the current line in the input buffer
      */
     String getCurrentLine(Integer index) {
-        buffer.mark();
-        if (index > 0) {
-            buffer.position(index);
-        }
-        while (!buffer.empty() && buffer.get() != '\n');
-        int pos = buffer.position();
-        buffer.reset();
-
-        if (pos > index) {
-            return StringUtils.stripEnd(buffer.subSequence(index, pos), "\n");
-        }
-
-        return "";
+        return buffer.line(buffer.position() + index);
     }
 
     /**
      * Calculate the indent level of the provided whitespace
      */
-    public int calculateIndent(String whitespace) {
+    public int calculateIndent(CharSequence whitespace) {
         int indent = 0;
         int i = 0;
         while (i < whitespace.length()) {
@@ -321,10 +512,24 @@ public class Tokeniser {
         return (int) Math.floor((indent + 1) / 2);
     }
 
+    /**
+     * Calculate the indent level of the current token, which should be a whitespace token
+     */
+    public int tokenIndent() {
+        int start = tokens[slot(position) + 1];
+        int end = start + tokens[slot(position) + 2];
+        int indent = 0;
+        for (int i = start; i < end; i++) {
+            indent += buffer.charAt(i) == 9 ? 2 : 1;
+        }
+        return (indent + 1) / 2;
+    }
+
     /**
      * Try to match a token with the given regexp
      */
     public String matchToken(Pattern regex) {
+        syncBuffer();
         return buffer.matchRegex(regex);
     }
 
@@ -332,7 +537,17 @@ public class Tokeniser {
      * Returns the current line and character counters
      */
     public ParsePoint currentParsePoint() {
-        return new ParsePoint(lineNumber, characterNumber, currentLine);
+        if (position < 0) {
+            return new ParsePoint(0, 0, null);
+        }
+        int offset = tokens[slot(position) + 1] + tokens[slot(position) + 2];
+        int line = lineIndex(offset);
+        int lineStart = lineStarts[line];
+        if (buffer.retains(lineStart)) {
+            return new ParsePoint(firstLineNumber + line, offset - lineStart, buffer, lineStart);
+        } else {
+            return new ParsePoint(firstLineNumber + line, offset - lineStart, buffer.line(lineStart));
+        }
     }
 
     /**
@@ -340,9 +555,12 @@ public class Tokeniser {
      */
     public String skipToEOLorEOF() {
         String text = "";
-        if (token.type != Token.TokenType.EOF && token.type != Token.TokenType.EOL) {
-            if (StringUtils.isNotEmpty(token.getMatched())) {
-                text += token.getMatched();
+        if (!isEolOrEof()) {
+            syncBuffer();
+            int length = tokens[slot(position) + 2];
+            if (length > 0) {
+                int start = tokens[slot(position) + 1];
+                text += buffer.substring(start, start + length);
             }
             String line = buffer.matchRegex(CURRENT_LINE_MATCHER);
             if (StringUtils.isNotEmpty(line)) {
@@ -350,15 +568,15 @@ public class Tokeniser {
                 if (StringUtils.endsWith(contents, "|")) {
                     text += contents.substring(0, contents.length() - 1);
                     advanceCharsInBuffer(contents.length() - 1);
-                    getNextToken();
+                    advance();
                     text += parseMultiLine();
                 } else {
                     text += line;
                     advanceCharsInBuffer(line.length());
-                    getNextToken();
+                    advance();
                 }
             } else {
-                getNextToken();
+                advance();
             }
         }
         return text;
@@ -369,7 +587,7 @@ public class Tokeniser {
      */
     private String parseMultiLine() {
         StringBuilder text = new StringBuilder();
-        while (token.type == Token.TokenType.CONTINUELINE) {
+        while (getTokenType() == Token.TokenType.CONTINUELINE) {
             String line = buffer.matchRegex(CURRENT_LINE_MATCHER);
             if (StringUtils.isNotEmpty(line)) {
                 String contents = StringUtils.stripEnd(line, null);
@@ -377,7 +595,7 @@ public class Tokeniser {
                   text.append(contents.substring(0, contents.length() - 1));
                   advanceCharsInBuffer(contents.length() - 1);
                 }
-                getNextToken();
+                advance();
             }
         }
         return text.toString();
@@ -387,16 +605,21 @@ public class Tokeniser {
      * Returns an error string filled out with the line and character counters
      */
     public String parseError(String error) {
-        return HamlRuntime.templateError(lineNumber, characterNumber, currentLine, error);
+        ParsePoint parsePoint = currentParsePoint();
+        return HamlRuntime.templateError(parsePoint.lineNumber, parsePoint.characterNumber, parsePoint.getCurrentLine(),
+            error);
     }
 
     /**
-     * Pushes back the current token onto the front of the input buffer
+     * Pushes back the current token, making the previous token the current one again. The pushed back token stays
+     * in the ring, so the next call to get the next token does not need to scan it again
      */
     public void pushBackToken() {
-        if (token.type != Token.TokenType.EOF) {
-            buffer.position(-token.getMatched().length());
-            token = prevToken;
+        if (getTokenType() != Token.TokenType.EOF) {
+            if (position < 1 || position <= scanned - RING_SIZE + 1) {
+                throw new IllegalStateException("There is no previous token to push back to");
+            }
+            position--;
         }
     }
 
@@ -404,6 +627,7 @@ public class Tokeniser {
      * Skips all characters until the provided character is reached, returning the skipped string
      */
     public String skipToChars(String ch) {
+        syncBuffer();
         StringBuilder result = new StringBuilder();
         while (!buffer.empty() && ch.indexOf(buffer.peek()) == -1) {
             result.append(buffer.get());
@@ -416,7 +640,11 @@ public class Tokeniser {
         }
     }
 
+    /**
+     * Returns the input buffer positioned at the end of the current token
+     */
     public SourceBuffer getBuffer() {
+        syncBuffer();
         return buffer;
     }
 
@@ -0,0 +1,32 @@
+package au.com.ogsoft.yahaml4j.ast;
+
+import au.com.ogsoft.yahaml4j.ParsePoint;
+
+/**
+ * Line of code (-). If the line starts a code or function block, the lines nested inside the block are its children
+ */
+public class CodeNode extends Node {
+
+    public final String code;
+    public final String newline;
+    public final boolean block;
+    public final boolean functionBlock;
+    /**
+     * The code line that closed off the block, or null if it was closed by any other line or the end of the template
+     */
+    public String closingCode;
+
+    public CodeNode(int indent, ParsePoint parsePoint, String code, String newline, boolean block,
+                    boolean functionBlock) {
+        super(indent, parsePoint);
+        this.code = code;
+        this.newline = newline;
+        this.block = block;
+        this.functionBlock = functionBlock;
+    }
+
+    @Override
+    public void accept(NodeVisitor visitor) {
+        visitor.visit(this);
+    }
+}
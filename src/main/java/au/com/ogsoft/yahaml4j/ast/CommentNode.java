@@ -0,0 +1,31 @@
+package au.com.ogsoft.yahaml4j.ast;
+
+import au.com.ogsoft.yahaml4j.ParsePoint;
+
+/**
+ * HTML comment (/), with the lines nested inside it as children
+ */
+public class CommentNode extends Node {
+
+    public final String contents;
+    public final boolean conditional;
+    public final String newline;
+    /**
+     * Are there any lines nested inside the comment
+     */
+    public final boolean hasContents;
+
+    public CommentNode(int indent, ParsePoint parsePoint, String contents, boolean conditional, String newline,
+                       boolean hasContents) {
+        super(indent, parsePoint);
+        this.contents = contents;
+        this.conditional = conditional;
+        this.newline = newline;
+        this.hasContents = hasContents;
+    }
+
+    @Override
+    public void accept(NodeVisitor visitor) {
+        visitor.visit(this);
+    }
+}
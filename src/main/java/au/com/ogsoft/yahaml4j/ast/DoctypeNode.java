@@ -0,0 +1,23 @@
+package au.com.ogsoft.yahaml4j.ast;
+
+import au.com.ogsoft.yahaml4j.ParsePoint;
+
+/**
+ * Doctype line (!!!), with the doctype declaration it is replaced with
+ */
+public class DoctypeNode extends Node {
+
+    public final String doctype;
+    public final String newline;
+
+    public DoctypeNode(int indent, ParsePoint parsePoint, String doctype, String newline) {
+        super(indent, parsePoint);
+        this.doctype = doctype;
+        this.newline = newline;
+    }
+
+    @Override
+    public void accept(NodeVisitor visitor) {
+        visitor.visit(this);
+    }
+}
@@ -0,0 +1,55 @@
+package au.com.ogsoft.yahaml4j.ast;
+
+import au.com.ogsoft.yahaml4j.ParsePoint;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HTML element, with the lines nested inside it as children. The whitespace flags are worked out by the parser,
+ * so the element can be generated without knowing about the elements around it
+ */
+public class ElementNode extends Node {
+
+    public final String tag;
+    public final String id;
+    public final List<String> classes;
+    public final String objectRef;
+    public final Map<String, String> attributeList;
+    public final Map<String, String> attributeHash;
+    public final boolean selfClosing;
+    public final boolean innerWhitespace;
+    public final boolean outerWhitespace;
+    /**
+     * Does the element this one is nested in keep the whitespace inside it
+     */
+    public final boolean parentInnerWhitespace;
+
+    public ElementNode(int indent, ParsePoint parsePoint, String tag, String id, List<String> classes, String objectRef,
+                       Map<String, String> attributeList, Map<String, String> attributeHash, boolean selfClosing,
+                       boolean innerWhitespace, boolean outerWhitespace, boolean parentInnerWhitespace) {
+        super(indent, parsePoint);
+        this.tag = tag;
+        this.id = id;
+        this.classes = classes;
+        this.objectRef = objectRef;
+        this.attributeList = attributeList;
+        this.attributeHash = attributeHash;
+        this.selfClosing = selfClosing;
+        this.innerWhitespace = innerWhitespace;
+        this.outerWhitespace = outerWhitespace;
+        this.parentInnerWhitespace = parentInnerWhitespace;
+    }
+
+    /**
+     * Are any of the attributes worked out when the template is rendered
+     */
+    public boolean hasDynamicAttributes() {
+        return !attributeHash.isEmpty() || (objectRef != null && !objectRef.isEmpty());
+    }
+
+    @Override
+    public void accept(NodeVisitor visitor) {
+        visitor.visit(this);
+    }
+}
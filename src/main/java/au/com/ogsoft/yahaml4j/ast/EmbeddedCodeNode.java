@@ -0,0 +1,34 @@
+package au.com.ogsoft.yahaml4j.ast;
+
+import au.com.ogsoft.yahaml4j.ParsePoint;
+
+/**
+ * Code whose result is rendered into the template (=, &=, != and ~), either on its own line or as the contents of
+ * an element
+ */
+public class EmbeddedCodeNode extends Node {
+
+    public final String expression;
+    public final boolean escapeHtml;
+    public final boolean preserveWhitespace;
+    /**
+     * Is the output indented and followed by the line ending
+     */
+    public final boolean whitespace;
+    public final String newline;
+
+    public EmbeddedCodeNode(int indent, ParsePoint parsePoint, String expression, boolean escapeHtml,
+                            boolean preserveWhitespace, boolean whitespace, String newline) {
+        super(indent, parsePoint);
+        this.expression = expression;
+        this.escapeHtml = escapeHtml;
+        this.preserveWhitespace = preserveWhitespace;
+        this.whitespace = whitespace;
+        this.newline = newline;
+    }
+
+    @Override
+    public void accept(NodeVisitor visitor) {
+        visitor.visit(this);
+    }
+}
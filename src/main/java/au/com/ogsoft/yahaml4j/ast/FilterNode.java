@@ -0,0 +1,27 @@
+package au.com.ogsoft.yahaml4j.ast;
+
+import au.com.ogsoft.yahaml4j.ParsePoint;
+import au.com.ogsoft.yahaml4j.filters.Filter;
+import au.com.ogsoft.yahaml4j.filters.FilterContents;
+
+/**
+ * Filter block (:name), with the filter it was registered under when the template was parsed
+ */
+public class FilterNode extends Node {
+
+    public final String name;
+    public final Filter filter;
+    public final FilterContents contents;
+
+    public FilterNode(int indent, ParsePoint parsePoint, String name, Filter filter, FilterContents contents) {
+        super(indent, parsePoint);
+        this.name = name;
+        this.filter = filter;
+        this.contents = contents;
+    }
+
+    @Override
+    public void accept(NodeVisitor visitor) {
+        visitor.visit(this);
+    }
+}
@@ -0,0 +1,24 @@
+package au.com.ogsoft.yahaml4j.ast;
+
+import au.com.ogsoft.yahaml4j.ParsePoint;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Node of a parsed HAML template. Nodes are kept in the order their output is generated, with the lines nested
+ * inside an element, comment or code block as its children
+ */
+public abstract class Node {
+
+    public final int indent;
+    public final ParsePoint parsePoint;
+    public final List<Node> children = new ArrayList<Node>();
+
+    protected Node(int indent, ParsePoint parsePoint) {
+        this.indent = indent;
+        this.parsePoint = parsePoint;
+    }
+
+    public abstract void accept(NodeVisitor visitor);
+}
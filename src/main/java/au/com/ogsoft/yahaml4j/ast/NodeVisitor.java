@@ -0,0 +1,23 @@
+package au.com.ogsoft.yahaml4j.ast;
+
+/**
+ * Visitor over the nodes of a parsed template. Visitors are responsible for visiting the children of a node
+ */
+public interface NodeVisitor {
+
+    void visit(TemplateNode node);
+
+    void visit(DoctypeNode node);
+
+    void visit(ElementNode node);
+
+    void visit(TextNode node);
+
+    void visit(CodeNode node);
+
+    void visit(EmbeddedCodeNode node);
+
+    void visit(CommentNode node);
+
+    void visit(FilterNode node);
+}
@@ -0,0 +1,19 @@
+package au.com.ogsoft.yahaml4j.ast;
+
+/**
+ * Root of a parsed template, which can be kept and have code generated for it any number of times
+ */
+public class TemplateNode extends Node {
+
+    public final String name;
+
+    public TemplateNode(String name) {
+        super(-1, null);
+        this.name = name;
+    }
+
+    @Override
+    public void accept(NodeVisitor visitor) {
+        visitor.visit(this);
+    }
+}
@@ -0,0 +1,25 @@
+package au.com.ogsoft.yahaml4j.ast;
+
+import au.com.ogsoft.yahaml4j.ParsePoint;
+
+/**
+ * Text contents of a line, already indented or trimmed as the line requires, followed by the line ending
+ */
+public class TextNode extends Node {
+
+    public final String text;
+    public final boolean interpolate;
+    public final String newline;
+
+    public TextNode(int indent, ParsePoint parsePoint, String text, boolean interpolate, String newline) {
+        super(indent, parsePoint);
+        this.text = text;
+        this.interpolate = interpolate;
+        this.newline = newline;
+    }
+
+    @Override
+    public void accept(NodeVisitor visitor) {
+        visitor.visit(this);
+    }
+}
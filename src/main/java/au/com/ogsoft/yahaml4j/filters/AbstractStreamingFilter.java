@@ -0,0 +1,17 @@
+package au.com.ogsoft.yahaml4j.filters;
+
+import au.com.ogsoft.yahaml4j.HamlGenerator;
+import au.com.ogsoft.yahaml4j.ParsePoint;
+
+import java.util.List;
+
+/**
+ * Base class for streaming filters, which runs them over a list of lines when they are called as a plain Filter
+ */
+public abstract class AbstractStreamingFilter implements StreamingFilter {
+
+    @Override
+    public void execute(List<String> contents, HamlGenerator generator, Integer indent, ParsePoint parsePoint) {
+        execute(FilterContents.of(contents), generator, indent, parsePoint);
+    }
+}
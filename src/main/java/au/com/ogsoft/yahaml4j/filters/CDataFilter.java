@@ -5,18 +5,27 @@ import au.com.ogsoft.yahaml4j.HamlGenerator;
 import au.com.ogsoft.yahaml4j.HamlRuntime;
 import au.com.ogsoft.yahaml4j.ParsePoint;
 
-import java.util.List;
-
 /**
  * Wraps the filter block in a CDATA tag
  */
-public class CDataFilter implements Filter {
+public class CDataFilter extends AbstractStreamingFilter implements NamedFilter {
     @Override
-    public void execute(List<String> contents, HamlGenerator generator, Integer indent, ParsePoint parsePoint) {
+    public void execute(FilterContents contents, HamlGenerator generator, int indent, ParsePoint parsePoint) {
         generator.getOutputBuffer().append(HamlRuntime.indentText(indent) + "<![CDATA[\n");
-        for (String line: contents) {
-            generator.appendTextContents(HamlRuntime.indentText(indent) + line + '\n', true, parsePoint, null);
+        String indentText = HamlRuntime.indentText(indent);
+        for (CharSequence line: contents) {
+            generator.appendTextLine(indentText, line, true, parsePoint, null);
         }
         generator.getOutputBuffer().append(HamlRuntime.indentText(indent) + "]]>\n");
     }
+
+    @Override
+    public String getName() {
+        return "cdata";
+    }
+
+    @Override
+    public boolean isPure() {
+        return true;
+    }
 }
@@ -0,0 +1,15 @@
+package au.com.ogsoft.yahaml4j.filters;
+
+import au.com.ogsoft.yahaml4j.HamlOptions;
+
+/**
+ * A filter whose behaviour depends on the options a template is compiled with. The parser asks it for the filter
+ * to use for each filter block
+ */
+public interface ConfigurableFilter extends Filter {
+
+    /**
+     * Returns the filter to use with the provided options, which can be this filter
+     */
+    Filter configure(HamlOptions options);
+}
@@ -1,25 +1,60 @@
 package au.com.ogsoft.yahaml4j.filters;
 
 import au.com.ogsoft.yahaml4j.HamlGenerator;
+import au.com.ogsoft.yahaml4j.HamlOptions;
 import au.com.ogsoft.yahaml4j.HamlRuntime;
 import au.com.ogsoft.yahaml4j.ParsePoint;
 
-import java.util.List;
-
 /**
- * Wraps the filter block in a style tag
+ * Wraps the filter block in a style tag. With the minifyCss option the comments and whitespace are removed from
+ * the block when the template is compiled
  */
-public class CssFilter implements Filter {
+public class CssFilter extends AbstractStreamingFilter implements NamedFilter, ConfigurableFilter {
+
+    private static final CssFilter VERBATIM = new CssFilter(false);
+    private static final CssFilter MINIFYING = new CssFilter(true);
+
+    private final boolean minify;
+
+    public CssFilter() {
+        this(false);
+    }
 
+    public CssFilter(boolean minify) {
+        this.minify = minify;
+    }
 
     @Override
-    public void execute(List<String> contents, HamlGenerator generator, Integer indent, ParsePoint parsePoint) {
+    public void execute(FilterContents contents, HamlGenerator generator, int indent, ParsePoint parsePoint) {
         generator.getOutputBuffer().append(HamlRuntime.indentText(indent) + "<style type=\"text/css\">\n");
         generator.getOutputBuffer().append(HamlRuntime.indentText(indent + 1) + "/*<![CDATA[*/\n");
-        for (String line: contents) {
-            generator.appendTextContents(HamlRuntime.indentText(indent + 1) + line + '\n', true, parsePoint, null);
+        String indentText = HamlRuntime.indentText(indent + 1);
+        if (minify) {
+            String css = Minifier.minifyCss(contents.joinLines());
+            if (!css.isEmpty()) {
+                generator.appendTextLine(indentText, css, true, parsePoint, null);
+            }
+        } else {
+            for (CharSequence line: contents) {
+                generator.appendTextLine(indentText, line, true, parsePoint, null);
+            }
         }
         generator.getOutputBuffer().append(HamlRuntime.indentText(indent + 1) + "/*]]>*/\n");
         generator.getOutputBuffer().append(HamlRuntime.indentText(indent) + "</style>\n");
     }
+
+    @Override
+    public Filter configure(HamlOptions options) {
+        return options.minifyCss == minify ? this : options.minifyCss ? MINIFYING : VERBATIM;
+    }
+
+    @Override
+    public String getName() {
+        return "css";
+    }
+
+    @Override
+    public boolean isPure() {
+        return true;
+    }
 }
@@ -5,18 +5,27 @@ import au.com.ogsoft.yahaml4j.HamlRuntime;
 import au.com.ogsoft.yahaml4j.ParsePoint;
 import au.com.ogsoft.yahaml4j.ProcessOptions;
 
-import java.util.List;
-
 /**
  * Escape filter, renders the text in the block with html escaped
  */
-public class EscapedFilter implements Filter {
+public class EscapedFilter extends AbstractStreamingFilter implements NamedFilter {
     @Override
-    public void execute(List<String> contents, HamlGenerator generator, Integer indent, ParsePoint parsePoint) {
-        for (String line: contents) {
-            ProcessOptions processOptions = new ProcessOptions();
-            processOptions.escapeHTML = true;
-            generator.appendTextContents(HamlRuntime.indentText(indent - 1) + line + '\n', true, parsePoint, processOptions);
+    public void execute(FilterContents contents, HamlGenerator generator, int indent, ParsePoint parsePoint) {
+        ProcessOptions processOptions = new ProcessOptions();
+        processOptions.escapeHTML = true;
+        String indentText = HamlRuntime.indentText(indent - 1);
+        for (CharSequence line: contents) {
+            generator.appendTextLine(indentText, line, true, parsePoint, processOptions);
         }
     }
+
+    @Override
+    public String getName() {
+        return "escaped";
+    }
+
+    @Override
+    public boolean isPure() {
+        return true;
+    }
 }
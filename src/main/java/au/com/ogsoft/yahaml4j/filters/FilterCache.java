@@ -0,0 +1,166 @@
+package au.com.ogsoft.yahaml4j.filters;
+
+import au.com.ogsoft.yahaml4j.CodeBuffer;
+import au.com.ogsoft.yahaml4j.HamlGenerator;
+import au.com.ogsoft.yahaml4j.HamlOptions;
+import au.com.ogsoft.yahaml4j.ParsePoint;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the contents generated by pure filters, keyed by the filter, the indent, a hash of the filter contents,
+ * the class of the generator and the options that change the output, so the same filter block repeated across
+ * templates is only run once. Only the least recently used
+ * entries are kept. If a filter generates any code instead of just contents, its output is not remembered.
+ */
+public class FilterCache {
+
+    public static final int DEFAULT_SIZE = 256;
+
+    private static final FilterCache SHARED = new FilterCache(DEFAULT_SIZE);
+
+    private final Map<Key, String> entries;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxEntries Most filter outputs to keep
+     */
+    public FilterCache(final int maxEntries) {
+        entries = new LinkedHashMap<Key, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cache shared by all the generators in the JVM
+     */
+    public static FilterCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Runs the filter, or appends the contents it generated the last time it was run with the same contents and
+     * indent by the same kind of generator with the same options
+     */
+    public void execute(Filter filter, FilterContents contents, HamlGenerator generator, HamlOptions options,
+                        int indent, ParsePoint parsePoint) {
+        Key key = new Key(filter, indent, digest(contents), generator.getClass(), optionFlags(options));
+        CodeBuffer output = generator.getOutputBuffer();
+        String cached = get(key);
+        if (cached != null) {
+            output.append(cached);
+        } else {
+            int codeLength = output.length();
+            int start = output.getBuffer().length();
+            FilterContents.execute(filter, contents, generator, indent, parsePoint);
+            if (output.length() == codeLength && output.getBuffer().length() >= start) {
+                put(key, output.getBuffer().substring(start));
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        hits = 0;
+        misses = 0;
+    }
+
+    private synchronized String get(Key key) {
+        String value = entries.get(key);
+        if (value != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return value;
+    }
+
+    private synchronized void put(Key key, String value) {
+        entries.put(key, value);
+    }
+
+    /**
+     * Returns the options that change what is generated as bits
+     */
+    private static int optionFlags(HamlOptions options) {
+        if (options == null) {
+            return 0;
+        }
+        return (options.tolerateFaults ? 1 : 0) | (options.production ? 2 : 0) | (options.minifyCss ? 4 : 0) |
+            (options.minifyJavascript ? 8 : 0);
+    }
+
+    private static byte[] digest(FilterContents contents) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        // the line ends are part of the hash, so the same text split into different lines does not match
+        ByteBuffer lineEnds = ByteBuffer.allocate(4 * contents.size());
+        for (int i = 0; i < contents.size(); i++) {
+            lineEnds.putInt(contents.lineEnd(i));
+        }
+        digest.update(lineEnds.array());
+        digest.update(contents.text().getBytes(StandardCharsets.UTF_8));
+        return digest.digest();
+    }
+
+    private static class Key {
+
+        private final Filter filter;
+        private final int indent;
+        private final byte[] digest;
+        private final Class<?> generator;
+        private final int options;
+        private final int hashCode;
+
+        private Key(Filter filter, int indent, byte[] digest, Class<?> generator, int options) {
+            this.filter = filter;
+            this.indent = indent;
+            this.digest = digest;
+            this.generator = generator;
+            this.options = options;
+            int hash = 31 * (31 * System.identityHashCode(filter) + indent) + Arrays.hashCode(digest);
+            this.hashCode = 31 * (31 * hash + generator.hashCode()) + options;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return filter == other.filter && indent == other.indent && Arrays.equals(digest, other.digest) &&
+                generator == other.generator && options == other.options;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package au.com.ogsoft.yahaml4j.filters;
+
+import au.com.ogsoft.yahaml4j.HamlGenerator;
+import au.com.ogsoft.yahaml4j.ParsePoint;
+
+import java.nio.CharBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The lines of a filter block. The lines are kept together in one string, and are handed out as views into it, so
+ * they are not copied unless a filter asks for them as strings.
+ */
+public class FilterContents implements Iterable<CharSequence> {
+
+    private final String text;
+    // the offset of each line in the text, followed by the end of the last line
+    private final int[] starts;
+    private final int size;
+
+    private FilterContents(String text, int[] starts, int size) {
+        this.text = text;
+        this.starts = starts;
+        this.size = size;
+    }
+
+    /**
+     * Creates the contents from a list of lines
+     */
+    public static FilterContents of(List<String> lines) {
+        Builder builder = new Builder();
+        for (String line: lines) {
+            builder.add(line, 0);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Runs the filter over the contents, as a stream of lines if it is a StreamingFilter
+     */
+    public static void execute(Filter filter, FilterContents contents, HamlGenerator generator, int indent,
+                               ParsePoint parsePoint) {
+        if (filter instanceof StreamingFilter) {
+            ((StreamingFilter) filter).execute(contents, generator, indent, parsePoint);
+        } else {
+            filter.execute(contents.asList(), generator, indent, parsePoint);
+        }
+    }
+
+    /**
+     * Returns the number of lines
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns a view of the line, which is only valid as long as the contents are
+     */
+    public CharSequence line(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Line " + i + " of " + size);
+        }
+        return CharBuffer.wrap(text, starts[i], starts[i + 1]);
+    }
+
+    /**
+     * Iterates over views of the lines, which are only created as they are reached
+     */
+    @Override
+    public Iterator<CharSequence> iterator() {
+        return new Iterator<CharSequence>() {
+            private int i;
+
+            @Override
+            public boolean hasNext() {
+                return i < size;
+            }
+
+            @Override
+            public CharSequence next() {
+                if (i >= size) {
+                    throw new NoSuchElementException();
+                }
+                return line(i++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Returns the lines as strings, for filters that need them. Each line is copied when it is read
+     */
+    public List<String> asList() {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return line(index).toString();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Returns all the lines joined together without any separators
+     */
+    String text() {
+        return text;
+    }
+
+    /**
+     * Returns the lines joined together with a line break after each one
+     */
+    String joinLines() {
+        StringBuilder joined = new StringBuilder(text.length() + size);
+        for (int i = 0; i < size; i++) {
+            joined.append(text, starts[i], starts[i + 1]).append('\n');
+        }
+        return joined.toString();
+    }
+
+    /**
+     * Returns the offset in the text of the end of the line
+     */
+    int lineEnd(int i) {
+        return starts[i + 1];
+    }
+
+    @Override
+    public String toString() {
+        return new ArrayList<String>(asList()).toString();
+    }
+
+    /**
+     * Collects the lines of a filter block as they are parsed
+     */
+    public static class Builder {
+
+        private final StringBuilder text = new StringBuilder();
+        private int[] starts = new int[9];
+        private int size;
+
+        /**
+         * Adds the line from the start offset to its end
+         */
+        public Builder add(CharSequence line, int start) {
+            text.append(line, start, line.length());
+            if (size + 1 == starts.length) {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+            }
+            size++;
+            starts[size] = text.length();
+            return this;
+        }
+
+        public FilterContents build() {
+            return new FilterContents(text.toString(), starts, size);
+        }
+    }
+}
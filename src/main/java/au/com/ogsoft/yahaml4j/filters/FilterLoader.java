@@ -0,0 +1,51 @@
+package au.com.ogsoft.yahaml4j.filters;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/**
+ * Finds the filters registered as NamedFilter services. The standard filters are registered this way, along with
+ * any others on the class path
+ */
+public class FilterLoader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FilterLoader.class);
+
+    private static Map<String, Filter> defaultFilters;
+
+    private FilterLoader() {
+
+    }
+
+    /**
+     * Returns the filters found with the class loader that loaded yahaml4j. They are only looked up once
+     */
+    public static synchronized Map<String, Filter> defaultFilters() {
+        if (defaultFilters == null) {
+            defaultFilters = Collections.unmodifiableMap(load(FilterLoader.class.getClassLoader()));
+        }
+        return defaultFilters;
+    }
+
+    /**
+     * Returns a new map of the filters found with the class loader, by name. If more than one filter has the same
+     * name, the first one found is used
+     */
+    public static Map<String, Filter> load(ClassLoader classLoader) {
+        Map<String, Filter> filters = new HashMap<String, Filter>();
+        for (NamedFilter filter: ServiceLoader.load(NamedFilter.class, classLoader)) {
+            if (filters.containsKey(filter.getName())) {
+                LOGGER.warn("Ignoring " + filter.getClass().getName() + " as there is already a filter named \"" +
+                    filter.getName() + "\"");
+            } else {
+                filters.put(filter.getName(), filter);
+            }
+        }
+        return filters;
+    }
+}
@@ -1,23 +1,62 @@
 package au.com.ogsoft.yahaml4j.filters;
 
 import au.com.ogsoft.yahaml4j.HamlGenerator;
+import au.com.ogsoft.yahaml4j.HamlOptions;
 import au.com.ogsoft.yahaml4j.HamlRuntime;
 import au.com.ogsoft.yahaml4j.ParsePoint;
 
-import java.util.List;
-
 /**
- * Wraps the filter block in a javascript tag
+ * Wraps the filter block in a javascript tag. With the minifyJavascript option the comments, blank lines and
+ * indenting are removed from the block when the template is compiled
  */
-public class JavascriptFilter implements Filter {
+public class JavascriptFilter extends AbstractStreamingFilter implements NamedFilter, ConfigurableFilter {
+
+    private static final JavascriptFilter VERBATIM = new JavascriptFilter(false);
+    private static final JavascriptFilter MINIFYING = new JavascriptFilter(true);
+
+    private final boolean minify;
+
+    public JavascriptFilter() {
+        this(false);
+    }
+
+    public JavascriptFilter(boolean minify) {
+        this.minify = minify;
+    }
+
     @Override
-    public void execute(List<String> contents, HamlGenerator generator, Integer indent, ParsePoint parsePoint) {
+    public void execute(FilterContents contents, HamlGenerator generator, int indent, ParsePoint parsePoint) {
         generator.getOutputBuffer().append(HamlRuntime.indentText(indent) + "<script type=\"text/javascript\">\n");
         generator.getOutputBuffer().append(HamlRuntime.indentText(indent + 1) + "//<![CDATA[\n");
-        for(String line: contents) {
-            generator.appendTextContents(HamlRuntime.indentText(indent + 1) + line + '\n', true, parsePoint, null);
+        String indentText = HamlRuntime.indentText(indent + 1);
+        if (minify) {
+            String js = Minifier.minifyJavascript(contents.joinLines());
+            if (!js.isEmpty()) {
+                for (String line: js.split("\n")) {
+                    generator.appendTextLine(indentText, line, true, parsePoint, null);
+                }
+            }
+        } else {
+            for (CharSequence line: contents) {
+                generator.appendTextLine(indentText, line, true, parsePoint, null);
+            }
         }
         generator.getOutputBuffer().append(HamlRuntime.indentText(indent + 1) + "//]]>\n");
         generator.getOutputBuffer().append(HamlRuntime.indentText(indent) + "</script>\n");
     }
+
+    @Override
+    public Filter configure(HamlOptions options) {
+        return options.minifyJavascript == minify ? this : options.minifyJavascript ? MINIFYING : VERBATIM;
+    }
+
+    @Override
+    public String getName() {
+        return "javascript";
+    }
+
+    @Override
+    public boolean isPure() {
+        return true;
+    }
 }
@@ -0,0 +1,254 @@
+package au.com.ogsoft.yahaml4j.filters;
+
+/**
+ * Conservative minifiers for the contents of the css and javascript filters. Comments and whitespace are removed,
+ * but strings, regular expressions and #{} interpolations are copied as they are.
+ */
+public class Minifier {
+
+    private Minifier() {
+
+    }
+
+    /**
+     * Removes the comments (apart from /*! ones) from the CSS, collapses whitespace and removes it around braces,
+     * semicolons, commas and child selectors, and around the colons of declarations. The result is one line
+     */
+    public static String minifyCss(CharSequence css) {
+        StringBuilder out = new StringBuilder(css.length());
+        int length = css.length();
+        boolean pendingSpace = false;
+        // a space before a colon in a selector is significant, so it is only removed inside a block
+        int depth = 0;
+        int i = 0;
+        while (i < length) {
+            char ch = css.charAt(i);
+            if (ch == '/' && i + 1 < length && css.charAt(i + 1) == '*') {
+                int end = indexOf(css, "*/", i + 2);
+                end = end < 0 ? length : end + 2;
+                if (i + 2 < length && css.charAt(i + 2) == '!') {
+                    appendPendingSpace(out, pendingSpace);
+                    out.append(css, i, end);
+                }
+                pendingSpace = pendingSpace || end < length && Character.isWhitespace(css.charAt(end));
+                i = end;
+            } else if (Character.isWhitespace(ch)) {
+                pendingSpace = true;
+                i++;
+            } else if (isCssPunctuation(ch)) {
+                if (ch == ';' && i + 1 < length && nextNonWhitespace(css, i + 1) == '}') {
+                    pendingSpace = false;
+                    i++;
+                    continue;
+                }
+                if (ch == '{') {
+                    depth++;
+                } else if (ch == '}' && depth > 0) {
+                    depth--;
+                }
+                out.append(ch);
+                pendingSpace = false;
+                i++;
+            } else if (ch == ':') {
+                appendPendingSpace(out, pendingSpace && depth == 0);
+                out.append(ch);
+                pendingSpace = false;
+                i = skipWhitespace(css, i + 1);
+            } else {
+                appendPendingSpace(out, pendingSpace);
+                pendingSpace = false;
+                int end;
+                if (ch == '"' || ch == '\'') {
+                    end = skipString(css, i);
+                } else if (isInterpolation(css, i)) {
+                    end = skipInterpolation(css, i);
+                } else {
+                    end = i + 1;
+                }
+                out.append(css, i, end);
+                i = end;
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Removes the comments from the javascript, along with blank lines, the indenting and trailing whitespace of each
+     * line and repeated spaces. Line breaks are kept, so automatic semicolon insertion is not affected
+     */
+    public static String minifyJavascript(CharSequence js) {
+        StringBuilder out = new StringBuilder(js.length());
+        int length = js.length();
+        boolean pendingSpace = false;
+        boolean pendingNewline = false;
+        // the last character written that was not whitespace, to tell a regular expression from a division
+        char last = 0;
+        int i = 0;
+        while (i < length) {
+            char ch = js.charAt(i);
+            if (ch == '\n' || ch == '\r') {
+                pendingNewline = out.length() > 0;
+                pendingSpace = false;
+                i++;
+            } else if (ch == ' ' || ch == '\t' || Character.isWhitespace(ch)) {
+                pendingSpace = out.length() > 0;
+                i++;
+            } else if (ch == '/' && i + 1 < length && js.charAt(i + 1) == '/') {
+                while (i < length && js.charAt(i) != '\n' && js.charAt(i) != '\r') {
+                    i++;
+                }
+            } else if (ch == '/' && i + 1 < length && js.charAt(i + 1) == '*') {
+                int end = indexOf(js, "*/", i + 2);
+                end = end < 0 ? length : end + 2;
+                if (indexOf(js.subSequence(i, end), "\n", 0) >= 0) {
+                    pendingNewline = out.length() > 0;
+                } else {
+                    pendingSpace = out.length() > 0;
+                }
+                i = end;
+            } else {
+                if (pendingNewline) {
+                    out.append('\n');
+                } else if (pendingSpace) {
+                    out.append(' ');
+                }
+                pendingNewline = false;
+                pendingSpace = false;
+                int end;
+                if (ch == '"' || ch == '\'' || ch == '`') {
+                    end = skipString(js, i);
+                } else if (ch == '/' && startsRegex(last, out)) {
+                    end = skipRegex(js, i);
+                } else if (isInterpolation(js, i)) {
+                    end = skipInterpolation(js, i);
+                } else {
+                    end = i + 1;
+                }
+                out.append(js, i, end);
+                last = js.charAt(end - 1);
+                i = end;
+            }
+        }
+        return out.toString();
+    }
+
+    private static boolean isCssPunctuation(char ch) {
+        return ch == '{' || ch == '}' || ch == ';' || ch == ',' || ch == '>';
+    }
+
+    private static void appendPendingSpace(StringBuilder out, boolean pendingSpace) {
+        if (pendingSpace && out.length() > 0 && !isCssPunctuation(out.charAt(out.length() - 1))) {
+            out.append(' ');
+        }
+    }
+
+    private static char nextNonWhitespace(CharSequence text, int i) {
+        int next = skipWhitespace(text, i);
+        return next < text.length() ? text.charAt(next) : 0;
+    }
+
+    private static int skipWhitespace(CharSequence text, int i) {
+        while (i < text.length() && Character.isWhitespace(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int indexOf(CharSequence text, String str, int from) {
+        for (int i = from; i <= text.length() - str.length(); i++) {
+            boolean found = true;
+            for (int j = 0; j < str.length() && found; j++) {
+                found = text.charAt(i + j) == str.charAt(j);
+            }
+            if (found) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the end of the quoted string starting at i. Strings that are not closed run to the end of the line
+     */
+    private static int skipString(CharSequence text, int i) {
+        char quote = text.charAt(i);
+        int j = i + 1;
+        while (j < text.length()) {
+            char ch = text.charAt(j);
+            if (ch == '\\') {
+                j += 2;
+            } else if (ch == quote) {
+                return j + 1;
+            } else if (ch == '\n' && quote != '`') {
+                return j;
+            } else {
+                j++;
+            }
+        }
+        return text.length();
+    }
+
+    private static boolean isInterpolation(CharSequence text, int i) {
+        return text.charAt(i) == '#' && i + 1 < text.length() && text.charAt(i + 1) == '{' &&
+            (i == 0 || text.charAt(i - 1) != '\\');
+    }
+
+    private static int skipInterpolation(CharSequence text, int i) {
+        int depth = 0;
+        for (int j = i + 1; j < text.length(); j++) {
+            char ch = text.charAt(j);
+            if (ch == '{') {
+                depth++;
+            } else if (ch == '}' && --depth == 0) {
+                return j + 1;
+            }
+        }
+        return text.length();
+    }
+
+    /**
+     * A slash starts a regular expression unless it follows something that can end an expression
+     */
+    private static boolean startsRegex(char last, StringBuilder out) {
+        if (last == 0) {
+            return true;
+        }
+        if (Character.isLetterOrDigit(last) || last == '_' || last == '$') {
+            int end = out.length();
+            int start = end;
+            while (start > 0 && Character.isLetter(out.charAt(start - 1))) {
+                start--;
+            }
+            String word = out.substring(start, end);
+            return word.equals("return") || word.equals("typeof") || word.equals("case") || word.equals("in") ||
+                word.equals("of") || word.equals("void") || word.equals("delete") || word.equals("instanceof");
+        }
+        return last != ')' && last != ']' && last != '}' && last != '"' && last != '\'' && last != '`';
+    }
+
+    private static int skipRegex(CharSequence text, int i) {
+        boolean inClass = false;
+        int j = i + 1;
+        while (j < text.length()) {
+            char ch = text.charAt(j);
+            if (ch == '\\') {
+                j += 2;
+                continue;
+            } else if (ch == '[') {
+                inClass = true;
+            } else if (ch == ']') {
+                inClass = false;
+            } else if (ch == '/' && !inClass) {
+                j++;
+                while (j < text.length() && Character.isLetter(text.charAt(j))) {
+                    j++;
+                }
+                return j;
+            } else if (ch == '\n') {
+                return j;
+            }
+            j++;
+        }
+        return Math.min(j, text.length());
+    }
+}
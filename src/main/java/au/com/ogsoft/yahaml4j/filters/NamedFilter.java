@@ -0,0 +1,20 @@
+package au.com.ogsoft.yahaml4j.filters;
+
+/**
+ * A filter that can be found with the ServiceLoader. Implementations are listed in
+ * META-INF/services/au.com.ogsoft.yahaml4j.filters.NamedFilter, and are shared by all the templates they are found
+ * for, so they need to be thread safe.
+ */
+public interface NamedFilter extends Filter {
+
+    /**
+     * Name the filter is used by in templates, without the leading colon
+     */
+    String getName();
+
+    /**
+     * Does the output of the filter only depend on its contents and indent. The output of a pure filter is
+     * remembered and reused for the same contents
+     */
+    boolean isPure();
+}
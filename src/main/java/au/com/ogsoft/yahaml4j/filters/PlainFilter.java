@@ -4,18 +4,26 @@ import au.com.ogsoft.yahaml4j.HamlGenerator;
 import au.com.ogsoft.yahaml4j.HamlRuntime;
 import au.com.ogsoft.yahaml4j.ParsePoint;
 
-import java.util.List;
-
 /**
  * Plain filter, just renders the text in the block
  */
-public class PlainFilter implements Filter {
+public class PlainFilter extends AbstractStreamingFilter implements NamedFilter {
 
     @Override
-    public void execute(List<String> contents, HamlGenerator generator, Integer indent, ParsePoint parsePoint) {
-        for (String line: contents) {
-            generator.appendTextContents(HamlRuntime.indentText(indent - 1) + line + "\n", true, parsePoint, null);
+    public void execute(FilterContents contents, HamlGenerator generator, int indent, ParsePoint parsePoint) {
+        String indentText = HamlRuntime.indentText(indent - 1);
+        for (CharSequence line: contents) {
+            generator.appendTextLine(indentText, line, true, parsePoint, null);
         }
     }
 
+    @Override
+    public String getName() {
+        return "plain";
+    }
+
+    @Override
+    public boolean isPure() {
+        return true;
+    }
 }
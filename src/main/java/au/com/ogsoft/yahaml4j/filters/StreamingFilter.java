@@ -0,0 +1,12 @@
+package au.com.ogsoft.yahaml4j.filters;
+
+import au.com.ogsoft.yahaml4j.HamlGenerator;
+import au.com.ogsoft.yahaml4j.ParsePoint;
+
+/**
+ * A filter that reads the lines of its contents as views instead of copies. The standard filters all work this way
+ */
+public interface StreamingFilter extends Filter {
+
+    void execute(FilterContents contents, HamlGenerator generator, int indent, ParsePoint parsePoint);
+}
@@ -8,18 +8,50 @@
 
 
 (function() {
-  var HamlRuntime, haml, root, _ref,
+  var HamlRuntime, SiteError, haml, root, _ref,
     __hasProp = {}.hasOwnProperty,
     __extends = function(child, parent) { for (var key in parent) { if (__hasProp.call(parent, key)) child[key] = parent[key]; } function ctor() { this.constructor = child; } ctor.prototype = parent.prototype; child.prototype = new ctor(); child.__super__ = parent.prototype; return child; };
 
   root = this;
 
+  /*
+    Error raised by the runtime for a template generated in production mode, to be reported by the template
+  */
+
+
+  SiteError = function(message) {
+    this.message = message;
+  };
+
   /*
     Haml runtime functions. These are used both by the compiler and the generated template functions
   */
 
 
   HamlRuntime = {
+    /*
+      Looks up a variable read by a template, from the context and then the globals, the same as a with block
+      around the template would. A variable in neither is a ReferenceError, which is passed to the error handler
+      with the location the template reads it at if there is one. A handler of false leaves a missing variable
+      undefined, for names the template checks with typeof
+    */
+
+    variable: function(context, name, handleError, lineNumber, characterNumber, currentLine) {
+      var error;
+
+      if ((context != null) && name in Object(context)) {
+        return context[name];
+      } else if (name in root) {
+        return root[name];
+      } else if (handleError === false) {
+        return void 0;
+      }
+      error = new ReferenceError('"' + name + '" is not defined');
+      if (handleError == null) {
+        throw error;
+      }
+      handleError(this.templateError(lineNumber, characterNumber, currentLine, "Error evaluating expression - " + error));
+    },
     /*
       Taken from underscore.string.js escapeHTML, and replace the apos entity with character 39 so that it renders
       correctly in IE7
@@ -53,12 +85,35 @@
       return out;
     },
     /*
-      Generates a error message including the current line in the source where the error occurred
+      Works out the error message for an error raised in a template generated in production mode. The sites are the
+      line and character of each expression, indexed by the location register of the template, and the source lines
+      are looked up by line number. Errors raised outside of an expression are passed on as they are
+    */
+
+    siteError: function(sites, currentSite, e, sourceLine) {
+      var site;
+
+      site = sites[currentSite];
+      if (site == null) {
+        throw e;
+      }
+      if (e instanceof SiteError) {
+        return this.templateError(site[0], site[1], sourceLine, e.message);
+      } else {
+        return this.templateError(site[0], site[1], sourceLine, "Error evaluating expression - " + e);
+      }
+    },
+    /*
+      Generates a error message including the current line in the source where the error occurred. The current line
+      can also be a function that looks up the source line by its number
     */
 
     templateError: function(lineNumber, characterNumber, currentLine, error) {
       var i, message;
 
+      if (typeof currentLine === 'function') {
+        currentLine = currentLine(lineNumber);
+      }
       message = error + " at line " + lineNumber + " and character " + characterNumber + ":\n" + currentLine + '\n';
       i = 0;
       while (i < characterNumber - 1) {
@@ -111,6 +166,9 @@
           }
         } catch (_error) {
           e = _error;
+          if (lineNumber == null) {
+            throw new SiteError("Error evaluating object reference - " + e);
+          }
           handleError(haml.HamlRuntime.templateError(lineNumber, characterNumber, currentLine, "Error evaluating object reference - " + e));
         }
       }
@@ -127,6 +185,9 @@
           }
         } catch (_error) {
           ex = _error;
+          if (lineNumber == null) {
+            throw new SiteError("Error evaluating attribute hash - " + ex);
+          }
           handleError(haml.HamlRuntime.templateError(lineNumber, characterNumber, currentLine, "Error evaluating attribute hash - " + ex));
         }
       }
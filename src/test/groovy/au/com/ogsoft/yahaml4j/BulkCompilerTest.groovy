@@ -0,0 +1,76 @@
+package au.com.ogsoft.yahaml4j
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+import java.util.concurrent.ForkJoinPool
+
+public class BulkCompilerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder()
+
+    ForkJoinPool pool
+    BulkCompiler compiler
+
+    @Before
+    public void setup() {
+        pool = new ForkJoinPool(4)
+        def haml = new Haml()
+        haml.setupStandardFilters()
+        compiler = new BulkCompiler(haml.filters, null, pool)
+    }
+
+    @After
+    public void cleanup() {
+        pool.shutdown()
+    }
+
+    private static String compile(String name, String source) {
+        def haml = new Haml()
+        haml.setupStandardFilters()
+        haml.compileHaml(name, source, null)
+    }
+
+    @Test
+    public void "compiles each source the same as compiling it on its own"() {
+        def sources = new LinkedHashMap<String, String>()
+        (1..20).each { sources["template$it".toString()] = "%div.row\n  %p= value$it\n  :plain\n    text $it\n".toString() }
+        def result = compiler.compile(sources)
+        assert !result.hasErrors()
+        assert result.results*.name == sources.keySet() as List
+        assert result.compiled == sources.collectEntries { name, source -> [name, compile(name, source)] }
+        assert result.compileTime > 0
+        assert result.elapsedTime > 0
+    }
+
+    @Test
+    public void "templates that fail to compile are reported with the others"() {
+        def result = compiler.compile([good: "%p ok", bad: "%p(a='b' c)", unknown: ":unknown\n  text"])
+        assert result.hasErrors()
+        assert result.compiled.keySet() == ['good'] as Set
+        assert result.errors.keySet() == ['bad', 'unknown'] as Set
+        assert result.errors.unknown.message.contains('Filter "unknown" not registered')
+    }
+
+    @Test
+    public void "compiles all the templates in a directory"() {
+        folder.newFolder('users')
+        folder.newFile('index.haml').text = '%h1 Index'
+        folder.newFile('users/show.haml').text = '%p= user.name'
+        folder.newFile('notes.txt').text = 'not a template'
+        def result = compiler.compile(folder.root.toPath())
+        assert result.results*.name == ['index.haml', 'users/show.haml']
+        assert result.compiled['index.haml'] == compile('index', '%h1 Index')
+        assert result.compiled['users/show.haml'] == compile('users_show', '%p= user.name')
+    }
+
+    @Test(expected = UnsupportedOperationException)
+    public void "the filters are shared read only"() {
+        def compiler = new BulkCompiler([:], null, pool)
+        compiler.filters.put('plain', null)
+    }
+}
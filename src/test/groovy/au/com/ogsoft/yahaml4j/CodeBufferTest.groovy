@@ -36,4 +36,23 @@ public class CodeBufferTest {
         assertThat buffer.buffer.toString(), is(">")
     }
 
+    @Test
+    public void "a streaming buffer writes the code out and only keeps the contents that have not been flushed"() {
+        def out = new StringWriter()
+        def streaming = new CodeBuffer(new JavascriptGenerator('test', new HamlOptions()), out, new StringBuilder())
+        streaming.appendToOutputBuffer('var a = 1;\n')
+        streaming.append('<p>')
+        assert out.toString() == 'var a = 1;\n'
+        assert streaming.buffer.toString() == '<p>'
+        streaming.appendLineNumber(10)
+        assert out.toString() == 'var a = 1;\n    html.push("<p>");\n10'
+        assert streaming.length() == out.toString().length()
+        assert streaming.buffer.length() == 0
+        assert streaming.lineNumberSites.isEmpty()
+    }
+
+    @Test(expected = IllegalStateException)
+    public void "the code written by a streaming buffer can not be read back"() {
+        new CodeBuffer(null, new StringWriter(), new StringBuilder()).output()
+    }
 }
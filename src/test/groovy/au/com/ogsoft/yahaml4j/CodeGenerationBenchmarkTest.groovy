@@ -0,0 +1,45 @@
+package au.com.ogsoft.yahaml4j
+
+import org.junit.Assume
+import org.junit.Before
+import org.junit.Test
+
+/**
+ * Times generating the code for templates of increasing size. Only runs with -Dyahaml4j.benchmark=true
+ */
+class CodeGenerationBenchmarkTest {
+
+    static final String BLOCK = '%div.row{id: "row-" + row.id, class: row.odd ? "odd" : "even"}\n' +
+        '  - if (row.visible) {\n' +
+        '    %span{title: row.title, data: {for: row.id}}= row.name\n' +
+        '    %p The "quick" brown fox\'s <em>jumps</em> \\ over the lazy dog\n' +
+        '  - }\n' +
+        '  - _(row.items).each(function (item, i) {\n' +
+        '    %a{href: item.url}= item.label\n' +
+        '  - })\n'
+
+    @Before
+    public void setup() {
+        Assume.assumeTrue(Boolean.getBoolean('yahaml4j.benchmark'))
+    }
+
+    private static double time(String template, int compiles) {
+        def compiler = HamlCompiler.withStandardFilters()
+        long start = System.nanoTime()
+        compiles.times { compiler.compileHaml('bench', template, null) }
+        (System.nanoTime() - start) / 1000000.0 / compiles
+    }
+
+    @Test
+    public void "generating code takes time in proportion to the size of the template"() {
+        time(BLOCK * 1000, 20)
+        def perLine = [250, 500, 1000, 2000, 4000].collect { int blocks ->
+            def template = BLOCK * blocks
+            int lines = template.count('\n')
+            double ms = time(template, Math.max(40000 / blocks as int, 5))
+            println String.format('%d lines: %.2f ms, %.3f us/line', lines, ms, ms * 1000 / lines)
+            ms / lines
+        }
+        assert perLine.max() < perLine.min() * 3
+    }
+}
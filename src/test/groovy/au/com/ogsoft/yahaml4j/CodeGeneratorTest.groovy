@@ -28,4 +28,235 @@ public class CodeGeneratorTest extends BaseHamlTest {
         runScript(haml)
     }
 
+    private String errorMessage(String code, String context = '{}') {
+        try {
+            runScript(code, context)
+            assert false, 'expected the render to fail'
+        } catch (javax.script.ScriptException e) {
+            e.message.replaceAll(/ in <eval> at line number.*/, '')
+        }
+    }
+
+    @Test
+    public void "production mode has one error handler for the whole template"() {
+        def template = '%div\n  %p{id: "p" + id}= name\n  - for (var i = 0; i < 2; i++) {\n    %span= i * 2\n  - }\n'
+        def production = haml.compileHaml('test', template, new HamlOptions(production: true))
+        def development = haml.compileHaml('test', template, null)
+        assert production.count('try {') == 1
+        assert production.count('catch (e)') == 1
+        assert production.count('templateError') == 0
+        assert production.contains('(currentSite = 2, value = (name), ')
+        assert production.contains('haml.HamlRuntime.siteError([null, [2, 5], [2, 19], [4, 10]], currentSite, e, sourceLine)')
+        assert production.length() < development.length()
+        assert runScript(production, '{id: 1, name: "n"}') == runScript(development, '{id: 1, name: "n"}')
+    }
+
+    @Test
+    public void "production mode reports errors at the same location"() {
+        def options = new HamlOptions(production: true)
+        def context = '{item: {get: function () { throw "no id"; }}}'
+        ['%div\n  %p\n    = null.toString()\n', '%p{id: missing.id}\n', '%span[item]\n'].each {
+            assert errorMessage(haml.compileHaml('test', it, options), context) ==
+                errorMessage(haml.compileHaml('test', it, null), context)
+        }
+        assert errorMessage(haml.compileHaml('test', '%p\n- null.toString()', options)).startsWith('TypeError')
+    }
+
+    @Test
+    public void "the source of each line is only put into the generated code once"() {
+        def template = '%div\n  %p{id: "p" + id}= name\n  %p{title: missing.title}= name\n'
+        def code = haml.compileHaml('test', template, null)
+        assert code.count('%p{id: \\"p\\" + id}= name') == 1
+        assert code.count('%p{title: missing.title}= name') == 1
+        assert code.contains('  function sourceLine(lineNumber) {\n    return {2: ')
+        def message = errorMessage(code, '{id: 1, name: "n", missing: null}')
+        assert message.contains('Error evaluating attribute hash - TypeError')
+        assert message.endsWith(' at line 3 and character 5:\n  %p{title: missing.title}= name\n----^')
+    }
+
+    @Test
+    public void "a template without any expressions has no table of source lines"() {
+        assert !haml.compileHaml('test', '%div\n  %p text\n', null).contains('sourceLine')
+        assert !haml.compileHaml('test', '%div\n  %p text\n', new HamlOptions(production: true)).contains('sourceLine')
+    }
+
+    /**
+     * Wraps the code of a template so the render returns the output followed by the messages it logged
+     */
+    private static String logging(String code) {
+        'function (context) { var logged = []; console = {log: function (m) { logged.push(String(m)); }}; ' +
+            'return (' + code + ')(context) + "--\\n" + logged.join("\\n"); }'
+    }
+
+    @Test
+    public void "production mode with fault tolerance on stops at the first error"() {
+        def options = new HamlOptions(production: true, tolerateFaults: true)
+        def code = haml.compileHaml('test', '%p one\n- var a = null;\n= a.toString()\n%p two\n', options)
+        assert runScript(code) == '<p>\n  one\n</p>\n'
+
+        // only the first error is logged, and the static contents added in the same statement as the value in error
+        // are dropped with it, where development mode logs every error and leaves just the values blank
+        def template = '%div\n  %p one\n  %p= a.toString()\n  %p two\n%p= b.toString()\n'
+        def first = 'Error evaluating expression - TypeError: null has no such function "toString" at line 3 and ' +
+            'character 5:\n  %p= a.toString()\n----^'
+        def second = 'Error evaluating expression - TypeError: null has no such function "toString" at line 5 and ' +
+            'character 3:\n%p= b.toString()\n--^'
+        def production = runScript(logging(haml.compileHaml('test', template, options)), '{a: null, b: null}')
+        assert production == '--\n' + first
+        def development = runScript(logging(haml.compileHaml('test', template, new HamlOptions(tolerateFaults: true))),
+            '{a: null, b: null}')
+        assert development == '<div>\n  <p>\n    one\n  </p>\n  <p>\n    \n  </p>\n  <p>\n    two\n  </p>\n</div>\n' +
+            '<p>\n  \n</p>\n--\n' + first + '\n' + second
+    }
+
+    @Test
+    public void "code lines starting blocks are found the same as with the patterns"() {
+        def generator = new JavascriptGenerator('test', new HamlOptions())
+        ['if (a) {', 'if (a) {  ', '} else {', 'x = 1', '{', ' { }', '_(rows).each(function (row) {',
+         'each(function(a, b) {', 'each(function (a ,b) {', 'each(function (a b) {', 'each(function (a,,b) {',
+         'each(function ( a) { ', 'each(function(,a) {', 'each(function () {', 'each(function (a ) {',
+         'each(myfunction (a) {', 'each(function\n(a) {', 'a\nb {', 'function (a) {}', 'function [a] {'].each {
+            assert generator.lineMatchesStartBlock(it) == it.matches(/.*\{\s*$/), it
+            assert generator.lineMatchesStartFunctionBlock(it) ==
+                it.matches(/.*function\s*\((,?\s*\w+)*\)\s*\{\s*$/), it
+        }
+        ['}', '  }', '\t} else {', ' x }', '', null].each {
+            assert JavascriptGenerator.closesCodeBlock(it) == (it != null && it ==~ /(?s)[ \t]*\}.*/), it
+        }
+    }
+
+    @Test
+    public void "code is escaped the same as escapeEcmaScript"() {
+        def text = 'it\'s "quoted" </p> \\ \b\t\n\f\r \u0001\u001f \u007f \u00e9 \u20ac \ud83d\ude00'
+        def out = new StringBuilder()
+        JavascriptGenerator.escapeCode(out, text)
+        assert out.toString() == org.apache.commons.lang3.StringEscapeUtils.escapeEcmaScript(text)
+    }
+
+    @Test
+    public void "reserved words in attribute hashes that are evaluated are quoted"() {
+        def code = haml.compileHaml('test', "%label{data: {for: 'x' /* c */}} text\n", null)
+        assert code.contains('eval("hashObject = {\\"data\\":  {\\"for\\": \'x\' /* c */} }")')
+        assert runScript(code) == '<label data-for="x">\n  text\n</label>\n'
+    }
+
+    @Test
+    public void "static contents around dynamic attributes and expressions are added in one statement"() {
+        def code = haml.compileHaml('test', '%div\n  %p{id: id} one\n  %p two\n', null)
+        assert code.count('html.push(') + code.count('html += ') == 1
+        assert runScript(code, '{id: "a"}') == '<div>\n  <p id="a">\n    one\n  </p>\n  <p>\n    two\n  </p>\n</div>\n'
+        code = haml.compileHaml('test', '%div\n  %p{id: id}= name\n  %p two\n', new HamlOptions(production: true))
+        assert code.count('html.push(') + code.count('html += ') == 1
+    }
+
+    private String compileWithArrayOutput(String template, HamlOptions options = null) {
+        def haml = new Haml()
+        haml.setupStandardFilters()
+        haml.generator = new JavascriptGenerator('test', options ?: new HamlOptions()) {
+            protected boolean useStringOutput() { false }
+        }
+        haml.compileHaml('test', template, options)
+    }
+
+    @Test
+    public void "the output is collected in a string when there is little static contents for each value"() {
+        def values = '%ul\n  - _.each(items, function (item) {\n    %li= item\n  - })\n'
+        def code = haml.compileHaml('test', values, null)
+        assert code.contains('  var html = "";') && code.contains('html += ') && code.contains('  return html;\n')
+        assert !code.contains('html.push(')
+        assert runScript(code, '{items: [1, 2]}') == runScript(compileWithArrayOutput(values), '{items: [1, 2]}')
+
+        def statics = '%div\n' + (1..5).collect { "  %p.para Some static text for paragraph $it\n" }.join('') + '  %p= name\n'
+        code = haml.compileHaml('test', statics, null)
+        assert code.contains('  var html = [];') && code.contains('html.push(') && code.contains('  return html.join("");\n')
+        assert !code.contains('html += ')
+        assert runScript(code, '{name: "n"}').endsWith('  <p>\n    n\n  </p>\n</div>\n')
+    }
+
+    @Test
+    public void "values are added to a string output as strings"() {
+        def template = '%p= a\n= b\n%p{id: a}= b\n'
+        def code = haml.compileHaml('test', template, null)
+        assert code.contains('html += ')
+        assert runScript(code, '{a: 1, b: 2}') == runScript(compileWithArrayOutput(template), '{a: 1, b: 2}')
+        def production = new HamlOptions(production: true)
+        code = haml.compileHaml('test', template, production)
+        assert code.contains('html += ')
+        assert runScript(code, '{a: 1, b: 2}') == runScript(compileWithArrayOutput(template, production), '{a: 1, b: 2}')
+    }
+
+    @Test
+    public void "a template with no code returns its contents as a constant"() {
+        haml.setupStandardFilters()
+        def template = '!!! 5\n%html\n  %body#main.page(lang="en")\n    %p Static & plain\n    :plain\n      filtered text\n'
+        def compiled = haml.compile('test', template, null)
+        assert compiled.isStatic()
+        assert compiled.code.startsWith('function test (context) {\n  return "<!DOCTYPE html>')
+        assert compiled.code.endsWith('";\n}\n')
+        assert runScript(compiled.code) == compiled.html
+        assert compiled.html.startsWith('<!DOCTYPE html>\n<html>\n  <body id="main" lang="en" class="page">\n')
+        assert compiled.html.contains('Static & plain') && compiled.html.contains('filtered text')
+        assert HamlCompiler.withStandardFilters().compile('test', template, null).html == compiled.html
+        assert haml.compileHaml('test', template, new HamlOptions(production: true)) == compiled.code
+        assert haml.compile('test', '', null).html == ''
+    }
+
+    @Test
+    public void "a template with code or interpolation is not static"() {
+        haml.setupStandardFilters()
+        assert !haml.compile('test', '%p= name\n', null).isStatic()
+        assert !haml.compile('test', '%p{id: name}\n', null).isStatic()
+        assert !haml.compile('test', '- var a = 1;\n%p\n', null).isStatic()
+        assert haml.compile('test', ':javascript\n  var a = 1;\n', null).isStatic()
+    }
+
+    @Test
+    public void "interpolations are split out of the text when the template is compiled"() {
+        def code = haml.compileHaml('test', '%p Hello #{name}, you have #{count + 1} messages\n', null)
+        assert code.contains('html += "<p>\\n  Hello ";') && code.contains('html += ", you have ";')
+        assert code.contains('var value = (name);') && code.contains('var value = (count + 1);')
+        assert runScript(code, '{name: "Bob", count: 2}') == '<p>\n  Hello Bob, you have 3 messages\n</p>\n'
+        def production = haml.compileHaml('test', '%p Hello #{name}, you have #{count + 1} messages\n',
+            new HamlOptions(production: true))
+        assert runScript(production, '{name: "Bob", count: 2}') == runScript(code, '{name: "Bob", count: 2}')
+    }
+
+    @Test
+    public void "interpolations in text are escaped the same as embedded code"() {
+        def context = '{name: "<b>"}'
+        assert runScript(haml.compileHaml('test', '%p Hi #{name}\n', null), context) == '<p>\n  Hi &lt;b&gt;\n</p>\n'
+        assert runScript(haml.compileHaml('test', '%p\n  <i>#{name}</i>\n', null), context) ==
+            '<p>\n  <i>&lt;b&gt;</i>\n</p>\n'
+        assert runScript(haml.compileHaml('test', '%p Hi #{name}\n', new HamlOptions(production: true)), context) ==
+            '<p>\n  Hi &lt;b&gt;\n</p>\n'
+    }
+
+    @Test
+    public void "interpolations run to the brace that closes them"() {
+        def context = '{name: "Bob", x: "a"}'
+        assert runScript(haml.compileHaml('test', '%p a #{"}"} b\n', null), context) == '<p>\n  a } b\n</p>\n'
+        assert runScript(haml.compileHaml('test', '%p #{x + \'}\'} #{ ({a: name}).a }!\n', null), context) ==
+            '<p>\n  a} Bob!\n</p>\n'
+        assert runScript(haml.compileHaml('test', '%p #{"}" + name\n', null), context) == '<p>\n  #{"}" + name\n</p>\n'
+        assert haml.compile('test', '%p #{ ({a: name}).a }\n', null).variables.names as List == ['name']
+    }
+
+    @Test
+    public void "escaped and unclosed interpolations are left as text"() {
+        def context = '{name: "Bob"}'
+        assert runScript(haml.compileHaml('test', '%p a \\#{name} and #{name}\n', null), context) ==
+            '<p>\n  a #{name} and Bob\n</p>\n'
+        assert runScript(haml.compileHaml('test', '%p a\\\\#{name}\n', null), context) == '<p>\n  a\\\\Bob\n</p>\n'
+        assert runScript(haml.compileHaml('test', '%p #{name\n', null), context) == '<p>\n  #{name\n</p>\n'
+    }
+
+    @Test
+    public void "interpolations in filters are escaped the same as embedded code"() {
+        haml.setupStandardFilters()
+        def context = '{name: "<b>"}'
+        assert runScript(haml.compileHaml('test', ':plain\n  one #{name}\n  two \\#{name}\n', null), context) ==
+            '  one <b>\n  two #{name}\n'
+        assert runScript(haml.compileHaml('test', ':escaped\n  <i>#{name}</i>\n', null), context).trim() ==
+            '&lt;i&gt;&lt;b&gt;&lt;/i&gt;'
+    }
 }
@@ -0,0 +1,57 @@
+package au.com.ogsoft.yahaml4j
+
+import au.com.ogsoft.yahaml4j.ast.CodeNode
+import au.com.ogsoft.yahaml4j.ast.CommentNode
+import au.com.ogsoft.yahaml4j.ast.ElementNode
+import org.junit.Test
+
+class ElementStackTest {
+
+    private static ElementNode element(String tag, boolean innerWhitespace, boolean outerWhitespace) {
+        new ElementNode(0, null, tag, '', [], '', [:], [:], false, innerWhitespace, outerWhitespace, true)
+    }
+
+    @Test
+    public void "entries are indexed by indent and closing them leaves the size alone"() {
+        def stack = new ElementStack()
+        def div = element('div', true, true)
+        def comment = new CommentNode(2, null, '', false, '\n', false)
+        stack.openElement(0, div)
+        stack.openHtmlComment(2, comment)
+        assert stack.size() == 3
+        assert stack.isOpen(0) && !stack.isOpen(1) && stack.isOpen(2) && !stack.isOpen(3)
+        assert stack.getNode(0).is(div)
+        assert stack.isHtmlComment(2) && stack.getNode(2).is(comment)
+        assert stack.getNode(1) == null
+
+        stack.close(2)
+        assert !stack.isOpen(2)
+        assert stack.getNode(2) == null
+        assert stack.size() == 3
+
+        stack.clear()
+        assert stack.isEmpty()
+        assert !stack.isOpen(0)
+    }
+
+    @Test
+    public void "elements keep their whitespace options"() {
+        def stack = new ElementStack()
+        stack.openElement(0, element('p', false, true))
+        stack.openElement(1, element('span', true, false))
+        stack.openBlock(2, new CodeNode(2, null, ' list.each(function (item) {', '\n', false, true))
+        assert !stack.hasInnerWhitespace(0) && stack.hasOuterWhitespace(0)
+        assert stack.hasInnerWhitespace(1) && !stack.hasOuterWhitespace(1)
+        assert stack.isFunctionBlock(2) && !stack.isBlock(2)
+        assert stack.hasInnerWhitespace(2) && stack.hasOuterWhitespace(2)
+    }
+
+    @Test
+    public void "the stack grows for deeply indented elements"() {
+        def stack = new ElementStack()
+        stack.openBlock(40, new CodeNode(40, null, ' if (a) {', '\n', true, false))
+        assert stack.size() == 41
+        assert stack.isBlock(40)
+        assert !stack.isOpen(39)
+    }
+}
@@ -134,6 +134,39 @@ public class ErrorHandlingTest extends BaseHamlTest {
                 '</div>\n')
     }
 
+    @Test
+    public void "with fault tolerance on the errors are returned with the code"() {
+        def options = new HamlOptions(tolerateFaults: true)
+        def source = ".value{this is not a hash}><\n.p/ test\n:unknown\n  text\n%p(a='b' c)"
+        def compiled = haml.compile("error template", source, options)
+        assert compiled.code == haml.compileHaml("error template", source, options)
+        def errors = compiled.diagnostics.errors
+        assert errors*.lineNumber == [1, 2, 3, 5]
+        assert errors*.message == ['Expected a colon (:) after a Hash key', 'A self-closing tag can not have any contents',
+            'Filter "unknown" not registered. Filter functions need to be added to the "filters" map.',
+            'Expected equals "=" after attribute name']
+        assert errors[1].characterNumber == 3
+        assert errors[1].currentLine == '.p/ test'
+        assert errors[1].toString() == HamlRuntime.templateError(2, 3, '.p/ test', 'A self-closing tag can not have any contents')
+        assert !compiled.diagnostics.truncated
+    }
+
+    @Test
+    public void "only the first max errors are kept"() {
+        def options = new HamlOptions(tolerateFaults: true, maxErrors: 2)
+        def compiled = haml.compile("error template", (1..5).collect { ".p/ test $it" }.join('\n'), options)
+        assert compiled.diagnostics.errors*.lineNumber == [1, 2]
+        assert compiled.diagnostics.errorCount == 5
+        assert compiled.diagnostics.truncated
+    }
+
+    @Test
+    public void "a template without errors has no diagnostics"() {
+        def compiled = haml.compile("template", "%p test", new HamlOptions(tolerateFaults: true))
+        assert !compiled.diagnostics.hasErrors()
+        assert compiled.diagnostics.errors.isEmpty()
+    }
+
     /*
 
   describe 'with an unknown filter', ->
@@ -0,0 +1,118 @@
+package au.com.ogsoft.yahaml4j
+
+import au.com.ogsoft.yahaml4j.filters.*
+import org.junit.Before
+import org.junit.Test
+
+class FilterCacheTest {
+
+    static class CountingFilter implements NamedFilter {
+        boolean pure = true
+        boolean generateCode = false
+        int runs
+
+        void execute(List<String> contents, HamlGenerator generator, Integer indent, ParsePoint parsePoint) {
+            runs++
+            if (generateCode) {
+                generator.appendCodeLine('count++;', '\n')
+            }
+            contents.each { generator.outputBuffer.append(HamlRuntime.indentText(indent) + it.trim().toUpperCase() + '\n') }
+        }
+
+        String getName() { 'counted' }
+
+        boolean isPure() { pure }
+    }
+
+    Haml haml
+    FilterCache cache
+    CountingFilter filter
+
+    @Before
+    public void setup() {
+        cache = new FilterCache(2)
+        filter = new CountingFilter()
+        haml = new Haml()
+        haml.setupStandardFilters()
+        haml.filters.counted = filter
+    }
+
+    private String compile(String source, HamlOptions options = new HamlOptions(),
+                           JavascriptGenerator generator = new JavascriptGenerator('test', options)) {
+        generator.filterCache = cache
+        haml.generator = generator
+        haml.compileHaml('test', source, options)
+    }
+
+    @Test
+    public void "the standard filters are found with the service loader"() {
+        def filters = FilterLoader.load(getClass().classLoader)
+        assert filters.keySet() == ['plain', 'javascript', 'css', 'cdata', 'preserve', 'escaped'] as Set
+        assert filters.values().every { it instanceof NamedFilter && it.pure }
+        assert FilterLoader.defaultFilters().keySet() == filters.keySet()
+        assert haml.filters.css.is(FilterLoader.defaultFilters().css)
+    }
+
+    @Test
+    public void "a pure filter only runs once for the same contents"() {
+        def source = '%div\n  :counted\n    some text\n    more text\n'
+        def first = compile(source)
+        assert compile(source) == first
+        assert compile('%p before\n' + source).contains('SOME TEXT')
+        assert filter.runs == 1
+        assert cache.hits == 2
+
+        compile(':counted\n  some text\n  more text\n')
+        compile('%div\n  :counted\n    other text\n')
+        assert filter.runs == 3
+
+        def uncached = new Haml()
+        uncached.filters.counted = new CountingFilter(pure: false)
+        assert uncached.compileHaml('test', source, null) == first
+    }
+
+    @Test
+    public void "filters that are not pure or generate code run every time"() {
+        filter.pure = false
+        compile(':counted\n  text\n')
+        compile(':counted\n  text\n')
+        assert filter.runs == 2
+
+        filter.pure = true
+        filter.generateCode = true
+        def first = compile(':counted\n  text\n')
+        assert compile(':counted\n  text\n') == first
+        assert first.contains('count++;')
+        assert filter.runs == 4
+        assert cache.size() == 0
+    }
+
+    @Test
+    public void "outputs are kept separately for each generator and set of options"() {
+        cache = new FilterCache(10)
+        def source = ':counted\n  text\n'
+        compile(source, new HamlOptions())
+        compile(source, new HamlOptions(production: true, tolerateFaults: true))
+        assert filter.runs == 2
+        compile(source, new HamlOptions(production: true, tolerateFaults: true))
+        compile(source, new HamlOptions())
+        assert filter.runs == 2
+
+        compile(source, new HamlOptions(minifyCss: true))
+        compile(source, new HamlOptions(minifyJavascript: true))
+        def options = new HamlOptions()
+        compile(source, options, new JavascriptGenerator('test', options) {})
+        assert filter.runs == 5
+        assert cache.size() == 5
+    }
+
+    @Test
+    public void "only the most recently used outputs are kept"() {
+        (1..3).each { compile(":counted\n  text $it\n") }
+        assert cache.size() == 2
+        compile(":counted\n  text 1\n")
+        assert filter.runs == 4
+        compile(":counted\n  text 3\n")
+        assert filter.runs == 4
+    }
+}
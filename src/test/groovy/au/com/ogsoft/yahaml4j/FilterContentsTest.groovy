@@ -0,0 +1,57 @@
+package au.com.ogsoft.yahaml4j
+
+import au.com.ogsoft.yahaml4j.filters.*
+import org.junit.Test
+
+class FilterContentsTest {
+
+    @Test
+    public void "lines are views into the block"() {
+        def contents = new FilterContents.Builder().add('    one', 2).add('    two', 2).add('  ', 2).build()
+        assert contents.size() == 3
+        assert contents.line(0) instanceof java.nio.CharBuffer
+        assert contents*.toString() == ['  one', '  two', '']
+        assert contents.asList() == ['  one', '  two', '']
+        assert FilterContents.of(['  one', '  two', '']).asList() == contents.asList()
+    }
+
+    @Test(expected = IndexOutOfBoundsException)
+    public void "reading past the last line fails"() {
+        FilterContents.of(['one']).line(1)
+    }
+
+    @Test
+    public void "streaming filters get views and plain filters get strings"() {
+        def seen = []
+        def streaming = new AbstractStreamingFilter() {
+            void execute(FilterContents contents, HamlGenerator generator, int indent, ParsePoint parsePoint) {
+                contents.each { seen << (it instanceof java.nio.CharBuffer ? 'view' : it.class) }
+            }
+        }
+        def plain = { List<String> contents, HamlGenerator generator, Integer indent, ParsePoint parsePoint ->
+            contents.each { seen << (it instanceof String ? 'string' : it.class) }
+        } as Filter
+
+        def haml = new Haml()
+        haml.filters.streaming = streaming
+        haml.filters.plain = plain
+        haml.compileHaml('test', ':streaming\n  one\n:plain\n  two\n', null)
+        assert seen == ['view', 'string']
+
+        seen.clear()
+        streaming.execute(['one'], new JavascriptGenerator('test', new HamlOptions()), 0, null)
+        assert seen == ['view']
+    }
+
+    @Test
+    public void "the standard filters generate the same contents from views"() {
+        def haml = new Haml()
+        haml.setupStandardFilters()
+        def source = '%div\n  :preserve\n    one\n    two\n  :escaped\n    <b>\n  :css\n    p { }\n  :cdata\n    x\n'
+        def js = haml.compileHaml('test', source, null)
+        assert js.contains('one&#x000A; two\\n')
+        assert js.contains('&lt;b&gt;')
+        assert js.contains('<style type=\\"text\\/css\\">\\n    \\/*<![CDATA[*\\/\\n      p { }\\n')
+        assert js.contains('<![CDATA[\\n    x\\n  ]]>')
+    }
+}
@@ -0,0 +1,130 @@
+package au.com.ogsoft.yahaml4j
+
+import au.com.ogsoft.yahaml4j.filters.Filter
+import org.junit.Test
+
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+class HamlCompilerTest {
+
+    HamlCompiler compiler = HamlCompiler.withStandardFilters()
+
+    private static String template(int i) {
+        "%div.row{id: 'row$i'}\n  %h1 Title $i\n  - for (var i = 0; i < $i; i++) {\n    %p= i\n" +
+            "  :plain\n    plain $i\n  %br\n%p\n  text $i\n  %span> trimmed\n"
+    }
+
+    private static String sequential(String name, String source, HamlOptions options = null) {
+        def haml = new Haml()
+        haml.setupStandardFilters()
+        haml.compileHaml(name, source, options)
+    }
+
+    @Test
+    public void "compiles the same code as a new Haml instance each time"() {
+        (1..3).each {
+            assert compiler.compileHaml("test$it", template(it), null) == sequential("test$it", template(it))
+        }
+        def options = new HamlOptions(tolerateFaults: true)
+        assert compiler.compileHaml('faults', template(1), options) == sequential('faults', template(1), options)
+    }
+
+    @Test
+    public void "a Haml instance uses the name of each compile"() {
+        def haml = new Haml()
+        haml.compileHaml('first', '%p', null)
+        def code = haml.compileHaml('second', '%br', null)
+        assert code.startsWith('function second (context)')
+        assert !code.contains('<p>')
+    }
+
+    @Test
+    public void "a parsed template can be compiled on several threads"() {
+        def parsed = compiler.parseHaml('test', template(5), null)
+        def executor = Executors.newFixedThreadPool(4)
+        try {
+            Callable<String> compile = { compiler.compileHaml(parsed, null) }
+            def results = executor.invokeAll([compile] * 20)
+            assert results*.get().unique() == [sequential('test', template(5))]
+        } finally {
+            executor.shutdown()
+        }
+    }
+
+    @Test
+    public void "one compiler can be shared by many threads at once"() {
+        def expected = (0..<50).collect { sequential("template$it", template(it)) }
+        def threads = 8
+        def executor = Executors.newFixedThreadPool(threads)
+        try {
+            List<Callable<List>> tasks = (0..<threads).collect { int thread ->
+                Callable<List> task = {
+                    def failures = []
+                    200.times { int n ->
+                        int i = (n * 7 + thread * 13) % 50
+                        if (compiler.compileHaml("template$i", template(i), null) != expected[i]) {
+                            failures << i
+                        }
+                    }
+                    failures
+                }
+            }
+            assert executor.invokeAll(tasks)*.get().flatten().isEmpty()
+        } finally {
+            executor.shutdown()
+        }
+    }
+
+    @Test
+    public void "a filter can compile another template with the same compiler"() {
+        def filters = Haml.standardFilters()
+        HamlCompiler nested
+        filters.put('nested', { List<String> input, HamlGenerator generator, Integer indent, ParsePoint parsePoint ->
+            def inner = nested.compileHaml('inner', input.join('\n').trim(), null)
+            generator.outputBuffer.appendToOutputBuffer('/* ' + inner.length() + ' */')
+        } as Filter)
+        nested = new HamlCompiler(filters)
+        def code = nested.compileHaml('outer', '%p before\n:nested\n  %span inner\n%p after', null)
+        assert code.startsWith('function outer (context)')
+        assert code.contains('before') && code.contains('after')
+        assert code.contains('/* ' + nested.compileHaml('inner', '%span inner', null).length() + ' */')
+    }
+
+    @Test
+    public void "writes the same code to an appendable as it returns"() {
+        def out = new StringWriter()
+        compiler.compileHaml('test', template(3), null, out)
+        assert out.toString() == compiler.compileHaml('test', template(3), null)
+
+        def bundle = new StringBuilder('// bundle\n')
+        compiler.compileHaml('test', new StringReader(template(4)), null, bundle)
+        assert bundle.toString() == '// bundle\n' + sequential('test', template(4))
+
+        def haml = new Haml()
+        haml.setupStandardFilters()
+        out = new StringWriter()
+        haml.compileHaml('test', template(5), null, out)
+        assert out.toString() == sequential('test', template(5))
+    }
+
+    @Test
+    public void "errors writing the code are raised"() {
+        def failing = new Writer() {
+            void write(char[] buf, int off, int len) { throw new IOException('disk full') }
+            void flush() {}
+            void close() {}
+        }
+        try {
+            compiler.compileHaml('test', template(1), null, failing)
+            assert false, 'expected the write to fail'
+        } catch (RuntimeException e) {
+            assert e.cause instanceof IOException
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException)
+    public void "the filters can not be changed"() {
+        compiler.filters.put('plain', null)
+    }
+}
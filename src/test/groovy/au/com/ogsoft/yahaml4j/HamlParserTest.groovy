@@ -0,0 +1,83 @@
+package au.com.ogsoft.yahaml4j
+
+import au.com.ogsoft.yahaml4j.ast.*
+import org.junit.Before
+import org.junit.Test
+
+class HamlParserTest {
+
+    Haml haml
+
+    @Before
+    public void setup() {
+        haml = new Haml()
+        haml.setupStandardFilters()
+    }
+
+    @Test
+    public void "nested lines become the children of the element they are in"() {
+        def template = haml.parseHaml('test', '!!! 5\n%div.row\n  %h1#title Title\n  %p\n    = value\n%br', null)
+        assert template.children*.class == [DoctypeNode, ElementNode, ElementNode]
+
+        ElementNode div = template.children[1]
+        assert div.tag == 'div' && div.classes == ['row']
+        assert div.children*.class == [ElementNode, ElementNode]
+
+        ElementNode h1 = div.children[0]
+        assert h1.id == 'title'
+        assert h1.children*.class == [TextNode]
+        assert h1.children[0].text == '    Title'
+
+        EmbeddedCodeNode value = div.children[1].children[0]
+        assert value.expression == ' value'
+        assert value.escapeHtml
+
+        ElementNode br = template.children[2]
+        assert br.selfClosing
+        assert br.children.isEmpty()
+    }
+
+    @Test
+    public void "nodes know where they came from in the source"() {
+        def template = haml.parseHaml('test', '%div\n  %p{id: a} text\n  - if (a) {\n    &= b', null)
+        ElementNode p = template.children[0].children[0]
+        assert p.parsePoint.lineNumber == 2
+        assert p.parsePoint.getCurrentLine() == '  %p{id: a} text'
+
+        CodeNode code = template.children[0].children[1]
+        assert code.parsePoint.lineNumber == 3
+        assert code.parsePoint.characterNumber == 3
+        assert code.children[0].parsePoint.lineNumber == 4
+    }
+
+    @Test
+    public void "code blocks remember the code line that closed them"() {
+        def template = haml.parseHaml('test', '- if (a) {\n  %p\n- } else {\n  %br\n', null)
+        assert template.children*.class == [CodeNode, CodeNode]
+        assert template.children[0].block
+        assert template.children[0].closingCode == ' } else {'
+        assert template.children[1].closingCode == null
+    }
+
+    @Test
+    public void "filters and comments keep their contents"() {
+        def template = haml.parseHaml('test', ':plain\n  one\n  two\n-# silent\n/ comment\n  %p\n', null)
+        def nodes = template.children.findAll { !(it instanceof TextNode) }
+        assert nodes*.class == [FilterNode, CommentNode]
+        CommentNode comment = nodes[1]
+        assert comment.contents == ' comment' && comment.hasContents && !comment.conditional
+        assert comment.children*.class == [ElementNode]
+        FilterNode filter = nodes[0]
+        assert filter.name == 'plain'
+        assert filter.contents.asList() == ['  one', '  two']
+    }
+
+    @Test
+    public void "a parsed template can be compiled more than once"() {
+        def source = '%div.row\n  %h1 Title\n  - for (var i = 0; i < 2; i++) {\n    %p= i\n'
+        def template = haml.parseHaml('test', source, null)
+        def expected = new Haml().compileHaml('test', source, null)
+        assert haml.compileHaml(template, null) == expected
+        assert haml.compileHaml(template, null) == expected
+    }
+}
@@ -112,7 +112,7 @@ public class HamlTest extends BaseHamlTest {
                     "        %h5", null)
             fail("Should have thrown an exception")
         } catch (RuntimeException e) {
-            assertThat e.message, containsString("at line 3 and character 19:\n    %h3{id: \"test\", class: \"test-class\"\n------------------^")
+            assertThat e.message, containsString("at line 3 and character 26:\n    %h3{id: \"test\", class: \"test-class\"\n-------------------------^")
         }
     }
 
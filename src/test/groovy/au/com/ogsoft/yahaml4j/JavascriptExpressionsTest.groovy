@@ -0,0 +1,184 @@
+package au.com.ogsoft.yahaml4j
+
+import org.junit.Before
+import org.junit.Test
+
+class JavascriptExpressionsTest extends BaseHamlTest {
+
+    Haml haml
+
+    @Before
+    public void setup() {
+        haml = new Haml()
+    }
+
+    @Test
+    public void "accepts complete expressions"() {
+        ['errorTitle', 'label + (1 + 2 * 3)', '["hi", "there"]', 'a.b[c](d, e).f', 'x ? "yes" : \'no\'',
+         'typeof x === "undefined"', '!done && count++ > 2', '-1.5e+3', 'new Date().getTime()', '/a\\/b[/]/g.test(s)',
+         'total / 2', '_.map(items, function (item) {\n  var name = item.name;\n  return name;\n})',
+         '"a;b" + \'//c\'', '{a: 1}.a'.substring(7), 'x = a ? {b: c ? 1 : 2} : [d ? e : f]',
+         'f({a: 1, b: x ? y : z})', 'a - -b', 'a >>>= 2', '0xFF + .5 + 1. + 2E-3'].each {
+            assert JavascriptExpressions.isExpression(it), it
+        }
+    }
+
+    @Test
+    public void "rejects statements, comments and incomplete code"() {
+        ['', ' ', 'a b', 'a; b', 'var a = 1', 'if (a) b', '{a: 1}', 'a +', '* a', '(a', 'a)', '[a}', '"open',
+         'a // comment', 'a /* comment */', 'function f() {}', 'a\nb', 'return a', '/open', 'a @ b'].each {
+            assert !JavascriptExpressions.isExpression(it), it
+        }
+    }
+
+    @Test
+    public void "rejects operators that are out of place"() {
+        ['a ? b', 'a : b', 'a ! b', 'a..b', 'a +* b', 'a ? b : c : d', '(a ? b) : c', 'f(a: 1)', '[a ? b]', 'a.1',
+         'a.', 'a ++b', 'a = = b', 'a ? {b: 1}', 'a <> b'].each {
+            assert !JavascriptExpressions.isExpression(it), it
+        }
+    }
+
+    @Test
+    public void "accepts statements in the body of a function"() {
+        ['_.map(items, function (item) {\n  if (item.on) {\n    return item.name\n  } else {\n    return ""\n  }\n})',
+         'f(function g(a, b) {\n  function h() { return a }\n  var c = h(), d\n  return c + b + d;\n})',
+         'f(function () { for (var k in o) { g(k) } while (a) a--; throw e })', 'f(function () {})',
+         'f(function () { if (a) { return } })', 'f({a: 1, "b": 2, 3: function () {\n  a\n  b\n}})'].each {
+            assert JavascriptExpressions.isExpression(it), it
+        }
+    }
+
+    @Test
+    public void "rejects object literals and statements that are out of place"() {
+        ['f({a: 1\n b: 2})', 'x = {a: 1\n b}', 'f({a})', 'f({[a]: 1})', 'f({get a() { return 1 }})', 'f({a: })',
+         'f({a: 1}\n{b: 2})', 'f(a) {}', 'a[]', 'f(a,)', '()', 'f(function () { a: 1 })',
+         'f(function () { a\n++ })', 'f(function () { throw\n e })', 'f(function () { break })',
+         'f(function () { a; else b })', 'f(function (a b) {})', 'f(function (1) {})', 'f(function if() {})',
+         'f(function () { var = 1 })', 'f(function () { var a = 1, 2 })', 'f(function () { if a })',
+         'f(function () { function () {} })', 'f(function () { a + })', 'f(function () x)', 'f(function a)',
+         'f(function () { return var })', 'f(function () { while (a; b) c })', 'f(function () {} {})'].each {
+            assert !JavascriptExpressions.isExpression(it), it
+        }
+    }
+
+    @Test
+    public void "rejects syntax newer than ES5"() {
+        ['a ?? b', 'a?.b', 'a ** 2', 'a **= 2', 'a ??= b', 'a &&= b', 'a ||= b', 'x => x', '(a, b) => a', 'f(...a)',
+         '[...a]', '`text`', '0b1', '0o7', '1_000', 'f(function () { let a = 1; return a; })',
+         'new class {}'].each {
+            assert !JavascriptExpressions.isExpression(it), it
+        }
+    }
+
+    @Test
+    public void "syntax newer than ES5 fails when the expression is rendered, not when the template is compiled"() {
+        ['%p= a ?? b', '%p= a ** 2', '%p{title: a?.b}'].each { template ->
+            def code = haml.compileHaml('test', template + '\n%p= ok', new HamlOptions(tolerateFaults: true))
+            assert runScript(code, '{a: 1, b: 2, ok: "fine"}').contains('fine'), template
+            try {
+                runScript(haml.compileHaml('test', template, null), '{a: 1, b: 2}')
+                assert false, 'expected the render to fail'
+            } catch (javax.script.ScriptException e) {
+                assert e.message.contains('SyntaxError'), e.message
+            }
+        }
+    }
+
+    @Test
+    public void "broken operators fail when the expression is rendered, not when the template is compiled"() {
+        def code = haml.compileHaml('test', '%p= a ? b\n%p{title: a ? b}\n%p= ok', new HamlOptions(tolerateFaults: true))
+        assert code.contains('eval("a ? b")')
+        assert runScript(code, '{a: 1, b: 2, ok: "fine"}').contains('fine')
+
+        ['%p= a ? b', '%p{title: a ? b}'].each { template ->
+            try {
+                runScript(haml.compileHaml('test', template, null), '{a: 1, b: 2}')
+                assert false, 'expected the render to fail'
+            } catch (javax.script.ScriptException e) {
+                assert e.message.contains('SyntaxError'), e.message
+            }
+        }
+    }
+
+    @Test
+    public void "expressions are put into the function without eval"() {
+        def code = haml.compileHaml('test', '%p{class: [a, b]}= label + 1\n%span[item]\n= "<b>" + text', null)
+        assert !code.contains('eval(')
+        assert code.contains('var value = (label + 1);')
+        assert code.contains('function () { return {"class":  [a, b] }; }')
+        assert code.contains('function () { return (item); }')
+        assert runScript(code, '{a: "x", b: "y", label: "l", text: "t", item: {id: 3}}') ==
+            '<p class="x y">\n  l1\n</p>\n<span id="3">\n</span>\n&lt;b&gt;t\n'
+    }
+
+    @Test
+    public void "code that is not an expression is still evaluated when rendered"() {
+        def options = new HamlOptions(tolerateFaults: true)
+        def code = haml.compileHaml('test', '%p= a b\n%p{a: b c}= ok', options)
+        assert code.contains('eval("a b")')
+        assert code.contains('return eval("hashObject = {')
+        assert runScript(code, '{ok: "fine"}').contains('fine')
+
+        try {
+            runScript(haml.compileHaml('test', '%p= a b', null), '{a: 1, b: 2}')
+            assert false, 'expected the render to fail'
+        } catch (javax.script.ScriptException e) {
+            assert e.message.contains('Error evaluating expression - SyntaxError')
+        }
+    }
+
+    @Test
+    public void "recognises literals"() {
+        ['"text"', "'text'", '""', ' "a b" ', 'true', 'false', 'null', '0', '12', '-3'].each {
+            assert JavascriptExpressions.isLiteral(it), it
+        }
+        ['text', '"a\\"b"', '"a" + b', '\'a"', '"a\'', '"', '01', '-0', '1.5', '1e3', '1234567890', '-', '[1]',
+         'undefined', '{}'].each {
+            assert !JavascriptExpressions.isLiteral(it), it
+        }
+        assert JavascriptExpressions.literalValue(' "a b" ') == 'a b'
+        assert JavascriptExpressions.literalValue("'c'") == 'c'
+        assert JavascriptExpressions.literalValue('true') == 'true'
+        assert JavascriptExpressions.literalValue('-3') == '-3'
+        assert JavascriptExpressions.literalValue('false') == null
+        assert JavascriptExpressions.literalValue('null') == null
+    }
+
+    private static String sortAttributes(String html) {
+        html.replaceAll(/<(\w+)((?: [\w-]+="[^"]*")+)/) { all, tag, attributes ->
+            '<' + tag + ' ' + attributes.trim().split(/ (?=[\w-]+=")/).sort().join(' ')
+        }
+    }
+
+    @Test
+    public void "literal values in attribute hashes are added with the static attributes"() {
+        def template = '%input#name.field(name="n"){type: "text", checked: true, disabled: false, title: null, size: 3}\n' +
+            '%label.a(for="x"){for: "y", class: \'b\', id: "l"}\n' +
+            '%p{id: "p", class: "c", title: label}\n' +
+            '%div#d{id: "e", data: {key: "k"}}\n' +
+            '%span[item]{id: "s", class: "t", lang: "en"}\n'
+        def code = haml.compileHaml('test', template, null)
+        assert !code.contains('"type"') && !code.contains('"checked"') && !code.contains('"size"')
+        assert code.contains('{"title":  label }') && !code.contains('{"title":  label, ')
+        assert code.contains('{"id":"e"}') && code.contains('hashObject = {\\"data\\":')
+        assert code.contains('"id":  "s"') && code.contains('"class":  "t"') && code.contains('{"lang":"en"}')
+        assert code.contains('"for":  "y"')
+
+        def runtime = new Haml()
+        runtime.generator = new JavascriptGenerator('test', new HamlOptions()) {
+            boolean isLiteral(String literal) { false }
+        }
+        def context = '{label: "L", item: {id: 7, "class": "i"}}'
+        def folded = runScript(code, context)
+        assert folded.contains('checked="checked"') && folded.contains('size="3"') && !folded.contains('disabled')
+        assert sortAttributes(folded) == sortAttributes(runScript(runtime.compileHaml('test', template, null), context))
+    }
+
+    @Test
+    public void "an element with only literals in its attribute hash is static"() {
+        def compiled = haml.compile('test', '%a.link{href: "/home", title: \'Home\'} Home\n', null)
+        assert compiled.isStatic()
+        assert sortAttributes(compiled.html) == '<a class="link" href="/home" title="Home">\n  Home\n</a>\n'
+    }
+}
@@ -0,0 +1,73 @@
+package au.com.ogsoft.yahaml4j
+
+import au.com.ogsoft.yahaml4j.filters.Minifier
+import org.junit.Before
+import org.junit.Test
+
+class MinifierTest extends BaseHamlTest {
+
+    Haml haml
+
+    @Before
+    public void setup() {
+        haml = new Haml()
+        haml.setupStandardFilters()
+    }
+
+    @Test
+    public void "removes comments and whitespace from css"() {
+        assert Minifier.minifyCss('/* header */\np  >  a ,\n  div {\n  color : red;\n  margin: 0 auto;\n}\n') ==
+            'p>a,div{color:red;margin:0 auto}'
+        assert Minifier.minifyCss('/*! licence */\na:hover { content: "a  ;  b"; }') ==
+            '/*! licence */ a:hover{content:"a  ;  b"}'
+        assert Minifier.minifyCss('p { color: #{colour}; width: #{ width  }px }') == 'p{color:#{colour};width:#{ width  }px}'
+        assert Minifier.minifyCss('  /* nothing */  \n') == ''
+        assert Minifier.minifyCss('div :first-child { color : red }') == 'div :first-child{color:red}'
+    }
+
+    @Test
+    public void "removes comments blank lines and indenting from javascript"() {
+        assert Minifier.minifyJavascript('// setup\nvar a  =  1; // one\n\n  /* two\n   lines */\n  if (a) {\n    b();\n  }\n') ==
+            'var a = 1;\nif (a) {\nb();\n}'
+        assert Minifier.minifyJavascript('var url = "http://host  //path"; var s = \'/* no */\';') ==
+            'var url = "http://host  //path"; var s = \'/* no */\';'
+        assert Minifier.minifyJavascript('var re = /\\/\\/ [/*]  x/g; var half = a / 2; // done') ==
+            'var re = /\\/\\/ [/*]  x/g; var half = a / 2;'
+        assert Minifier.minifyJavascript('var name = #{ user.name  // not a comment };\nreturn x') ==
+            'var name = #{ user.name  // not a comment };\nreturn x'
+    }
+
+    @Test
+    public void "minifies the filters when the options are set"() {
+        def source = '%head\n  :css\n    /* page */\n    p {\n      color: red;\n    }\n' +
+            '  :javascript\n    // start\n    var a = 1;\n    \n    alert(a);\n'
+        def options = new HamlOptions(minifyCss: true, minifyJavascript: true)
+        assert runScript(haml.compileHaml('filters', source, options)) ==
+            '<head>\n' +
+            '  <style type="text/css">\n' +
+            '    /*<![CDATA[*/\n' +
+            '    p{color:red}\n' +
+            '    /*]]>*/\n' +
+            '  </style>\n' +
+            '  <script type="text/javascript">\n' +
+            '    //<![CDATA[\n' +
+            '    var a = 1;\n' +
+            '    alert(a);\n' +
+            '    //]]>\n' +
+            '  </script>\n' +
+            '</head>\n'
+
+        def verbatim = haml.compileHaml('filters', source, null)
+        assert verbatim.contains('\\/* page *\\/') && verbatim.contains('\\/\\/ start')
+        def cssOnly = haml.compileHaml('filters', source, new HamlOptions(minifyCss: true))
+        assert !cssOnly.contains('\\/* page *\\/') && cssOnly.contains('\\/\\/ start')
+    }
+
+    @Test
+    public void "interpolations are kept in minified blocks"() {
+        def source = ':javascript\n  // greet\n  var name = "#{name}", size = #{ width  /  2 };\n'
+        def code = haml.compileHaml('filters', source, new HamlOptions(minifyJavascript: true))
+        assert code.contains('(name)') && code.contains('(width  /  2)')
+        assert runScript(code, '{name: "n", width: 8}').contains('  var name = "n", size = 4;\n')
+    }
+}
@@ -0,0 +1,44 @@
+package au.com.ogsoft.yahaml4j
+
+import org.junit.Before
+import org.junit.Test
+
+class OutputProfileTest {
+
+    Haml haml
+
+    @Before
+    public void setup() {
+        haml = new Haml()
+        haml.setupStandardFilters()
+    }
+
+    private OutputProfile profile(String source) {
+        OutputProfile.of(haml.parseHaml('test', source, null))
+    }
+
+    @Test
+    public void "counts expressions and elements with dynamic attributes as values"() {
+        assert profile('%p= a\n%p{id: b}\n%p(id="c")\n- if (d) {\n  = e\n- }\n').values == 3
+        assert profile('%p[item]\n%p#a.b text\n').values == 1
+    }
+
+    @Test
+    public void "measures the static contents"() {
+        assert profile('').staticLength == 0
+        assert profile('text').staticLength == 4
+        assert profile('%p').staticLength == '<p></p>'.length()
+        assert profile('%p text').staticLength > profile('%p').staticLength + profile('text').staticLength
+        assert profile(':plain\n  one\n  two\n').staticLength == '  one\n  two\n'.length()
+        assert profile('%p text\n= a\n%p text\n= b\n').staticLengthPerValue() == profile('%p text').staticLength
+        assert profile('text').staticLengthPerValue() == 4
+    }
+
+    @Test
+    public void "measures the parts of a template together"() {
+        def parts = [haml.parseHaml('test', '%p= a\n', null), haml.parseHaml('test', 'text\n', null)]
+        def profile = OutputProfile.of(parts)
+        assert profile.values == 1
+        assert profile.staticLength == '<p></p>'.length() + 'text'.length()
+    }
+}
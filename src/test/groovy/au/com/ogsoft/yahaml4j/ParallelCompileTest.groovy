@@ -0,0 +1,75 @@
+package au.com.ogsoft.yahaml4j
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import java.util.concurrent.ForkJoinPool
+
+public class ParallelCompileTest {
+
+    ForkJoinPool pool
+    Haml haml
+
+    @Before
+    public void setup() {
+        pool = new ForkJoinPool(4)
+        haml = new Haml()
+        haml.setupStandardFilters()
+    }
+
+    @After
+    public void cleanup() {
+        pool.shutdown()
+    }
+
+    private String sequential(String template, HamlOptions options = null) {
+        def sequential = new Haml()
+        sequential.setupStandardFilters()
+        sequential.compileHaml("test", template, options)
+    }
+
+    @Test
+    public void "generates the same code as compiling on one thread"() {
+        assert haml.compileHaml("test", RecompileTest.TEMPLATE.replace(':counted', ':plain'), null, pool) ==
+            sequential(RecompileTest.TEMPLATE.replace(':counted', ':plain'))
+    }
+
+    @Test
+    public void "static contents are merged across top level blocks"() {
+        def template = (1..50).collect { "%div.row\n  %p text $it\n%br\n= value\n%span{id: 'a'}\n" }.join()
+        assert haml.compileHaml("test", template, null, pool) == sequential(template)
+    }
+
+    @Test
+    public void "blocks that remove the whitespace before them are generated in order"() {
+        def template = "%p\n  text\n&\n  %span> after\n%div<\n  %span inner\n%p\n  %img\n  %span> outer\n"
+        assert haml.compileHaml("test", template, null, pool) == sequential(template)
+    }
+
+    @Test
+    public void "errors are raised the same as compiling on one thread"() {
+        def template = "%p\n  text\n%div{a: }\n%p(a='b' c)\n"
+        def expected = null
+        try {
+            sequential(template)
+        } catch (RuntimeException e) {
+            expected = e.message
+        }
+        def actual = null
+        try {
+            haml.compileHaml("test", template, null, pool)
+        } catch (RuntimeException e) {
+            actual = e.message
+        }
+        assert expected != null
+        assert actual == expected
+    }
+
+    @Test
+    public void "errors are skipped the same when tolerating faults"() {
+        def options = new HamlOptions(tolerateFaults: true)
+        def template = "%p\n  text\n%div{a: }\n  %span\n%p(a='b' c)\n%p= ok\n"
+        assert haml.compileHaml("test", template, options, pool) == sequential(template, options)
+    }
+}
@@ -0,0 +1,88 @@
+package au.com.ogsoft.yahaml4j
+
+import au.com.ogsoft.yahaml4j.filters.Filter
+import au.com.ogsoft.yahaml4j.filters.PlainFilter
+import org.junit.Before
+import org.junit.Test
+
+public class RecompileTest extends BaseHamlTest {
+
+    static final String TEMPLATE = "!!! 5\n" +
+        "%html\n" +
+        "  %head\n" +
+        "    %title= title\n" +
+        "%body\n" +
+        "  %h1#title.heading{class: 'big'} Title\n" +
+        "  :counted\n" +
+        "    first block\n" +
+        "\n" +
+        "- if (show) {\n" +
+        "  %p(a='b'\n" +
+        "    c='d') Shown\n" +
+        "- } else {\n" +
+        "  %p Hidden\n" +
+        "- }\n" +
+        "%div\n" +
+        "  :counted\n" +
+        "    second block\n" +
+        "%footer.foot= title\n"
+
+    Haml haml
+    int filterCalls
+
+    @Before
+    public void setup() {
+        haml = new Haml()
+        haml.setupStandardFilters()
+        haml.filters.put("counted", [execute: { List<String> contents, HamlGenerator generator, Integer indent, ParsePoint parsePoint ->
+            filterCalls++
+            new PlainFilter().execute(contents, generator, indent, parsePoint)
+        }] as Filter)
+    }
+
+    private String render(String haml) {
+        runScript(haml, "{title: 'Test', show: true}")
+    }
+
+    @Test
+    public void "renders the same as compiling the whole template"() {
+        assert render(haml.recompileHaml("test", TEMPLATE, null)) == render(new Haml(filters: haml.filters).compileHaml("test", TEMPLATE, null))
+    }
+
+    @Test
+    public void "recompiling an edited template generates the same code as compiling it from scratch"() {
+        haml.recompileHaml("test", TEMPLATE, null)
+        def edited = TEMPLATE.replace("%p Hidden", "%p\n    Not\n    Shown").replace("second block", "changed block")
+        def expected = new Haml(filters: haml.filters).recompileHaml("test", edited, null)
+        assert haml.recompileHaml("test", edited, null) == expected
+        assert render(expected) == render(new Haml(filters: haml.filters).compileHaml("test", edited, null))
+    }
+
+    @Test
+    public void "only the changed top level blocks are compiled again"() {
+        haml.recompileHaml("test", TEMPLATE, null)
+        assert filterCalls == 2
+        haml.recompileHaml("test", TEMPLATE.replace("second block", "changed block"), null)
+        assert filterCalls == 3
+        haml.recompileHaml("test", "%p inserted line\n" + TEMPLATE.replace("second block", "changed block"), null)
+        assert filterCalls == 3
+    }
+
+    @Test
+    public void "moved blocks report errors at their new line"() {
+        def template = "%p\n%div{id: a} text\n"
+        def options = new HamlOptions(tolerateFaults: true)
+        haml.recompileHaml("test", template, options)
+        def moved = haml.recompileHaml("test", "%p\n%span\n" + template, options)
+        assert moved == new Haml().recompileHaml("test", "%p\n%span\n" + template, options)
+        assert moved.contains("function () { return {\"id\":  a }; }, 4, ")
+        assert moved.contains("return {4: \"%div{id: a} text\"}[lineNumber];")
+    }
+
+    @Test
+    public void "templates are compiled again if the options change"() {
+        haml.recompileHaml("test", TEMPLATE, null)
+        haml.recompileHaml("test", TEMPLATE, new HamlOptions(tolerateFaults: true))
+        assert filterCalls == 4
+    }
+}
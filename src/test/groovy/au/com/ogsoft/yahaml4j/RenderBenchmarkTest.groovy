@@ -0,0 +1,123 @@
+package au.com.ogsoft.yahaml4j
+
+import org.apache.commons.io.IOUtils
+import org.junit.Assume
+import org.junit.Before
+import org.junit.Test
+
+import javax.script.Invocable
+import javax.script.ScriptEngine
+import javax.script.ScriptEngineManager
+
+/**
+ * Times rendering the generated functions. Only runs with -Dyahaml4j.benchmark=true
+ */
+class RenderBenchmarkTest {
+
+    static final String TEMPLATE = '%table\n' +
+        '  - _.each(rows, function (row) {\n' +
+        '    %tr{class: row.odd ? "odd" : "even", id: "row-" + row.id}\n' +
+        '      %td= row.id\n' +
+        '      %td= row.name.toUpperCase()\n' +
+        '      %td{title: row.name}= row.price * row.quantity\n' +
+        '      %td= row.quantity > 1 ? "many" : "one"\n' +
+        '  - })\n'
+
+    static final String CONTEXT = '{rows: _.map(_.range(100), function (i) { ' +
+        'return {id: i, odd: i % 2 == 1, name: "item " + i, price: i * 1.5, quantity: i % 3}; })}'
+
+    @Before
+    public void setup() {
+        Assume.assumeTrue(Boolean.getBoolean('yahaml4j.benchmark'))
+    }
+
+    private static ScriptEngine engine() {
+        ScriptEngine engine = new ScriptEngineManager().getEngineByName('JavaScript')
+        ['/underscore.js', '/underscore.string.js', '/haml-runtime.js'].each {
+            engine.eval(IOUtils.toString(RenderBenchmarkTest.getResourceAsStream(it)))
+        }
+        engine
+    }
+
+    private static double time(String code) {
+        def engine = engine()
+        engine.eval('var fn = ' + code + '; var ctx = ' + CONTEXT + ';')
+        engine.eval('function render() { return fn(ctx); }')
+        def invocable = (Invocable) engine
+        200.times { invocable.invokeFunction('render') }
+        int renders = 500
+        long start = System.nanoTime()
+        renders.times { invocable.invokeFunction('render') }
+        (System.nanoTime() - start) / 1000000.0 / renders
+    }
+
+    @Test
+    public void "rendering expressions without eval"() {
+        def haml = new Haml()
+        def inline = haml.compileHaml('bench', TEMPLATE, null)
+        haml.generator = new JavascriptGenerator('bench', new HamlOptions()) {
+            protected boolean canInline(String code) { false }
+        }
+        def evaluated = haml.compileHaml('bench', TEMPLATE, null)
+        assert !inline.contains('eval(') && evaluated.contains('eval(')
+
+        double evalTime = time(evaluated)
+        double inlineTime = time(inline)
+        println String.format('eval: %.3f ms/render, inline: %.3f ms/render, %.1fx faster', evalTime, inlineTime,
+            evalTime / inlineTime)
+    }
+
+    @Test
+    public void "rendering with the variables bound as locals"() {
+        def haml = new Haml()
+        def locals = haml.compileHaml('bench', TEMPLATE, null)
+        haml.generator = new JavascriptGenerator('bench', new HamlOptions()) {
+            void setTemplateVariables(TemplateVariables variables) { super.setTemplateVariables(null) }
+        }
+        def scoped = haml.compileHaml('bench', TEMPLATE, null)
+        assert !locals.contains('with (context') && scoped.contains('with (context')
+
+        double withTime = time(scoped)
+        double localsTime = time(locals)
+        println String.format('with: %.3f ms/render, locals: %.3f ms/render, %.1fx faster', withTime, localsTime,
+            withTime / localsTime)
+    }
+
+    @Test
+    public void "rendering in production mode"() {
+        def haml = new Haml()
+        def development = haml.compileHaml('bench', TEMPLATE, null)
+        def production = haml.compileHaml('bench', TEMPLATE, new HamlOptions(production: true))
+
+        double developmentTime = time(development)
+        double productionTime = time(production)
+        println String.format('development: %d chars, %.3f ms/render, production: %d chars, %.3f ms/render',
+            development.length(), developmentTime, production.length(), productionTime)
+    }
+
+    @Test
+    public void "collecting the output in an array or a string"() {
+        def staticTemplate = '%div\n  - _(rows).each(function (row) {\n' +
+            (1..10).collect { "    %p.para#p$it Some static text for paragraph $it\n" }.join('') +
+            '    %p= row.name\n  - })\n'
+        def valueTemplate = '%table\n  - _(_.range(20)).each(function (j) {\n    - _(rows).each(function (row) {\n' +
+            '      %tr\n' + (1..6).collect { '        %td= row.id + j\n' }.join('') + '    - })\n  - })\n'
+        [TEMPLATE, staticTemplate, valueTemplate].each { template ->
+            def haml = new Haml()
+            haml.generator = new JavascriptGenerator('bench', new HamlOptions()) {
+                protected boolean useStringOutput() { false }
+            }
+            def array = haml.compileHaml('bench', template, null)
+            haml.generator = new JavascriptGenerator('bench', new HamlOptions()) {
+                protected boolean useStringOutput() { true }
+            }
+            def string = haml.compileHaml('bench', template, null)
+            assert array.contains('html.push(') && string.contains('html += ')
+
+            def profile = OutputProfile.of(new Haml().parseHaml('bench', template, new HamlOptions()))
+            double arrayTime = time(array)
+            double stringTime = time(string)
+            println String.format('%s: array: %.3f ms/render, string: %.3f ms/render', profile, arrayTime, stringTime)
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package au.com.ogsoft.yahaml4j
+
+import org.json.JSONObject
+import org.junit.Test
+
+class SourceMapTest {
+
+    private static final String BASE64 = 'ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/'
+
+    private static String vlq(int value) {
+        def out = new StringBuilder()
+        SourceMap.appendVlq(out, value)
+        out.toString()
+    }
+
+    /**
+     * Returns the template line (from 1) each line of the generated code is mapped to, or null if it is not mapped
+     */
+    private static List<Integer> templateLines(String mappings) {
+        int line = 0
+        mappings.split(';', -1).collect { String segment ->
+            if (segment.isEmpty()) {
+                return null
+            }
+            def values = []
+            int value = 0, shift = 0
+            for (char ch: segment.toCharArray()) {
+                int digit = BASE64.indexOf((int) ch)
+                value += (digit & 31) << shift
+                if (digit & 32) {
+                    shift += 5
+                } else {
+                    values << ((value & 1) ? -(value >> 1) : (value >> 1))
+                    value = 0
+                    shift = 0
+                }
+            }
+            line += values[2]
+            line + 1
+        }
+    }
+
+    @Test
+    public void "values are encoded as base 64 variable length quantities"() {
+        assert vlq(0) == 'A'
+        assert vlq(1) == 'C'
+        assert vlq(-1) == 'D'
+        assert vlq(15) == 'e'
+        assert vlq(16) == 'gB'
+        assert vlq(-1000) == 'x+B'
+    }
+
+    @Test
+    public void "maps the lines of the generated code back to the template"() {
+        def template = '%div\n  %p{id: id}= name\n  - for (var i = 0; i < 2; i++) {\n    %span= i\n  - }\n'
+        def compiled = new Haml().compile('test', template, new HamlOptions(sourceMap: true))
+        def map = new JSONObject(compiled.sourceMap)
+        assert map.getInt('version') == 3
+        assert map.getString('file') == 'test.js'
+        assert map.getJSONArray('sources').getString(0) == 'test'
+
+        def code = compiled.code.split('\n', -1)
+        def lines = templateLines(map.getString('mappings'))
+        assert lines.size() == code.size()
+        assert lines[0] == null
+        assert lines[code.findIndexOf { it.contains('generateElementAttributes') }] == 2
+        assert lines[code.findIndexOf { it.contains('var value = (name)') }] == 2
+        assert lines[code.findIndexOf { it.contains('for (var i = 0') }] == 3
+        assert lines[code.findIndexOf { it.contains('var value = (i)') }] == 4
+    }
+
+    @Test
+    public void "the source map does not change the generated code"() {
+        def template = '%div\n  %p{id: id}= name\n  - for (var i = 0; i < 2; i++) {\n    %span= i\n  - }\n'
+        def withMap = HamlCompiler.withStandardFilters().compile('test', template, new HamlOptions(sourceMap: true))
+        assert withMap.sourceMap != null
+        assert withMap.code == HamlCompiler.withStandardFilters().compile('test', template, null).code
+        assert HamlCompiler.withStandardFilters().compile('test', template, null).sourceMap == null
+    }
+}
@@ -0,0 +1,75 @@
+package au.com.ogsoft.yahaml4j
+
+import org.junit.Test
+
+import java.nio.file.Files
+
+class StreamingSourceBufferTest {
+
+    static final String TEMPLATE = "!!! 5\n" +
+        "%html\n" +
+        "  %body\n" +
+        "    %h1#title.heading{class: 'big', id: 12} Title\n" +
+        "    %p(a=\"b\" c='d') Some text\n" +
+        "    - if (true) {\n" +
+        "      %span= 'value'\n" +
+        "    - }\n" +
+        "    %p=        |\n" +
+        "      'multi ' + |\n" +
+        "      'line'     |\n" +
+        "    :plain\n" +
+        "      plain text\n" +
+        "    / a comment\r\n" +
+        "    -# ignored\n"
+
+    private static Haml haml() {
+        Haml haml = new Haml()
+        haml.setupStandardFilters()
+        haml
+    }
+
+    @Test
+    public void "returns the same tokens as the string source buffer"() {
+        Tokeniser expected = new Tokeniser("Test", TEMPLATE)
+        Tokeniser actual = new Tokeniser("Test", new StreamingSourceBuffer(new StringReader(TEMPLATE), 4))
+        while (expected.advance() != Token.TokenType.EOF) {
+            assert actual.advance() == expected.tokenType
+            assert actual.tokenMatched.toString() == expected.tokenMatched.toString()
+            assert actual.tokenValue?.toString() == expected.tokenValue?.toString()
+            assert actual.parseError("") == expected.parseError("")
+        }
+        assert actual.advance() == Token.TokenType.EOF
+    }
+
+    @Test
+    public void "compiles the same code as the string source"() {
+        def expected = haml().compileHaml("test", TEMPLATE, null)
+        def actual = haml().compileHaml("test", new StringReader(TEMPLATE), null)
+        assert actual == expected
+    }
+
+    @Test
+    public void "compiles a template from a file"() {
+        def file = Files.createTempFile("template", ".haml")
+        try {
+            file.toFile().setText(TEMPLATE, "UTF-8")
+            assert haml().compileHaml("test", file, null) == haml().compileHaml("test", TEMPLATE, null)
+        } finally {
+            Files.delete(file)
+        }
+    }
+
+    @Test
+    public void "the window does not grow with the size of the template"() {
+        def template = new StringBuilder("%div\n")
+        1000.times { template.append("  %p.para{id: 'p$it'} Paragraph $it\n") }
+        def buffer = new StreamingSourceBuffer(new StringReader(template.toString()), 64)
+        Tokeniser tokeniser = new Tokeniser("Test", buffer)
+        int count = 0
+        while (tokeniser.advance() != Token.TokenType.EOF) {
+            count++
+        }
+        assert count > 1000
+        assert buffer.windowSize <= 256
+    }
+}
@@ -0,0 +1,68 @@
+package au.com.ogsoft.yahaml4j
+
+import org.junit.Test
+
+class TemplateSegmentTest {
+
+    private static List<String> split(String haml) {
+        TemplateSegment.split(haml).collect { it.source }
+    }
+
+    @Test
+    public void "splits the template at lines with no indent"() {
+        def segments = TemplateSegment.split("%h1\n  %p text\n%div\n  - if (a) {\n    %span\n= value\n")
+        assert segments.collect { it.source } == ["%h1\n  %p text\n", "%div\n  - if (a) {\n    %span\n", "= value\n"]
+        assert segments.collect { it.lineNumber } == [1, 3, 6]
+    }
+
+    @Test
+    public void "an empty template has one empty segment"() {
+        assert split("") == [""]
+    }
+
+    @Test
+    public void "lines that do not close the previous elements do not start a segment"() {
+        assert split("%h1\n\n-# comment\n:plain\n  text\n!!! 5\n%p") == ["%h1\n\n-# comment\n:plain\n  text\n!!! 5\n", "%p"]
+        assert split("- if (a) {\n%p\n- } else {\n%p\n-}\n%div") == ["- if (a) {\n", "%p\n- } else {\n", "%p\n-}\n", "%div"]
+        assert split("%p\n%img>\n%div") == ["%p\n%img>\n", "%div"]
+        assert split("%p\n  :plain\n    text\n%div\n%span") == ["%p\n  :plain\n    text\n%div\n", "%span"]
+        assert split("%p\n  :plain\n    text\n\n%div") == ["%p\n  :plain\n    text\n\n", "%div"]
+    }
+
+    @Test
+    public void "lines continuing a multiline line do not start a segment"() {
+        assert split("%p= 'a' + |\n'b' |\n%div") == ["%p= 'a' + |\n'b' |\n%div"]
+    }
+
+    @Test
+    public void "lines continuing an attribute list or hash do not start a segment"() {
+        assert split("%p(a='b'\nc='d)')\n%div") == ["%p(a='b'\nc='d)')\n", "%div"]
+        assert split("  %p{a: {b: 'c'},\nd: 'e'}\n%div") == ["  %p{a: {b: 'c'},\nd: 'e'}\n", "%div"]
+        assert split("%p(a='b'){c: 'd',\ne: 'f'}\n%div") == ["%p(a='b'){c: 'd',\ne: 'f'}\n", "%div"]
+        assert split("%p[obj](a='b'\n)\n%div") == ["%p[obj](a='b'\n)\n", "%div"]
+    }
+
+    @Test
+    public void "moving a segment updates the line numbers in the generated code"() {
+        def segment = new TemplateSegment("%p= a\n", 8)
+        segment.code = "error(8, 2, \"%p= a\"); error(9, 0, \"\");"
+        segment.lineNumberSites = [6, 28] as int[]
+        segment.sourceLines.put(8, '%p= a')
+        def moved = segment.moveTo(12)
+        assert moved.lineNumber == 12
+        assert moved.code == "error(12, 2, \"%p= a\"); error(13, 0, \"\");"
+        assert moved.lineNumberSites == [6, 29] as int[]
+        assert moved.sourceLines == [12: '%p= a']
+        assert moved.moveTo(8).code == segment.code
+    }
+
+    @Test
+    public void "joining segments keeps them in order with the line they start on"() {
+        def segments = TemplateSegment.split("%h1\n%p one\n%p two\n  %span\n%p three\n%br\n")
+        assert segments.size() == 5
+        def joined = TemplateSegment.join(segments, 2)
+        assert joined.collect { it.source } == ["%h1\n%p one\n%p two\n  %span\n", "%p three\n%br\n"]
+        assert joined.collect { it.lineNumber } == [1, 5]
+        assert TemplateSegment.join(segments, 5).is(segments)
+    }
+}
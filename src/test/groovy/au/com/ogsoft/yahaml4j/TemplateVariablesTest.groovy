@@ -0,0 +1,183 @@
+package au.com.ogsoft.yahaml4j
+
+import au.com.ogsoft.yahaml4j.filters.Filter
+import org.junit.Before
+import org.junit.Test
+
+class TemplateVariablesTest extends BaseHamlTest {
+
+    Haml haml
+
+    @Before
+    public void setup() {
+        haml = new Haml()
+        haml.setupStandardFilters()
+    }
+
+    private TemplateVariables variables(String source) {
+        haml.compile('test', source, null).variables
+    }
+
+    @Test
+    public void "finds the variables read by code and expressions"() {
+        def found = variables('%h1= title.toUpperCase()\n' +
+            '- var total = 0;\n' +
+            '- _.each(items, function (item, i) {\n' +
+            '  - total += item.price * rate;\n' +
+            '  %p{class: css, id: "p" + i}= item.name\n' +
+            '  %b[model]\n' +
+            '- })\n' +
+            '%span= Math.round(total) + {label: suffix}.label\n' +
+            '%p some #{interpolated} text\n' +
+            ':plain\n' +
+            '  #{fromFilter} and \\#{escaped}\n')
+        assert found.conclusive
+        assert found.names as List == ['_', 'css', 'fromFilter', 'interpolated', 'items', 'model', 'rate', 'suffix', 'title']
+    }
+
+    @Test
+    public void "blocks and catch variables are scoped"() {
+        def found = variables('- try {\n' +
+            '  - var inner = one;\n' +
+            '- } catch (e) {\n' +
+            '  = e.message\n' +
+            '- }\n' +
+            '- function helper(x) {\n' +
+            '  - return x + two;\n' +
+            '- }\n' +
+            '= helper(inner) + e')
+        assert found.conclusive
+        assert found.names as List == ['e', 'one', 'two']
+    }
+
+    @Test
+    public void "var and function declarations belong to the enclosing function"() {
+        def found = variables('- if (ready) {\n' +
+            '  - var x = 1;\n' +
+            '  - function f() { var y = 2; return y; }\n' +
+            '- }\n' +
+            '- var g = function h() { return h; };\n' +
+            '- _.each(items, function (item) {\n' +
+            '  - var z = item;\n' +
+            '- })\n' +
+            '%p= x + f() + g() + h + y + z')
+        assert found.conclusive
+        assert found.names as List == ['_', 'h', 'items', 'ready', 'y', 'z']
+    }
+
+    @Test
+    public void "a var declared in a block is rendered the same as with a with block"() {
+        def template = '- if (true) {\n  - var x = 1\n- }\n%p= x'
+        def code = haml.compileHaml('test', template, null)
+        assert !code.contains('with (context') && !code.contains('"x"')
+        assert runScript(code, '{}') == '<p>\n  1\n</p>\n'
+        assert runScript(code, '{}') == runScript(compileWithScope(template), '{}')
+    }
+
+    @Test
+    public void "code the scan can not follow is inconclusive"() {
+        ['- count = 1', '- count++', '= eval("a")', '= value', '= html.length', '- var {a, b} = c',
+         '= `${a}`', '- [1].map(x => x * 2)', '- with (a) {\n  = b\n- }', '= "open', '- context.title = "Hi"',
+         '- context.count++', '- reset(context)', '= context.load()', '- setup()', '- delete title',
+         '- count >>>= 1', '- count += 1', '- context.count -= 1', '= `text`', '= f.apply(null, [...a])'].each {
+            assert !variables(it).conclusive, it
+        }
+        haml.filters.custom = { List<String> contents, HamlGenerator generator, Integer indent, ParsePoint point ->
+            generator.appendCodeLine('var x = secret;', '\n')
+        } as Filter
+        assert !variables(':custom\n  text').conclusive
+        assert variables('- var count = 1;\n- count++\n= count').conclusive
+        ['= context.title', '- context.item.count = 1', '= new Date(when)', '= String(a)', '= _.size(a)',
+         '- function f() {}\n= f()', '= a == b', '= a >= b && c !== d', '= context.count >= 1'].each {
+            assert variables(it).conclusive, it
+        }
+    }
+
+    @Test
+    public void "the variables are bound as locals instead of using with"() {
+        def code = haml.compileHaml('test', '%p= greeting + ", " + name\n%p= String(empty)', null)
+        assert !code.contains('with (context')
+        assert code.contains('var String = haml.HamlRuntime.variable(context, "String", handleError, 2, 3, sourceLine), ' +
+            'empty = haml.HamlRuntime.variable(context, "empty", handleError, 2, 3, sourceLine), ' +
+            'greeting = haml.HamlRuntime.variable(context, "greeting", handleError, 1, 3, sourceLine), ' +
+            'name = haml.HamlRuntime.variable(context, "name", handleError, 1, 3, sourceLine);')
+        assert runScript(code, '{greeting: "Hello", name: "Bob", empty: undefined}') ==
+            '<p>\n  Hello, Bob\n</p>\n<p>\n  undefined\n</p>\n'
+
+        def inconclusive = haml.compileHaml('test', '- name = name + "!"\n%p= name', null)
+        assert inconclusive.contains('with (context || {}) {')
+        assert runScript(inconclusive, '{name: "Bob"}') == '<p>\n  Bob!\n</p>\n'
+    }
+
+    private String compileWithScope(String template, HamlOptions options = null) {
+        def haml = new Haml()
+        haml.generator = new JavascriptGenerator('test', options ?: new HamlOptions()) {
+            void setTemplateVariables(TemplateVariables variables) { super.setTemplateVariables(null) }
+        }
+        haml.compileHaml('test', template, options)
+    }
+
+    private String render(String code, String context) {
+        try {
+            runScript(code, context)
+        } catch (javax.script.ScriptException e) {
+            e.message.replaceAll(/ in <eval> at line number.*/, '')
+        }
+    }
+
+    @Test
+    public void "code that changes the context is rendered the same as with a with block"() {
+        def context = '{title: "Old", setup: function () { this.title = "New"; }}'
+        ['- context.title = "Hi"\n%h1= title', '- setup()\n= title'].each {
+            assert render(haml.compileHaml('test', it, null), context) == render(compileWithScope(it), context), it
+        }
+        assert render(haml.compileHaml('test', '- setup()\n= title', null), context) == 'New\n'
+    }
+
+    @Test
+    public void "missing variables are reported where they are read"() {
+        def template = '%div\n  %p= missing\n  %p= typeof probe === "undefined" ? "none" : probe'
+        def code = haml.compileHaml('test', template, null)
+        assert !code.contains('with (context')
+        def message = render(code, '{}')
+        assert message == 'Error: Error evaluating expression - ReferenceError: "missing" is not defined at line 2 and ' +
+            'character 5:\n  %p= missing\n----^'
+        assert message == render(compileWithScope(template), '{}')
+        assert message == render(haml.compileHaml('test', template, new HamlOptions(production: true)), '{}')
+
+        def tolerant = new HamlOptions(tolerateFaults: true)
+        assert render(haml.compileHaml('test', template, tolerant), '{}') == render(compileWithScope(template, tolerant), '{}')
+        assert render(code, '{missing: 1}') == '<div>\n  <p>\n    1\n  </p>\n  <p>\n    none\n  </p>\n</div>\n'
+    }
+
+    @Test
+    public void "with fault tolerance on each expression still reports its own error"() {
+        def template = '%p= missing.foo\n%p= name\n%p= missing'
+        def tolerant = new HamlOptions(tolerateFaults: true)
+        def code = haml.compileHaml('test', template, tolerant)
+        assert code.contains('with (context || {}) {')
+        def output = render(code, '{name: "Bob"}')
+        assert output == render(compileWithScope(template, tolerant), '{name: "Bob"}')
+        assert output == '<p>\n  \n</p>\n<p>\n  Bob\n</p>\n<p>\n  \n</p>\n'
+        assert !haml.compileHaml('test', template, new HamlOptions(tolerateFaults: true, production: true))
+            .contains('with (context')
+    }
+
+    @Test
+    public void "the standard globals are looked up in the context first"() {
+        def template = '%p= String(1) + " " + Math.max(1, 2)'
+        def code = haml.compileHaml('test', template, null)
+        assert !code.contains('with (context') && !code.contains('"haml"')
+        def context = '{String: function (v) { return "s" + v; }}'
+        assert render(code, context) == render(compileWithScope(template), context)
+        assert render(code, context).contains('s1 2')
+    }
+
+    @Test
+    public void "templates without variables still get a block"() {
+        def code = haml.compileHaml('test', '- var a = 1;\n%p static', null)
+        assert code.contains('value = null;  {\n')
+        assert runScript(code) == '<p>\n  static\n</p>\n'
+        assert haml.recompileHaml('test', '%p= name', null).contains('with (context || {}) {')
+    }
+}
@@ -2,6 +2,8 @@ package au.com.ogsoft.yahaml4j
 
 import org.junit.Test
 
+import java.util.regex.Pattern
+
 import static org.hamcrest.MatcherAssert.assertThat
 import static org.hamcrest.CoreMatchers.is
 
@@ -44,4 +46,232 @@ class TokeniserTest {
         assert tokeniser.nextToken.type == Token.TokenType.EOL
         assert tokeniser.nextToken.type == Token.TokenType.EOL
     }
+
+    @Test
+    public void "advance returns the token type with views of the matched text and token string"() {
+        Tokeniser tokeniser = new Tokeniser("Test", "%h1.title\r\n  =")
+        assert tokeniser.advance() == Token.TokenType.ELEMENT
+        assert tokeniser.tokenMatched.toString() == "%h1"
+        assert tokeniser.tokenValue.toString() == "h1"
+        assert tokeniser.advance() == Token.TokenType.CLASSSELECTOR
+        assert tokeniser.tokenValue.toString() == "title"
+        assert tokeniser.advance() == Token.TokenType.EOL
+        assert tokeniser.tokenMatched.toString() == "\r\n"
+        assert tokeniser.tokenValue == null
+        assert tokeniser.advance() == Token.TokenType.WS
+        assert tokeniser.tokenIndent() == 1
+        assert tokeniser.token.tokenString == "  "
+        tokeniser.advance()
+        assert tokeniser.advance() == Token.TokenType.EOF
+        assert tokeniser.tokenMatched == null
+        assert tokeniser.token.matched == null
+    }
+
+    @Test
+    public void "push back restores the previous token"() {
+        Tokeniser tokeniser = new Tokeniser("Test", "%p text")
+        tokeniser.advance()
+        tokeniser.advance()
+        assert tokeniser.tokenType == Token.TokenType.WS
+        tokeniser.pushBackToken()
+        assert tokeniser.tokenType == Token.TokenType.ELEMENT
+        assert tokeniser.token.tokenString == "p"
+        assert tokeniser.advance() == Token.TokenType.WS
+        assert tokeniser.tokenMatched.toString() == " "
+    }
+
+    @Test
+    public void "look ahead tokens are returned by get next token without scanning them again"() {
+        Tokeniser tokeniser = new Tokeniser("Test", "%p\n  %span")
+        tokeniser.advance()
+        Token eol = tokeniser.lookAhead(1)
+        Token ws = tokeniser.lookAhead(2)
+        assert eol.type == Token.TokenType.EOL
+        assert ws.type == Token.TokenType.WS
+        assert tokeniser.tokenType == Token.TokenType.ELEMENT
+        assert tokeniser.currentParsePoint().lineNumber == 1
+        assert tokeniser.nextToken.is(eol)
+        assert tokeniser.nextToken.is(ws)
+        assert tokeniser.currentParsePoint().lineNumber == 2
+        assert tokeniser.nextToken.tokenString == "span"
+    }
+
+    @Test
+    public void "look ahead does not move the input buffer or its mark"() {
+        Tokeniser tokeniser = new Tokeniser("Test", "%p text")
+        tokeniser.advance()
+        tokeniser.buffer.mark()
+        tokeniser.lookAhead(3)
+        assert tokeniser.buffer.position() == 2
+        tokeniser.buffer.position(1)
+        tokeniser.buffer.reset()
+        assert tokeniser.buffer.position() == 2
+        assert tokeniser.skipToEOLorEOF() == "%p text"
+    }
+
+    @Test
+    public void "look ahead tokens are scanned again if the mode changes"() {
+        Tokeniser tokeniser = new Tokeniser("Test", "(a='b')")
+        tokeniser.advance()
+        assert tokeniser.lookAhead(1).type == Token.TokenType.UNKNOWN
+        tokeniser.setMode(Tokeniser.Mode.ATTRLIST)
+        assert tokeniser.nextToken.type == Token.TokenType.HTMLIDENTIFIER
+        assert tokeniser.nextToken.type == Token.TokenType.EQUAL
+        assert tokeniser.nextToken.tokenString == "b"
+    }
+
+    static final List<String> TEMPLATES = [
+        "%h1\n  %div\n    %p\n    %span",
+        "!!! XML iso-8859-1\n!!! 5\n%html\n  %head\n    %title= title\n  %body.main#content\n    -# silent\n",
+        "%p{id: 'test2', class: \"blah\", name: null} text\n%label(for = \"a\"){for: [\"b\", \"c\"]}/\n",
+        "%a(data-key='MOD_DESC' href=\"#\")\n%div[model]{class: model.name}\r\n  &= 1 < 2\r\n  != '<b>'\n",
+        "- if (a) {\n  %p= a + |\n    b |\n- } else {\n  ~ c\n- }\n/ comment\n/[if IE] ie\n",
+        ":javascript\n  var x = 1;\n:css\n  p { color: red }\n.value><= null.toString()\n%br/\n%p< %em> text",
+        "%h3{%h3 %h4}\n%p(a=\"b\"\n%p(a='unterminated\n\"also\n\u00e9%\u00e9 #\u00e9 [1] [a-b] :: !!= \\%span\t|\t\r\n"
+    ]
+
+    static final String ALPHABET = "%#.-&!=[]_:|(){},/<>~'\"\\aZz09 \t\n\r\u00e9\u0000"
+
+    @Test
+    public void "line numbers carry on after blank lines"() {
+        Tokeniser tokeniser = new Tokeniser("Test", "%p\n\n%div")
+        4.times { tokeniser.advance() }
+        assert tokeniser.tokenType == Token.TokenType.ELEMENT
+        assert tokeniser.currentParsePoint().lineNumber == 3
+    }
+
+    @Test
+    public void "line numbers can start from a line further down the template"() {
+        Tokeniser tokeniser = new Tokeniser("Test", new SourceBuffer("%p\n%div"), 10)
+        tokeniser.advance()
+        assert tokeniser.currentParsePoint().lineNumber == 10
+        2.times { tokeniser.advance() }
+        assert tokeniser.currentParsePoint().lineNumber == 11
+    }
+
+    @Test
+    public void "parse points work out the line and character from the token offset"() {
+        Tokeniser tokeniser = new Tokeniser("Test", "%p\r\n  %div.a text\n")
+        5.times { tokeniser.advance() }
+        assert tokeniser.tokenType == Token.TokenType.CLASSSELECTOR
+        def parsePoint = tokeniser.currentParsePoint()
+        assert parsePoint.lineNumber == 2
+        assert parsePoint.characterNumber == 8
+        assert parsePoint.currentLine == "  %div.a text"
+        assert tokeniser.parseError("Error") == "Error at line 2 and character 8:\n  %div.a text\n-------^"
+    }
+
+    @Test
+    public void "scanner produces the same tokens as the regular expression tokeniser"() {
+        def random = new Random(1234)
+        def sources = new ArrayList<String>(TEMPLATES)
+        2000.times {
+            def sb = new StringBuilder()
+            (random.nextInt(40) + 1).times { sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length()))) }
+            sources << sb.toString()
+        }
+
+        sources.each { source ->
+            [null, Tokeniser.Mode.ATTRLIST, Tokeniser.Mode.ATTRHASH].each { mode ->
+                assertThat "${mode} tokens for ${source.inspect()}", scan(source, mode), is(RegexTokeniser.tokenise(source, mode))
+            }
+        }
+    }
+
+    private static List scan(String source, Tokeniser.Mode mode) {
+        Tokeniser tokeniser = new Tokeniser("Test", source)
+        tokeniser.setMode(mode)
+        def tokens = []
+        Token token = tokeniser.nextToken
+        while (token.type != Token.TokenType.EOF) {
+            tokens << [token.type, token.matched, token.tokenString]
+            token = tokeniser.nextToken
+        }
+        tokens
+    }
+
+    /**
+     * The original regular expression cascade, kept as a reference for the scanner
+     */
+    static class RegexTokeniser {
+
+        static Pattern WHITESPACE = Pattern.compile("[ \\t]+")
+        static Pattern ELEMENT = Pattern.compile("%[a-zA-Z][a-zA-Z0-9]*")
+        static Pattern IDSELECTOR = Pattern.compile("#[a-zA-Z0-9_\\-]+")
+        static Pattern CLASSSELECTOR = Pattern.compile("\\.[a-zA-Z0-9_\\-]+")
+        static Pattern HTMLIDENTIFIER = Pattern.compile("[a-zA-Z][a-zA-Z0-9\\-]*")
+        static Pattern QUOTEDSTRING = Pattern.compile("'[^'\\n]*'")
+        static Pattern QUOTEDSTRING2 = Pattern.compile("\"[^\"\\n]*\"")
+        static Pattern COMMENT = Pattern.compile("\\-#")
+        static Pattern ESCAPEHTML = Pattern.compile("&=")
+        static Pattern UNESCAPEHTML = Pattern.compile("!=")
+        static Pattern OBJECTREF = Pattern.compile("\\[[a-zA-Z_][a-zA-Z0-9_]*\\]")
+        static Pattern DOCTYPE = Pattern.compile("!!!")
+        static Pattern CONTINUELINE = Pattern.compile("\\|[ \\t]*\\n")
+        static Pattern FILTER = Pattern.compile(":\\w+")
+        static Pattern CODE_IDENTIFIER = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*")
+
+        static final Map<Character, Token.TokenType> SINGLE_CHARS = [
+            ('{' as char): Token.TokenType.OPENBRACE, ('}' as char): Token.TokenType.CLOSEBRACE,
+            (',' as char): Token.TokenType.COMMA, (':' as char): Token.TokenType.COLON,
+            ('/' as char): Token.TokenType.SLASH, ('(' as char): Token.TokenType.OPENBRACKET,
+            (')' as char): Token.TokenType.CLOSEBRACKET, ('=' as char): Token.TokenType.EQUAL,
+            ('!' as char): Token.TokenType.EXCLAMATION, ('-' as char): Token.TokenType.MINUS,
+            ('&' as char): Token.TokenType.AMP, ('<' as char): Token.TokenType.LT,
+            ('>' as char): Token.TokenType.GT, ('~' as char): Token.TokenType.TILDE
+        ]
+
+        static List tokenise(String source, Tokeniser.Mode mode) {
+            def tokens = []
+            int index = 0
+            while (index < source.length()) {
+                def token = null
+                def match = { Pattern pattern, Token.TokenType type, Closure fn = { it } ->
+                    if (token == null) {
+                        def m = pattern.matcher(source).region(index, source.length())
+                        if (m.lookingAt()) {
+                            token = [type, m.group(), fn(m.group())]
+                        }
+                    }
+                }
+
+                char ch = source.charAt(index)
+                if (ch == '\n' as char) {
+                    token = [Token.TokenType.EOL, "\n", null]
+                } else if (ch == '\r' as char && source.startsWith("\n", index + 1)) {
+                    token = [Token.TokenType.EOL, "\r\n", null]
+                }
+                match(WHITESPACE, Token.TokenType.WS)
+                if (mode == null) {
+                    match(CONTINUELINE, Token.TokenType.CONTINUELINE)
+                    match(ELEMENT, Token.TokenType.ELEMENT) { it.substring(1) }
+                    match(IDSELECTOR, Token.TokenType.IDSELECTOR) { it.substring(1) }
+                    match(CLASSSELECTOR, Token.TokenType.CLASSSELECTOR) { it.substring(1) }
+                    match(COMMENT, Token.TokenType.COMMENT)
+                    match(ESCAPEHTML, Token.TokenType.ESCAPEHTML)
+                    match(UNESCAPEHTML, Token.TokenType.UNESCAPEHTML)
+                    match(OBJECTREF, Token.TokenType.OBJECTREF) { it.substring(1, it.length() - 1) }
+                    match(DOCTYPE, Token.TokenType.DOCTYPE)
+                    match(FILTER, Token.TokenType.FILTER) { it.substring(1) }
+                }
+                if (mode == Tokeniser.Mode.ATTRHASH) {
+                    match(CODE_IDENTIFIER, Token.TokenType.CODE_ID)
+                }
+                if (mode == Tokeniser.Mode.ATTRLIST) {
+                    match(HTMLIDENTIFIER, Token.TokenType.HTMLIDENTIFIER)
+                    match(QUOTEDSTRING, Token.TokenType.STRING) { it.substring(1, it.length() - 1) }
+                    match(QUOTEDSTRING2, Token.TokenType.STRING) { it.substring(1, it.length() - 1) }
+                }
+                if (token == null && SINGLE_CHARS.containsKey(ch)) {
+                    token = [SINGLE_CHARS[ch], String.valueOf(ch), String.valueOf(ch)]
+                }
+                if (token == null) {
+                    token = [Token.TokenType.UNKNOWN, String.valueOf(ch), null]
+                }
+                tokens << token
+                index += token[1].length()
+            }
+            tokens
+        }
+    }
 }